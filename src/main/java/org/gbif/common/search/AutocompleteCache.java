@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.api.model.common.search.SearchRequest;
+import org.gbif.api.model.common.search.SearchResponse;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import lombok.Value;
+
+/**
+ * Cache of autocomplete responses, see {@link EsSearchRequestBuilder#buildAutocompleteQuery}, that
+ * answers the requests of a typing user locally.
+ *
+ * <p>A response with fewer results than the limit has all the documents matching its prefix. The
+ * documents matching a longer prefix are a subset of them, so a longer prefix with the same
+ * parameter, filters and limit is answered from the cached results: without filters, the results
+ * whose text doesn't match the prefix are discarded; with filters, Elasticsearch returns all the
+ * filtered documents and the prefix only ranks them, so all the results are kept. Results starting
+ * with the prefix are ranked first, as the boosted span query does. Prefixes of up to 2 characters
+ * don't use the span query, so they only answer prefixes of up to 2 characters.
+ *
+ * <p>Locally answered responses are an approximation of the ranking of Elasticsearch, the matching
+ * documents are the same as long as the text of the results is the indexed text.
+ */
+public class AutocompleteCache<T, P extends SearchParameter> {
+
+  /** Shortest prefix that uses the span query of the autocomplete requests. */
+  private static final int SPAN_PREFIX_LENGTH = 3;
+
+  private final Cache<Key<P>, SearchResponse<T, P>> cache;
+
+  private final BiFunction<T, P, String> textFunction;
+
+  private final LongAdder exactHits = new LongAdder();
+  private final LongAdder prefixHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param maximumSize maximum number of cached responses
+   * @param ttl time to keep the responses
+   * @param textFunction text of a result for the autocompleted parameter
+   */
+  public AutocompleteCache(long maximumSize, Duration ttl, BiFunction<T, P, String> textFunction) {
+    this.cache = CacheBuilder.newBuilder().maximumSize(maximumSize).expireAfterWrite(ttl).build();
+    this.textFunction = textFunction;
+  }
+
+  /**
+   * Gets the response of an autocomplete request from the cache, from the cached response of a
+   * shorter prefix or from the loader. Only requests without offset are cached, and partial
+   * responses, see {@link QueryBudget}, are never cached.
+   */
+  public SearchResponse<T, P> get(
+      SearchRequest<P> searchRequest, P parameter, Supplier<SearchResponse<T, P>> loader) {
+    if (searchRequest.getOffset() > 0) {
+      return loader.get();
+    }
+
+    String q = Strings.nullToEmpty(searchRequest.getQ());
+    Map<P, Set<String>> filters = filters(searchRequest);
+    Key<P> key = new Key<>(parameter, filters, searchRequest.getLimit(), q);
+    SearchResponse<T, P> response = cache.getIfPresent(key);
+    if (response != null) {
+      exactHits.increment();
+      return response;
+    }
+
+    response = fromShorterPrefix(searchRequest, parameter, filters, q);
+    if (response != null) {
+      prefixHits.increment();
+    } else {
+      misses.increment();
+      response = loader.get();
+      if (EsSearchResponse.isPartial(response)) {
+        // a partial response doesn't have all the documents matching the prefix
+        return response;
+      }
+    }
+    cache.put(key, response);
+    return response;
+  }
+
+  /** @return number of requests answered with the cached response of the same prefix */
+  public long getExactHits() {
+    return exactHits.sum();
+  }
+
+  /** @return number of requests answered from the cached response of a shorter prefix */
+  public long getPrefixHits() {
+    return prefixHits.sum();
+  }
+
+  /** @return number of requests sent to Elasticsearch */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /** @return ratio of requests answered without Elasticsearch, 1 if there were no requests */
+  public double hitRate() {
+    long hits = getExactHits() + getPrefixHits();
+    long requests = hits + getMisses();
+    return requests == 0 ? 1.0 : (double) hits / requests;
+  }
+
+  /** @return the approximate number of cached responses */
+  public long size() {
+    return cache.size();
+  }
+
+  /** Discards all the cached responses, e.g.: after the index changes. */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  private SearchResponse<T, P> fromShorterPrefix(
+      SearchRequest<P> searchRequest, P parameter, Map<P, Set<String>> filters, String q) {
+    int minLength = q.length() >= SPAN_PREFIX_LENGTH ? SPAN_PREFIX_LENGTH : 0;
+    for (int length = q.length() - 1; length >= minLength; length--) {
+      SearchResponse<T, P> cached =
+          cache.getIfPresent(new Key<>(parameter, filters, searchRequest.getLimit(), q.substring(0, length)));
+      if (cached != null && isComplete(cached, searchRequest.getLimit())) {
+        return refine(cached, searchRequest, parameter, q);
+      }
+    }
+    return null;
+  }
+
+  private static boolean isComplete(SearchResponse<?, ?> response, int limit) {
+    return response.getOffset() == 0
+        && !EsSearchResponse.isPartial(response)
+        && response.getResults() != null
+        && response.getResults().size() < limit;
+  }
+
+  private SearchResponse<T, P> refine(
+      SearchResponse<T, P> cached, SearchRequest<P> searchRequest, P parameter, String q) {
+    boolean filtered = searchRequest.getParameters() != null && !searchRequest.getParameters().isEmpty();
+    String prefix = q.toLowerCase(Locale.ROOT);
+    List<String> tokens = tokens(prefix);
+
+    List<T> startingWithPrefix = new ArrayList<>();
+    List<T> others = new ArrayList<>();
+    for (T result : cached.getResults()) {
+      String text = Strings.nullToEmpty(textFunction.apply(result, parameter)).toLowerCase(Locale.ROOT);
+      if (q.length() >= SPAN_PREFIX_LENGTH && text.startsWith(prefix)) {
+        startingWithPrefix.add(result);
+      } else if (filtered || matches(tokens, tokens(text))) {
+        others.add(result);
+      }
+    }
+    startingWithPrefix.addAll(others);
+
+    SearchResponse<T, P> response = new SearchResponse<>(searchRequest);
+    response.setCount((long) startingWithPrefix.size());
+    response.setResults(startingWithPrefix);
+    return response;
+  }
+
+  /** Every token of the prefix must start a token of the text, as the edge n-grams do. */
+  private static boolean matches(List<String> prefixTokens, List<String> textTokens) {
+    for (String prefixToken : prefixTokens) {
+      if (textTokens.stream().noneMatch(t -> t.startsWith(prefixToken))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static List<String> tokens(String text) {
+    List<String> tokens = new ArrayList<>();
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++) {
+      boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+      if (tokenChar && start < 0) {
+        start = i;
+      } else if (!tokenChar && start >= 0) {
+        tokens.add(text.substring(start, i));
+        start = -1;
+      }
+    }
+    return tokens;
+  }
+
+  /** Filters of the request, regardless of the iteration order of the parameters and values. */
+  private static <P extends SearchParameter> Map<P, Set<String>> filters(SearchRequest<P> searchRequest) {
+    Map<P, Set<String>> filters = new HashMap<>();
+    if (searchRequest.getParameters() != null) {
+      searchRequest
+          .getParameters()
+          .forEach((k, v) -> filters.put(k, v != null ? new HashSet<>(v) : Collections.emptySet()));
+    }
+    return filters;
+  }
+
+  @Value
+  private static class Key<P extends SearchParameter> {
+    P parameter;
+    Map<P, Set<String>> filters;
+    int limit;
+    String q;
+  }
+}
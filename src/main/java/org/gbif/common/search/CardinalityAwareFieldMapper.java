@@ -0,0 +1,193 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.api.model.common.search.SearchRequest;
+
+import java.util.List;
+import java.util.Set;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOptions;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+
+/**
+ * {@link EsFieldMapper} that returns the cardinalities discovered by a
+ * {@link FieldCardinalityService}, falling back to the decorated mapper for fields that haven't been
+ * estimated. Estimates are approximate, so a safety margin is added to them: the cardinality bounds
+ * the size of the facets and an underestimate would drop values.
+ *
+ * <p>The estimates also size the shard_size of the facets, so only estimates below the precision
+ * threshold of the cardinality aggregation and within a maximum cardinality are used. Fields above
+ * them fall back to the decorated mapper.
+ */
+public class CardinalityAwareFieldMapper<P extends SearchParameter> implements EsFieldMapper<P> {
+
+  /** Default maximum cardinality, the default search.max_buckets of Elasticsearch. */
+  public static final int DEFAULT_MAX_CARDINALITY = 65536;
+
+  private final EsFieldMapper<P> delegate;
+  private final FieldCardinalityService<P> cardinalityService;
+  private final double safetyMargin;
+  private final int maxCardinality;
+
+  /**
+   * @param safetyMargin fraction added to the estimates, e.g.: 0.1 to add 10%
+   */
+  public CardinalityAwareFieldMapper(
+      EsFieldMapper<P> delegate, FieldCardinalityService<P> cardinalityService, double safetyMargin) {
+    this(delegate, cardinalityService, safetyMargin, DEFAULT_MAX_CARDINALITY);
+  }
+
+  /**
+   * @param safetyMargin fraction added to the estimates, e.g.: 0.1 to add 10%
+   * @param maxCardinality maximum cardinality taken from the estimates, e.g.: the search.max_buckets
+   *     of the cluster
+   */
+  public CardinalityAwareFieldMapper(
+      EsFieldMapper<P> delegate,
+      FieldCardinalityService<P> cardinalityService,
+      double safetyMargin,
+      int maxCardinality) {
+    if (safetyMargin < 0) {
+      throw new IllegalArgumentException("Safety margin can't be negative");
+    }
+    if (maxCardinality < 1) {
+      throw new IllegalArgumentException("Max cardinality must be greater than 0");
+    }
+    this.delegate = delegate;
+    this.cardinalityService = cardinalityService;
+    this.safetyMargin = safetyMargin;
+    this.maxCardinality = maxCardinality;
+  }
+
+  @Override
+  public Integer getCardinality(String esFieldName) {
+    Long estimate = cardinalityService.getCardinality(esFieldName);
+    // empty fields keep the configured cardinality, aggregations can't have a size of 0
+    if (estimate == null || estimate == 0) {
+      return delegate.getCardinality(esFieldName);
+    }
+    // estimates above the precision threshold have larger errors
+    if (estimate > FieldCardinalityService.PRECISION_THRESHOLD) {
+      return delegate.getCardinality(esFieldName);
+    }
+    long cardinality = (long) Math.ceil(estimate * (1 + safetyMargin)) + 1;
+    if (cardinality > maxCardinality) {
+      return delegate.getCardinality(esFieldName);
+    }
+    return (int) cardinality;
+  }
+
+  @Override
+  public EsFieldMapper<P> unwrap() {
+    return delegate;
+  }
+
+  @Override
+  public String get(P searchParameter) {
+    return delegate.get(searchParameter);
+  }
+
+  @Override
+  public P get(String esFieldName) {
+    return delegate.get(esFieldName);
+  }
+
+  @Override
+  public String parseIndexedValue(String value, P parameter) {
+    return delegate.parseIndexedValue(value, parameter);
+  }
+
+  @Override
+  public FieldValue parseParamValue(String value, P parameter) {
+    return delegate.parseParamValue(value, parameter);
+  }
+
+  @Override
+  public boolean isDateField(String esFieldName) {
+    return delegate.isDateField(esFieldName);
+  }
+
+  @Override
+  public List<String> excludeFields() {
+    return delegate.excludeFields();
+  }
+
+  @Override
+  public List<SortOptions> sorts() {
+    return delegate.sorts();
+  }
+
+  @Override
+  public TotalHitsPolicy totalHitsPolicy() {
+    return delegate.totalHitsPolicy();
+  }
+
+  @Override
+  public LargeTermsPolicy largeTermsPolicy() {
+    return delegate.largeTermsPolicy();
+  }
+
+  @Override
+  public List<String> includeSuggestFields(P searchParameter) {
+    return delegate.includeSuggestFields(searchParameter);
+  }
+
+  @Override
+  public String getAutocompleteField(P searchParameter) {
+    return delegate.getAutocompleteField(searchParameter);
+  }
+
+  @Override
+  public List<String> highlightingFields() {
+    return delegate.highlightingFields();
+  }
+
+  @Override
+  public Set<String> localHighlightingFields() {
+    return delegate.localHighlightingFields();
+  }
+
+  @Override
+  public List<String> getMappedFields() {
+    return delegate.getMappedFields();
+  }
+
+  @Override
+  public Query fullTextQuery(String q) {
+    return delegate.fullTextQuery(q);
+  }
+
+  @Override
+  public Query fullTextQuery(String q, Set<SearchRequest.QueryField> queryFields) {
+    return delegate.fullTextQuery(q, queryFields);
+  }
+
+  @Override
+  public List<String> queryFieldsToEsFields(Set<SearchRequest.QueryField> queryFields) {
+    return delegate.queryFieldsToEsFields(queryFields);
+  }
+
+  @Override
+  public boolean isSpatialParameter(P parameter) {
+    return delegate.isSpatialParameter(parameter);
+  }
+
+  @Override
+  public GeometrySimplifier getGeometrySimplifier(P parameter) {
+    return delegate.getGeometrySimplifier(parameter);
+  }
+}
@@ -84,6 +84,17 @@ public interface EsFieldMapper<P extends SearchParameter> {
     return FieldValue.of(value);
   }
 
+  /**
+   * Mapper decorated by this one. Decorators that delegate {@link #parseParamValue} to another
+   * mapper return it, so the parsing of values is optimized as in the decorated mapper. By default
+   * mappers don't decorate other mappers.
+   *
+   * @return the decorated mapper or this mapper
+   */
+  default EsFieldMapper<P> unwrap() {
+    return this;
+  }
+
   /**
    * Looks-up for the estimate cardinality of ElasticSearch field.
    *
@@ -106,6 +117,22 @@ public interface EsFieldMapper<P extends SearchParameter> {
   /** @return the default sorting of results */
   List<SortOptions> sorts();
 
+  /**
+   * How total hits are counted when the request doesn't set a policy. By default all the hits are
+   * counted.
+   */
+  default TotalHitsPolicy totalHitsPolicy() {
+    return TotalHitsPolicy.EXACT;
+  }
+
+  /**
+   * How filters with many values are sent to Elasticsearch. By default the values are split in
+   * terms queries within the default max_terms_count of Elasticsearch.
+   */
+  default LargeTermsPolicy largeTermsPolicy() {
+    return LargeTermsPolicy.DEFAULT;
+  }
+
   /**
    * Fields to be included in a suggest response. By default only the requested parameter field is
    * returned.
@@ -127,6 +154,15 @@ public interface EsFieldMapper<P extends SearchParameter> {
     return Collections.emptyList();
   }
 
+  /**
+   * Highlighting fields highlighted in the JVM by {@link LocalHighlighter} instead of Elasticsearch,
+   * e.g.: short fields like titles or names. By default all the fields are highlighted by
+   * Elasticsearch.
+   */
+  default Set<String> localHighlightingFields() {
+    return Collections.emptySet();
+  }
+
   /**
    * List of all ES fields mapped to API responses. Only these fields will be included a in _source
    * field. An empty array means, all fields are mapped and must be included in the _source field.
@@ -157,4 +193,16 @@ public interface EsFieldMapper<P extends SearchParameter> {
   default boolean isSpatialParameter(P parameter) {
     return false;
   }
+
+  /**
+   * Simplification applied to the geometries of a spatial parameter before sending them to
+   * Elasticsearch. By default geometries are not simplified, precision-sensitive parameters should
+   * keep this default.
+   *
+   * @param parameter spatial search parameter
+   * @return the simplifier to use or null to send the geometries with all their vertices
+   */
+  default GeometrySimplifier getGeometrySimplifier(P parameter) {
+    return null;
+  }
 }
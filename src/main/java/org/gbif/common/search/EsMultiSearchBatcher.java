@@ -0,0 +1,316 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.common.search.es.EsClient;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import co.elastic.clients.elasticsearch.core.MsearchRequest;
+import co.elastic.clients.elasticsearch.core.MsearchResponse;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.msearch.MultiSearchResponseItem;
+import co.elastic.clients.elasticsearch.core.msearch.RequestItem;
+import co.elastic.clients.elasticsearch.core.search.ResponseBody;
+
+/**
+ * Collects small search requests, e.g.: autocomplete and suggest requests, and sends them in a
+ * single _msearch request. A batch is sent when it reaches the maximum batch size or when the batch
+ * window since its first request elapses, whatever happens first.
+ *
+ * <p>Each request gets its own future. A failed item only fails the future of its request, while a
+ * failed _msearch fails all the futures of the batch. The responses can be parsed with {@link
+ * EsResponseParser}. Requests with settings not supported by _msearch are rejected, see {@link
+ * #toRequestItem(SearchRequest)}.
+ */
+public class EsMultiSearchBatcher<SR> implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EsMultiSearchBatcher.class);
+
+  private final EsClient esClient;
+  private final Class<SR> documentClass;
+  private final int maxBatchSize;
+  private final long windowNanos;
+
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          new ThreadFactoryBuilder().setNameFormat("es-msearch-%d").setDaemon(true).build());
+
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder batchedRequests = new LongAdder();
+
+  private List<Pending<SR>> batch = new ArrayList<>();
+
+  private boolean closed;
+
+  /**
+   * @param maxBatchSize maximum number of requests per _msearch
+   * @param window maximum time a request waits for other requests, e.g.: 2ms
+   */
+  public EsMultiSearchBatcher(
+      EsClient esClient, Class<SR> documentClass, int maxBatchSize, Duration window) {
+    if (maxBatchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be greater than 0");
+    }
+    this.esClient = esClient;
+    this.documentClass = documentClass;
+    this.maxBatchSize = maxBatchSize;
+    this.windowNanos = window.toNanos();
+  }
+
+  /**
+   * Adds a request to the current batch. The returned future fails if the batcher is closed.
+   *
+   * @throws IllegalArgumentException if the request has settings not supported by _msearch
+   */
+  public CompletableFuture<ResponseBody<SR>> submit(SearchRequest searchRequest) {
+    Pending<SR> pending = new Pending<>(toRequestItem(searchRequest));
+    List<Pending<SR>> full = null;
+    synchronized (this) {
+      if (closed) {
+        pending.response.completeExceptionally(new SearchException("Multi search batcher is closed"));
+        return pending.response;
+      }
+      batch.add(pending);
+      if (batch.size() >= maxBatchSize) {
+        full = batch;
+        batch = new ArrayList<>();
+      } else if (batch.size() == 1) {
+        List<Pending<SR>> current = batch;
+        scheduler.schedule(() -> flush(current), windowNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+    if (full != null) {
+      send(full);
+    }
+    return pending.response;
+  }
+
+  /** Sends the batch if it hasn't been sent already for being full. */
+  private void flush(List<Pending<SR>> expected) {
+    synchronized (this) {
+      if (batch != expected) {
+        return;
+      }
+      batch = new ArrayList<>();
+    }
+    send(expected);
+  }
+
+  private void send(List<Pending<SR>> requests) {
+    batches.increment();
+    batchedRequests.add(requests.size());
+
+    MsearchRequest msearchRequest =
+        MsearchRequest.of(
+            m -> m.searches(requests.stream().map(p -> p.item).collect(Collectors.toList())));
+
+    CompletableFuture<MsearchResponse<SR>> msearch;
+    try {
+      msearch = esClient.msearchAsync(msearchRequest, documentClass);
+    } catch (Exception ex) {
+      requests.forEach(p -> p.response.completeExceptionally(ex));
+      return;
+    }
+
+    msearch.whenComplete(
+        (response, ex) -> {
+          if (ex != null) {
+            LOG.warn("Error executing a _msearch of {} requests", requests.size(), ex);
+            requests.forEach(p -> p.response.completeExceptionally(ex));
+            return;
+          }
+
+          // the responses are in the order of the requests
+          List<MultiSearchResponseItem<SR>> items = response.responses();
+          for (int i = 0; i < requests.size(); i++) {
+            CompletableFuture<ResponseBody<SR>> future = requests.get(i).response;
+            if (i >= items.size()) {
+              future.completeExceptionally(new SearchException("Missing _msearch response item " + i));
+            } else if (items.get(i).isFailure()) {
+              future.completeExceptionally(
+                  new SearchException(
+                      "Error in _msearch item: " + items.get(i).failure().error().reason()));
+            } else {
+              future.complete(items.get(i).result());
+            }
+          }
+        });
+  }
+
+  /**
+   * Converts a search request into an _msearch item. All the settings supported by _msearch are
+   * copied to the header or the body of the item.
+   *
+   * @throws IllegalArgumentException if the request has settings not supported by _msearch, e.g.:
+   *     scroll, slice or the query string parameters
+   */
+  static RequestItem toRequestItem(SearchRequest request) {
+    List<String> unsupported = new ArrayList<>();
+    addIfSet(unsupported, "scroll", request.scroll());
+    addIfSet(unsupported, "slice", request.slice());
+    addIfSet(unsupported, "q", request.q());
+    addIfSet(unsupported, "df", request.df());
+    addIfSet(unsupported, "analyzer", request.analyzer());
+    addIfSet(unsupported, "analyze_wildcard", request.analyzeWildcard());
+    addIfSet(unsupported, "default_operator", request.defaultOperator());
+    addIfSet(unsupported, "lenient", request.lenient());
+    addIfSet(unsupported, "batched_reduce_size", request.batchedReduceSize());
+    addIfSet(unsupported, "max_concurrent_shard_requests", request.maxConcurrentShardRequests());
+    addIfSet(unsupported, "pre_filter_shard_size", request.preFilterShardSize());
+    addIfSet(unsupported, "retriever", request.retriever());
+    addIfSet(unsupported, "_source_excludes", request.sourceExcludes());
+    addIfSet(unsupported, "_source_includes", request.sourceIncludes());
+    if (!unsupported.isEmpty()) {
+      throw new IllegalArgumentException("Settings not supported by _msearch: " + unsupported);
+    }
+
+    return RequestItem.of(
+        i ->
+            i.header(
+                    h -> {
+                      h.requestCache(request.requestCache())
+                          .routing(request.routing())
+                          .preference(request.preference())
+                          .searchType(request.searchType())
+                          .allowNoIndices(request.allowNoIndices())
+                          .ignoreUnavailable(request.ignoreUnavailable())
+                          .allowPartialSearchResults(request.allowPartialSearchResults())
+                          .ccsMinimizeRoundtrips(request.ccsMinimizeRoundtrips());
+                      if (!request.index().isEmpty()) {
+                        h.index(request.index());
+                      }
+                      if (!request.expandWildcards().isEmpty()) {
+                        h.expandWildcards(request.expandWildcards());
+                      }
+                      return h;
+                    })
+                .body(
+                    b -> {
+                      b.query(request.query())
+                          .size(request.size())
+                          .from(request.from())
+                          .source(request.source())
+                          .postFilter(request.postFilter())
+                          .highlight(request.highlight())
+                          .suggest(request.suggest())
+                          .trackTotalHits(request.trackTotalHits())
+                          .timeout(request.timeout())
+                          .terminateAfter(request.terminateAfter())
+                          .pit(request.pit())
+                          .minScore(request.minScore())
+                          .collapse(request.collapse())
+                          .explain(request.explain())
+                          .profile(request.profile())
+                          .trackScores(request.trackScores())
+                          .version(request.version())
+                          .seqNoPrimaryTerm(request.seqNoPrimaryTerm());
+                      if (!request.sort().isEmpty()) {
+                        b.sort(request.sort());
+                      }
+                      if (!request.aggregations().isEmpty()) {
+                        b.aggregations(request.aggregations());
+                      }
+                      if (!request.searchAfter().isEmpty()) {
+                        b.searchAfter(request.searchAfter());
+                      }
+                      if (!request.docvalueFields().isEmpty()) {
+                        b.docvalueFields(request.docvalueFields());
+                      }
+                      if (!request.fields().isEmpty()) {
+                        b.fields(request.fields());
+                      }
+                      if (!request.storedFields().isEmpty()) {
+                        b.storedFields(request.storedFields());
+                      }
+                      if (!request.scriptFields().isEmpty()) {
+                        b.scriptFields(request.scriptFields());
+                      }
+                      if (!request.runtimeMappings().isEmpty()) {
+                        b.runtimeMappings(request.runtimeMappings());
+                      }
+                      if (!request.rescore().isEmpty()) {
+                        b.rescore(request.rescore());
+                      }
+                      if (!request.knn().isEmpty()) {
+                        b.knn(request.knn());
+                      }
+                      if (!request.indicesBoost().isEmpty()) {
+                        b.indicesBoost(request.indicesBoost());
+                      }
+                      if (!request.stats().isEmpty()) {
+                        b.stats(request.stats());
+                      }
+                      if (!request.ext().isEmpty()) {
+                        b.ext(request.ext());
+                      }
+                      return b;
+                    }));
+  }
+
+  private static void addIfSet(List<String> settings, String name, Object value) {
+    if (value != null && !(value instanceof Collection && ((Collection<?>) value).isEmpty())) {
+      settings.add(name);
+    }
+  }
+
+  /** @return number of _msearch requests sent */
+  public long getBatches() {
+    return batches.sum();
+  }
+
+  /** @return number of search requests sent in all the batches */
+  public long getBatchedRequests() {
+    return batchedRequests.sum();
+  }
+
+  /** Sends the pending requests and stops the batch timer. */
+  @Override
+  public void close() {
+    List<Pending<SR>> remaining;
+    synchronized (this) {
+      closed = true;
+      remaining = batch;
+      batch = new ArrayList<>();
+    }
+    if (!remaining.isEmpty()) {
+      send(remaining);
+    }
+    scheduler.shutdown();
+  }
+
+  private static class Pending<SR> {
+    private final RequestItem item;
+    private final CompletableFuture<ResponseBody<SR>> response = new CompletableFuture<>();
+
+    private Pending(RequestItem item) {
+      this.item = item;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.api.model.common.search.SearchRequest.QueryField;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import lombok.Value;
+
+/**
+ * Bounded and thread-safe cache of the filter queries compiled by {@link EsSearchRequestBuilder}.
+ *
+ * <p>Entries are keyed by the search parameters, the full text query and the query fields. The
+ * iteration order of the parameters and values is part of the key, so a cached query is only
+ * reused when it would serialize exactly as a freshly built one.
+ */
+public class EsQueryCache<P extends SearchParameter> {
+
+  private final Cache<Key<P>, Optional<BoolQuery>> cache;
+
+  /** @param maximumSize maximum number of compiled queries to keep */
+  public EsQueryCache(long maximumSize) {
+    cache = CacheBuilder.newBuilder().maximumSize(maximumSize).recordStats().build();
+  }
+
+  /**
+   * Gets the query compiled for the given parameters, compiling and caching it if it's not present.
+   * Exceptions thrown by the loader are propagated as they are and nothing is cached.
+   */
+  Optional<BoolQuery> get(
+      Map<P, Set<String>> params,
+      String q,
+      Set<QueryField> queryFields,
+      Supplier<Optional<BoolQuery>> loader) {
+    Key<P> key = Key.of(params, q, queryFields);
+    Optional<BoolQuery> query = cache.getIfPresent(key);
+    if (query == null) {
+      query = loader.get();
+      cache.put(key, query);
+    }
+    return query;
+  }
+
+  /** @return hit, miss and eviction counts of the cache */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /** @return the approximate number of cached queries */
+  public long size() {
+    return cache.size();
+  }
+
+  /** Discards all the cached queries. */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  @Value
+  private static class Key<P extends SearchParameter> {
+    List<P> params;
+    List<List<String>> values;
+    String q;
+    List<QueryField> queryFields;
+
+    static <P extends SearchParameter> Key<P> of(
+        Map<P, Set<String>> params, String q, Set<QueryField> queryFields) {
+      List<P> keyParams = new ArrayList<>();
+      List<List<String>> keyValues = new ArrayList<>();
+      if (params != null) {
+        params.forEach(
+            (k, v) -> {
+              keyParams.add(k);
+              keyValues.add(v != null ? new ArrayList<>(v) : Collections.emptyList());
+            });
+      }
+      return new Key<>(
+          keyParams,
+          keyValues,
+          q,
+          queryFields != null ? new ArrayList<>(queryFields) : Collections.emptyList());
+    }
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.api.model.common.search.Facet;
+import org.gbif.api.model.common.search.FacetedSearchRequest;
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.api.model.common.search.SearchRequest;
+import org.gbif.api.model.common.search.SearchResponse;
+import org.gbif.common.search.es.AliasSwapListener;
+import org.gbif.common.search.es.EsClient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import jakarta.json.stream.JsonGenerator;
+import lombok.Value;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Cache of parsed search responses, see {@link EsSearchExecutor}.
+ *
+ * <p>Responses are keyed by the concrete indices behind the searched alias, by a fingerprint of
+ * the Elasticsearch request and of the request settings used to parse its response, e.g.: the facet
+ * pages, and by the parser of the response, so executors with other result types can share the
+ * cache. When {@link EsClient#swapAlias(String, String)} repoints an alias in this JVM its responses
+ * are discarded. Swaps done by other processes are picked up when the resolved alias expires, so
+ * responses are at most that old when the index changes, and never older than their own TTL.
+ *
+ * <p>The cached responses are shared, callers must not modify them. The cache is bounded by the
+ * number of results and facet counts of the cached responses. {@link #close()} stops listening to
+ * the alias swaps.
+ */
+public class EsResponseCache implements AliasSwapListener, Closeable {
+
+  private static final JacksonJsonpMapper MAPPER = new JacksonJsonpMapper();
+
+  private final EsClient esClient;
+  private final Cache<Key, SearchResponse<?, ?>> cache;
+  private final Cache<String, String> concreteIndices;
+
+  /**
+   * @param maxWeight maximum number of results and facet counts summed over all the responses
+   * @param ttl time a response is cached
+   * @param aliasTtl time an alias is resolved to the same indices
+   */
+  public EsResponseCache(EsClient esClient, long maxWeight, Duration ttl, Duration aliasTtl) {
+    this.esClient = esClient;
+    this.cache =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxWeight)
+            .weigher((Key key, SearchResponse<?, ?> response) -> weight(response))
+            .expireAfterWrite(ttl.toMillis(), TimeUnit.MILLISECONDS)
+            .recordStats()
+            .build();
+    this.concreteIndices =
+        CacheBuilder.newBuilder().expireAfterWrite(aliasTtl.toMillis(), TimeUnit.MILLISECONDS).build();
+    esClient.addAliasSwapListener(this);
+  }
+
+  /**
+   * Gets the response of a request, executing and caching it if it's not present. Exceptions thrown
+   * by the loader are propagated and nothing is cached. Partial responses, see {@link QueryBudget},
+   * are not cached either.
+   *
+   * @param parser identity of the parsing of the response, e.g.: the response parser, responses
+   *     of other parsers can have other result types
+   */
+  @SuppressWarnings("unchecked")
+  <T, P extends SearchParameter> SearchResponse<T, P> get(
+      String index, String fingerprint, Object parser, Supplier<SearchResponse<T, P>> loader) {
+    Key key = new Key(index, concreteIndex(index), fingerprint, parser);
+    try {
+      SearchResponse<T, P> response = (SearchResponse<T, P>) cache.get(key, loader::get);
+      if (EsSearchResponse.isPartial(response)) {
+        // the callers waiting for this load get it, later ones execute the request again
+        cache.asMap().remove(key, response);
+      }
+      return response;
+    } catch (ExecutionException | UncheckedExecutionException ex) {
+      Throwables.throwIfUnchecked(ex.getCause());
+      throw new SearchException(ex.getCause());
+    }
+  }
+
+  private String concreteIndex(String index) {
+    try {
+      return concreteIndices.get(index, () -> String.join(",", esClient.resolveAlias(index)));
+    } catch (ExecutionException | UncheckedExecutionException ex) {
+      throw new SearchException("Error resolving alias " + index, ex.getCause());
+    }
+  }
+
+  /**
+   * SHA-256 of the compact JSON of the Elasticsearch request body and of the facet settings used by
+   * the parser, the index is not part of the body.
+   */
+  static String fingerprint(
+      co.elastic.clients.elasticsearch.core.SearchRequest esRequest, SearchRequest<?> searchRequest) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    // the JSON is written to the hasher, it's never held in memory
+    try (OutputStream body = Funnels.asOutputStream(hasher);
+        JsonGenerator generator = MAPPER.jsonProvider().createGenerator(body)) {
+      esRequest.serialize(generator, MAPPER);
+    } catch (IOException ex) {
+      throw new SearchException("Error serializing the request", ex);
+    }
+    if (searchRequest instanceof FacetedSearchRequest) {
+      FacetedSearchRequest<?> facetedRequest = (FacetedSearchRequest<?>) searchRequest;
+      hasher.putString(String.valueOf(facetedRequest.getFacetMinCount()), UTF_8);
+      hasher.putString(String.valueOf(facetedRequest.getFacetOffset()), UTF_8);
+      hasher.putString(String.valueOf(facetedRequest.getFacetLimit()), UTF_8);
+      // sorted by name to not depend on the order of the map
+      TreeMap<String, String> facetPages = new TreeMap<>();
+      facetedRequest
+          .getFacetPages()
+          .forEach((k, v) -> facetPages.put(k.name(), v.getOffset() + ":" + v.getLimit()));
+      hasher.putString(facetPages.toString(), UTF_8);
+    }
+    return hasher.hash().toString();
+  }
+
+  private static int weight(SearchResponse<?, ?> response) {
+    int weight = 1;
+    if (response.getResults() != null) {
+      weight += response.getResults().size();
+    }
+    if (response.getFacets() != null) {
+      for (Facet<?> facet : response.getFacets()) {
+        weight += facet.getCounts() != null ? facet.getCounts().size() : 0;
+      }
+    }
+    return weight;
+  }
+
+  @Override
+  public void onAliasSwapped(String alias, String indexName) {
+    concreteIndices.invalidate(alias);
+    cache.asMap().keySet().removeIf(k -> k.getIndex().equals(alias));
+  }
+
+  /** @return hit, miss, load time and eviction counts of the cache */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /** @return the approximate number of cached responses */
+  public long size() {
+    return cache.size();
+  }
+
+  /** Discards all the cached responses and resolved aliases. */
+  public void invalidateAll() {
+    cache.invalidateAll();
+    concreteIndices.invalidateAll();
+  }
+
+  /** Unregisters the cache as alias swap listener and discards the cached responses. */
+  @Override
+  public void close() {
+    esClient.removeAliasSwapListener(this);
+    invalidateAll();
+  }
+
+  @Value
+  private static class Key {
+    String index;
+    String concreteIndex;
+    String fingerprint;
+    // compared by identity
+    Object parser;
+  }
+}
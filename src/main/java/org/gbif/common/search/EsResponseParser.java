@@ -19,19 +19,34 @@ import org.gbif.api.model.common.search.SearchParameter;
 import org.gbif.api.model.common.search.SearchRequest;
 import org.gbif.api.model.common.search.SearchResponse;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import co.elastic.clients.elasticsearch._types.FieldValue;
 import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
 import co.elastic.clients.elasticsearch._types.aggregations.Buckets;
+import co.elastic.clients.elasticsearch._types.aggregations.CompositeAggregate;
+import co.elastic.clients.elasticsearch._types.aggregations.CompositeBucket;
 import co.elastic.clients.elasticsearch._types.aggregations.DoubleTermsBucket;
 import co.elastic.clients.elasticsearch._types.aggregations.LongTermsBucket;
 import co.elastic.clients.elasticsearch._types.aggregations.MultiBucketBase;
 import co.elastic.clients.elasticsearch._types.aggregations.StringTermsBucket;
 import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.search.ResponseBody;
+import co.elastic.clients.elasticsearch.core.search.TotalHitsRelation;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 
+import static org.gbif.common.search.EsSearchRequestBuilder.FILTERED_AGGS_PREFIX;
 import static org.gbif.common.search.es.indexing.EsQueryUtils.extractFacetLimit;
 import static org.gbif.common.search.es.indexing.EsQueryUtils.extractFacetOffset;
 
@@ -51,10 +66,11 @@ public class EsResponseParser<T,SR, P extends SearchParameter> {
   /**
    * Builds a SearchResponse instance using the current builder state.
    *
+   * @param esResponse a search response or a result of a multi search response
    * @return a new instance of a SearchResponse.
    */
   public SearchResponse<T, P> buildSearchResponse(
-    co.elastic.clients.elasticsearch.core.SearchResponse<SR> esResponse, SearchRequest<P> request) {
+    ResponseBody<SR> esResponse, SearchRequest<P> request) {
     return buildSearchResponse(esResponse, request, searchResultConverter);
   }
 
@@ -64,20 +80,137 @@ public class EsResponseParser<T,SR, P extends SearchParameter> {
    * @return a new instance of a SearchResponse.
    */
   public SearchResponse<T, P> buildSearchResponse(
-    co.elastic.clients.elasticsearch.core.SearchResponse<SR> esResponse,
+    ResponseBody<SR> esResponse,
       SearchRequest<P> request,
       Function<Hit<SR>, T> mapper) {
+    return parseResponse(esResponse, request, mapper);
+  }
+
+  /**
+   * Builds a SearchResponse reading the body of an Elasticsearch response as a stream, see {@link
+   * org.gbif.common.search.es.EsClient#search(co.elastic.clients.elasticsearch.core.SearchRequest,
+   * org.gbif.common.search.es.EsClient.ResponseBodyReader)}. Each hit is converted as soon as it's
+   * read, so the hits of the page are never in memory at the same time as the converted results.
+   *
+   * @param documentClass class of the source of the hits
+   * @return a new instance of a SearchResponse.
+   */
+  public SearchResponse<T, P> buildStreamedSearchResponse(
+    InputStream body, JacksonJsonpMapper jsonpMapper, Class<SR> documentClass, SearchRequest<P> request)
+    throws IOException {
+    List<T> results = new ArrayList<>();
+    ResponseBody<SR> esResponse =
+      new StreamingHitsReader<>(jsonpMapper, documentClass)
+        .read(body, hit -> results.add(searchResultConverter.apply(hit)));
+    return parseResponse(esResponse, request, results);
+  }
+
+  /**
+   * Builds a SearchResponse for a page of a point-in-time. The response contains the token of the
+   * next page if the page is full.
+   *
+   * @param cursor cursor used in the request
+   * @return a new instance of a SearchResponse.
+   */
+  public EsSearchResponse<T, P> buildSearchAfterResponse(
+    ResponseBody<SR> esResponse,
+      SearchRequest<P> request,
+      SearchCursor cursor) {
+
+    EsSearchResponse<T, P> response = parseResponse(esResponse, request, searchResultConverter);
+
+    List<Hit<SR>> hits = esResponse.hits().hits();
+    if (!hits.isEmpty() && hits.size() >= request.getLimit()) {
+      // the point-in-time id can change between requests, the latest one must be used
+      String pitId = Optional.ofNullable(esResponse.pitId()).orElse(cursor.getPitId());
+      response.setNext(cursor.next(pitId, hits.get(hits.size() - 1).sort()).encode());
+    }
+
+    return response;
+  }
+
+  /**
+   * Builds a SearchResponse from the responses of a faceted search split into a hits request and
+   * aggregation requests, see {@link EsSearchRequestBuilder#buildFacetedHitsRequest} and {@link
+   * EsSearchRequestBuilder#buildFacetsRequests}.
+   *
+   * @return a new instance of a SearchResponse.
+   */
+  public SearchResponse<T, P> buildSplitSearchResponse(
+    ResponseBody<SR> hitsResponse,
+      List<? extends ResponseBody<SR>> facetsResponses,
+      FacetedSearchRequest<P> request) {
+    EsSearchResponse<T, P> response = parseResponse(hitsResponse, request, searchResultConverter);
+
+    List<Facet<P>> facets = new ArrayList<>(response.getFacets());
+    facetsResponses.forEach(r -> {
+      facets.addAll(parseFacets(r.aggregations(), request));
+      setPartialResults(response, r);
+    });
+    response.setFacets(facets);
+
+    return response;
+  }
+
+  /**
+   * Builds a SearchResponse of a facet-only request, see {@link
+   * EsSearchRequestBuilder#buildFacetsOnlyRequest}. The response has the count and the facets, hits
+   * aren't read.
+   *
+   * @return a new instance of a SearchResponse.
+   */
+  public SearchResponse<T, P> buildFacetsOnlyResponse(
+    ResponseBody<SR> esResponse, FacetedSearchRequest<P> request) {
+    return parseResponse(esResponse, request, null);
+  }
+
+  /** @param mapper converter of the hits, null to skip the hits */
+  private EsSearchResponse<T, P> parseResponse(
+    ResponseBody<SR> esResponse,
+      SearchRequest<P> request,
+      Function<Hit<SR>, T> mapper) {
+    return parseResponse(
+      esResponse, request, mapper == null ? Collections.emptyList() : parseHits(esResponse, mapper));
+  }
 
-    SearchResponse<T,P> response = new SearchResponse<>(request);
-    Optional.ofNullable(esResponse.hits().total()).ifPresent(t -> response.setCount(t.value()));
-    response.setResults(parseHits(esResponse, mapper));
+  /** @param results converted hits of the response */
+  private EsSearchResponse<T, P> parseResponse(
+    ResponseBody<SR> esResponse, SearchRequest<P> request, List<T> results) {
+
+    EsSearchResponse<T,P> response = new EsSearchResponse<>(request);
+    Optional.ofNullable(esResponse.hits().total()).ifPresent(t -> {
+      response.setCount(t.value());
+      if (t.relation() == TotalHitsRelation.Gte) {
+        response.setCountLowerBound(true);
+      }
+    });
+    setPartialResults(response, esResponse);
+    response.setResults(results);
     if (request instanceof FacetedSearchRequest) {
-      response.setFacets(parseFacets(esResponse, (FacetedSearchRequest<P>) request));
+      response.setFacets(parseFacets(esResponse.aggregations(), (FacetedSearchRequest<P>) request));
+      Map<P, String> facetCursors = parseFacetCursors(esResponse.aggregations(), (FacetedSearchRequest<P>) request);
+      if (!facetCursors.isEmpty()) {
+        response.setFacetCursors(facetCursors);
+      }
     }
 
     return response;
   }
 
+  /**
+   * Flags the results of a response that exceeded its query budget as partial, see {@link
+   * QueryBudget}. A search terminated early only counted the collected documents.
+   */
+  private static void setPartialResults(EsSearchResponse<?, ?> response, ResponseBody<?> esResponse) {
+    if (esResponse.timedOut()) {
+      response.setTimedOut(true);
+    }
+    if (Boolean.TRUE.equals(esResponse.terminatedEarly())) {
+      response.setTerminatedEarly(true);
+      response.setCountLowerBound(true);
+    }
+  }
+
   /** Extract the buckets of an {@link Aggregate}. */
   private Buckets<? extends MultiBucketBase> getBuckets(Aggregate aggregate) {
     if (aggregate.isSterms()) {
@@ -88,28 +221,38 @@ public class EsResponseParser<T,SR, P extends SearchParameter> {
       return aggregate.dterms().buckets();
     } else if (aggregate.isFilters()) {
       return aggregate.filters().buckets();
+    } else if (aggregate.isComposite()) {
+      return aggregate.composite().buckets();
     } else {
       throw new IllegalArgumentException(aggregate.getClass() + " aggregation not supported");
     }
   }
 
-  private Buckets<? extends MultiBucketBase> getFilteredBuckets(String aggregateName, Aggregate aggregate) {
-    return getBuckets(aggregate.filter().aggregations().get("filtered_" + aggregateName));
-  }
-
   private List<Facet<P>> parseFacets(
-    co.elastic.clients.elasticsearch.core.SearchResponse<SR> esResponse, FacetedSearchRequest<P> request) {
-    return esResponse.aggregations()
+    Map<String, Aggregate> aggregations, FacetedSearchRequest<P> request) {
+    return aggregations
           .entrySet()
           .stream()
+          .flatMap(agg -> termsAggregates(agg.getKey(), agg.getValue()))
           .map(
               agg ->
               {
                             // get buckets
-                            Buckets<? extends MultiBucketBase> buckets = agg.getValue().isFilter()? getFilteredBuckets(agg.getKey(), agg.getValue()): getBuckets(agg.getValue());
+                            Buckets<? extends MultiBucketBase> buckets = getBuckets(agg.getValue());
 
                             // get facet of the agg
-                            P facet = fieldParameterMapper.get(agg.getKey().replaceFirst("filtered_",""));
+                            P facet = fieldParameterMapper.get(agg.getKey());
+
+                            // composite aggs are already paged and don't apply the min count
+                            if (agg.getValue().isComposite()) {
+                              long minCount = Optional.ofNullable(request.getFacetMinCount()).orElse(0);
+                              List<Facet.Count> counts =
+                                  buckets.array().stream()
+                                      .filter(b -> b.docCount() >= minCount)
+                                      .map(b -> new Facet.Count(fieldParameterMapper.parseIndexedValue(getBucketKey(agg.getValue(), b), facet), b.docCount()))
+                                      .collect(Collectors.toList());
+                              return new Facet<>(facet, counts);
+                            }
 
                             // check for paging in facets
                             long facetOffset = extractFacetOffset(request, facet);
@@ -119,8 +262,7 @@ public class EsResponseParser<T,SR, P extends SearchParameter> {
                                 buckets.array().stream()
                                     .skip(facetOffset)
                                     .limit(facetOffset + facetLimit)
-                                    .map(b -> new Facet.Count(fieldParameterMapper.parseIndexedValue(agg.getValue().isFilter()? getFilteredBucketKey(
-                                      agg.getKey(), agg.getValue(),b) : getBucketKey(agg.getValue(), b), facet), b.docCount()))
+                                    .map(b -> new Facet.Count(fieldParameterMapper.parseIndexedValue(getBucketKey(agg.getValue(), b), facet), b.docCount()))
                                     .collect(Collectors.toList());
 
                             return new Facet<>(facet, counts);
@@ -128,11 +270,48 @@ public class EsResponseParser<T,SR, P extends SearchParameter> {
                       .collect(Collectors.toList());
   }
 
-  private static String getFilteredBucketKey(String aggName, Aggregate aggregate, MultiBucketBase bucket) {
-    return getBucketKey(aggregate.filter().aggregations().get("filtered_" + aggName), bucket);
+  /**
+   * Terms aggregates by ES field. Multiselect facets are nested in filter aggregations that can hold
+   * the terms aggregations of several facets.
+   */
+  private static Stream<Map.Entry<String, Aggregate>> termsAggregates(String name, Aggregate aggregate) {
+    if (!aggregate.isFilter()) {
+      return Stream.of(new AbstractMap.SimpleImmutableEntry<>(name, aggregate));
+    }
+    return aggregate.filter().aggregations().entrySet().stream()
+        .filter(e -> e.getKey().startsWith(FILTERED_AGGS_PREFIX))
+        .map(e -> new AbstractMap.SimpleImmutableEntry<>(
+            e.getKey().substring(FILTERED_AGGS_PREFIX.length()), e.getValue()));
+  }
+
+  /** Cursors of the facets paged with composite aggregations that have more values. */
+  private Map<P, String> parseFacetCursors(
+    Map<String, Aggregate> aggregations, FacetedSearchRequest<P> request) {
+    Map<P, String> cursors = new HashMap<>();
+    aggregations.forEach((name, aggregate) -> {
+      if (!aggregate.isComposite()) {
+        return;
+      }
+      P facet = fieldParameterMapper.get(name);
+      CompositeAggregate composite = aggregate.composite();
+      // a page shorter than the limit is the last one
+      if (composite.afterKey() != null
+          && composite.afterKey().containsKey(name)
+          && composite.buckets().array().size() >= extractFacetLimit(request, facet)) {
+        cursors.put(facet, FacetCursor.encode(composite.afterKey().get(name)));
+      }
+    });
+    return cursors;
   }
 
   private static String getBucketKey(Aggregate aggregate, MultiBucketBase bucket) {
+    if (aggregate.isComposite()) {
+      // composite aggs of facets have a single source named after the field
+      return ((CompositeBucket) bucket).key().values().stream()
+        .findFirst()
+        .map(EsResponseParser::toKeyString)
+        .orElseThrow(() -> new IllegalArgumentException("Composite bucket without key"));
+    }
     if (aggregate.isLterms()) {
       return Long.toString(((LongTermsBucket)bucket).key());
     }
@@ -145,8 +324,24 @@ public class EsResponseParser<T,SR, P extends SearchParameter> {
     throw new IllegalArgumentException(aggregate.getClass() + " aggregation not supported");
   }
 
+  private static String toKeyString(FieldValue value) {
+    if (value.isLong()) {
+      return Long.toString(value.longValue());
+    }
+    if (value.isDouble()) {
+      return Double.toString(value.doubleValue());
+    }
+    if (value.isBoolean()) {
+      return Boolean.toString(value.booleanValue());
+    }
+    if (value.isString()) {
+      return value.stringValue();
+    }
+    throw new IllegalArgumentException(value._kind() + " bucket key not supported");
+  }
+
   private List<T> parseHits(
-    co.elastic.clients.elasticsearch.core.SearchResponse<SR> esResponse, Function<Hit<SR>, T> mapper) {
+    ResponseBody<SR> esResponse, Function<Hit<SR>, T> mapper) {
     return esResponse.hits().hits().stream().map(mapper).collect(Collectors.toList());
   }
 
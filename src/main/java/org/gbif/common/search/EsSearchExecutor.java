@@ -0,0 +1,365 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.api.model.common.search.FacetedSearchRequest;
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.api.model.common.search.SearchRequest;
+import org.gbif.api.model.common.search.SearchResponse;
+import org.gbif.common.search.es.EsClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Throwables;
+
+import lombok.Value;
+
+/**
+ * Builds, executes and parses the search requests of an index, optionally caching the parsed
+ * responses in an {@link EsResponseCache} or coalescing identical concurrent requests with a
+ * {@link SingleFlight}. Requests are identical if they have the same fingerprint, see {@link
+ * EsResponseCache#fingerprint}, and the same response parser. Both share parsed responses between
+ * callers, so these must not be modified.
+ */
+public class EsSearchExecutor<T, SR, P extends SearchParameter> {
+
+  private final EsClient esClient;
+  private final EsSearchRequestBuilder<P> requestBuilder;
+  private final EsResponseParser<T, SR, P> responseParser;
+  private final Class<SR> documentClass;
+  private final String index;
+  private final EsResponseCache responseCache;
+  private final SingleFlight<Object, SearchResponse<T, P>> singleFlight;
+
+  public EsSearchExecutor(
+      EsClient esClient,
+      EsSearchRequestBuilder<P> requestBuilder,
+      EsResponseParser<T, SR, P> responseParser,
+      Class<SR> documentClass,
+      String index) {
+    this(esClient, requestBuilder, responseParser, documentClass, index, null, null);
+  }
+
+  /** @param responseCache cache of the responses, null to always execute the requests */
+  public EsSearchExecutor(
+      EsClient esClient,
+      EsSearchRequestBuilder<P> requestBuilder,
+      EsResponseParser<T, SR, P> responseParser,
+      Class<SR> documentClass,
+      String index,
+      @Nullable EsResponseCache responseCache) {
+    this(esClient, requestBuilder, responseParser, documentClass, index, responseCache, null);
+  }
+
+  /**
+   * @param responseCache cache of the responses, null to always execute the requests
+   * @param singleFlight coalesces identical concurrent requests, null to execute each of them. It's
+   *     only used without a response cache, the cache already coalesces the concurrent loads of a
+   *     response
+   */
+  public EsSearchExecutor(
+      EsClient esClient,
+      EsSearchRequestBuilder<P> requestBuilder,
+      EsResponseParser<T, SR, P> responseParser,
+      Class<SR> documentClass,
+      String index,
+      @Nullable EsResponseCache responseCache,
+      @Nullable SingleFlight<Object, SearchResponse<T, P>> singleFlight) {
+    this.esClient = esClient;
+    this.requestBuilder = requestBuilder;
+    this.responseParser = responseParser;
+    this.documentClass = documentClass;
+    this.index = index;
+    this.responseCache = responseCache;
+    this.singleFlight = singleFlight;
+  }
+
+  /** Executes a search request without facets. */
+  public SearchResponse<T, P> search(SearchRequest<P> searchRequest) {
+    prepareTermsLookups(searchRequest);
+    return execute(searchRequest, requestBuilder.buildSearchRequest(searchRequest, index), false);
+  }
+
+  /**
+   * Executes a faceted search request. Requests with a limit of 0 are executed as facet-only
+   * requests, see {@link EsSearchRequestBuilder#buildFacetsOnlyRequest}.
+   */
+  public SearchResponse<T, P> facetedSearch(
+      FacetedSearchRequest<P> searchRequest, boolean facetsEnabled) {
+    prepareTermsLookups(searchRequest);
+    if (isFacetsOnly(searchRequest)) {
+      return execute(
+          searchRequest, requestBuilder.buildFacetsOnlyRequest(searchRequest, facetsEnabled, index), true);
+    }
+    return execute(
+        searchRequest, requestBuilder.buildFacetedSearchRequest(searchRequest, facetsEnabled, index), false);
+  }
+
+  /** Executes an autocomplete request, see {@link EsSearchRequestBuilder#buildAutocompleteQuery}. */
+  public SearchResponse<T, P> autocomplete(SearchRequest<P> searchRequest, P parameter) {
+    prepareTermsLookups(searchRequest);
+    return execute(
+        searchRequest, requestBuilder.buildAutocompleteQuery(searchRequest, parameter, index), false);
+  }
+
+  /**
+   * Executes an autocomplete request answering it, when possible, from the responses of the
+   * previous prefixes, see {@link AutocompleteCache}.
+   */
+  public SearchResponse<T, P> autocomplete(
+      SearchRequest<P> searchRequest, P parameter, AutocompleteCache<T, P> autocompleteCache) {
+    return autocompleteCache.get(searchRequest, parameter, () -> autocomplete(searchRequest, parameter));
+  }
+
+  /**
+   * Executes a search request reading the hits from the response body as they arrive instead of
+   * deserializing the whole Elasticsearch response first, e.g.: for pages of thousands of hits.
+   * Streamed requests don't use the response cache nor the single flight.
+   */
+  public SearchResponse<T, P> searchStreamed(SearchRequest<P> searchRequest) {
+    prepareTermsLookups(searchRequest);
+    return executeStreamed(searchRequest, requestBuilder.buildSearchRequest(searchRequest, index));
+  }
+
+  /** Executes a faceted search request reading the hits as they arrive, see {@link #searchStreamed}. */
+  public SearchResponse<T, P> facetedSearchStreamed(
+      FacetedSearchRequest<P> searchRequest, boolean facetsEnabled) {
+    prepareTermsLookups(searchRequest);
+    return executeStreamed(
+        searchRequest, requestBuilder.buildFacetedSearchRequest(searchRequest, facetsEnabled, index));
+  }
+
+  /**
+   * Executes a search request without facets and without blocking the calling thread. Cancelling
+   * the returned future aborts the request to Elasticsearch. Async requests don't use the response
+   * cache nor the single flight.
+   */
+  public CompletableFuture<SearchResponse<T, P>> searchAsync(SearchRequest<P> searchRequest) {
+    return afterTermsLookups(
+        searchRequest,
+        () -> executeAsync(searchRequest, requestBuilder.buildSearchRequest(searchRequest, index), false));
+  }
+
+  /**
+   * Executes a faceted search request without blocking the calling thread, see {@link #searchAsync}
+   * and {@link #facetedSearch}.
+   */
+  public CompletableFuture<SearchResponse<T, P>> facetedSearchAsync(
+      FacetedSearchRequest<P> searchRequest, boolean facetsEnabled) {
+    if (isFacetsOnly(searchRequest)) {
+      return afterTermsLookups(
+          searchRequest,
+          () ->
+              executeAsync(
+                  searchRequest,
+                  requestBuilder.buildFacetsOnlyRequest(searchRequest, facetsEnabled, index),
+                  true));
+    }
+    return afterTermsLookups(
+        searchRequest,
+        () ->
+            executeAsync(
+                searchRequest,
+                requestBuilder.buildFacetedSearchRequest(searchRequest, facetsEnabled, index),
+                false));
+  }
+
+  /**
+   * Executes a faceted search request as a hits request and aggregation-only requests sent in
+   * parallel, see {@link EsSearchRequestBuilder#buildFacetsRequests}. A slow facet doesn't delay the
+   * other facets, and the aggregation requests can be served from the shard request cache of
+   * Elasticsearch when only the page of hits changes. Cancelling the returned future cancels all the
+   * requests.
+   *
+   * @param maxFacetsPerRequest maximum number of facet aggregations per request
+   */
+  public CompletableFuture<SearchResponse<T, P>> facetedSearchSplitAsync(
+      FacetedSearchRequest<P> searchRequest, boolean facetsEnabled, int maxFacetsPerRequest) {
+    if (!facetsEnabled || isFacetsOnly(searchRequest)) {
+      return facetedSearchAsync(searchRequest, facetsEnabled);
+    }
+    return afterTermsLookups(
+        searchRequest, () -> executeSplitAsync(searchRequest, maxFacetsPerRequest));
+  }
+
+  /** Blocking version of {@link #facetedSearchSplitAsync}. */
+  public SearchResponse<T, P> facetedSearchSplit(
+      FacetedSearchRequest<P> searchRequest, boolean facetsEnabled, int maxFacetsPerRequest) {
+    return join(facetedSearchSplitAsync(searchRequest, facetsEnabled, maxFacetsPerRequest));
+  }
+
+  private CompletableFuture<SearchResponse<T, P>> executeSplitAsync(
+      FacetedSearchRequest<P> searchRequest, int maxFacetsPerRequest) {
+    CompletableFuture<co.elastic.clients.elasticsearch.core.SearchResponse<SR>> hits =
+        esClient.searchAsync(requestBuilder.buildFacetedHitsRequest(searchRequest, index), documentClass);
+    List<CompletableFuture<co.elastic.clients.elasticsearch.core.SearchResponse<SR>>> facets =
+        requestBuilder.buildFacetsRequests(searchRequest, index, maxFacetsPerRequest).stream()
+            .map(r -> esClient.searchAsync(r, documentClass))
+            .collect(Collectors.toList());
+
+    List<CompletableFuture<?>> all = new ArrayList<>(facets);
+    all.add(hits);
+    CompletableFuture<SearchResponse<T, P>> response =
+        CompletableFuture.allOf(all.toArray(new CompletableFuture[0]))
+            .thenApply(
+                v ->
+                    responseParser.buildSplitSearchResponse(
+                        hits.join(),
+                        facets.stream().map(CompletableFuture::join).collect(Collectors.toList()),
+                        searchRequest));
+    // allOf waits for all the requests, even after one of them failed
+    all.forEach(
+        f ->
+            f.whenComplete(
+                (r, ex) -> {
+                  if (ex != null) {
+                    response.completeExceptionally(ex);
+                  }
+                }));
+    response.whenComplete(
+        (r, ex) -> {
+          // a failed request makes the others useless
+          if (ex != null) {
+            all.forEach(f -> f.cancel(true));
+          }
+        });
+    return response;
+  }
+
+  /** Stores the values of the filters read by terms lookups, see {@link LargeTermsPolicy#lookup}. */
+  private void prepareTermsLookups(SearchRequest<P> searchRequest) {
+    join(requestBuilder.prepareTermsLookups(searchRequest));
+  }
+
+  /**
+   * Executes the requests once the values of the filters read by terms lookups are stored.
+   * Cancelling the returned future cancels the requests.
+   */
+  private <V> CompletableFuture<V> afterTermsLookups(
+      SearchRequest<P> searchRequest, Supplier<CompletableFuture<V>> call) {
+    CompletableFuture<Void> prepared = requestBuilder.prepareTermsLookups(searchRequest);
+    if (prepared.isDone() && !prepared.isCompletedExceptionally()) {
+      return call.get();
+    }
+
+    CompletableFuture<CompletableFuture<V>> calls = prepared.thenApply(v -> call.get());
+    CompletableFuture<V> response = calls.thenCompose(Function.identity());
+    response.whenComplete(
+        (r, ex) -> {
+          if (response.isCancelled()) {
+            prepared.cancel(true);
+            calls.thenAccept(c -> c.cancel(true));
+          }
+        });
+    return response;
+  }
+
+  private <V> V join(CompletableFuture<V> response) {
+    try {
+      return response.get();
+    } catch (InterruptedException ex) {
+      response.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new SearchException("Search of index " + index + " interrupted", ex);
+    } catch (ExecutionException ex) {
+      Throwables.throwIfUnchecked(ex.getCause());
+      throw new SearchException("Error searching index " + index, ex.getCause());
+    }
+  }
+
+  private CompletableFuture<SearchResponse<T, P>> executeAsync(
+      SearchRequest<P> searchRequest,
+      co.elastic.clients.elasticsearch.core.SearchRequest esRequest,
+      boolean facetsOnly) {
+    CompletableFuture<co.elastic.clients.elasticsearch.core.SearchResponse<SR>> esResponse =
+        esClient.searchAsync(esRequest, documentClass);
+    CompletableFuture<SearchResponse<T, P>> response =
+        esResponse.thenApply(r -> parse(r, searchRequest, facetsOnly));
+    // dependent futures don't cancel their source
+    response.whenComplete(
+        (r, ex) -> {
+          if (response.isCancelled()) {
+            esResponse.cancel(true);
+          }
+        });
+    return response;
+  }
+
+  private SearchResponse<T, P> execute(
+      SearchRequest<P> searchRequest,
+      co.elastic.clients.elasticsearch.core.SearchRequest esRequest,
+      boolean facetsOnly) {
+    if (responseCache == null && singleFlight == null) {
+      return doExecute(searchRequest, esRequest, facetsOnly);
+    }
+
+    String fingerprint = EsResponseCache.fingerprint(esRequest, searchRequest);
+    Supplier<SearchResponse<T, P>> call = () -> doExecute(searchRequest, esRequest, facetsOnly);
+    return responseCache == null
+        ? singleFlight.execute(new FlightKey(index, fingerprint, responseParser), call)
+        : responseCache.get(index, fingerprint, responseParser, call);
+  }
+
+  private SearchResponse<T, P> doExecute(
+      SearchRequest<P> searchRequest,
+      co.elastic.clients.elasticsearch.core.SearchRequest esRequest,
+      boolean facetsOnly) {
+    try {
+      return parse(esClient.search(esRequest, documentClass), searchRequest, facetsOnly);
+    } catch (IOException ex) {
+      throw new SearchException("Error searching index " + index, ex);
+    }
+  }
+
+  private SearchResponse<T, P> executeStreamed(
+      SearchRequest<P> searchRequest, co.elastic.clients.elasticsearch.core.SearchRequest esRequest) {
+    try {
+      return esClient.search(
+          esRequest,
+          (body, mapper) -> responseParser.buildStreamedSearchResponse(body, mapper, documentClass, searchRequest));
+    } catch (IOException ex) {
+      throw new SearchException("Error searching index " + index, ex);
+    }
+  }
+
+  private SearchResponse<T, P> parse(
+      co.elastic.clients.elasticsearch.core.SearchResponse<SR> esResponse,
+      SearchRequest<P> searchRequest,
+      boolean facetsOnly) {
+    return facetsOnly
+        ? responseParser.buildFacetsOnlyResponse(esResponse, (FacetedSearchRequest<P>) searchRequest)
+        : responseParser.buildSearchResponse(esResponse, searchRequest);
+  }
+
+  private static boolean isFacetsOnly(FacetedSearchRequest<?> searchRequest) {
+    return searchRequest.getLimit() == 0;
+  }
+
+  @Value
+  private static class FlightKey {
+    String index;
+    String fingerprint;
+    // compared by identity, executors sharing a SingleFlight can parse the same response differently
+    Object parser;
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.api.model.common.search.SearchRequest;
+import org.gbif.common.search.es.EsClient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+
+/**
+ * Exports all the hits matching a search request as NDJSON, one converted result per line.
+ *
+ * <p>The export opens a point-in-time and reads it in parallel slices using search_after. Each
+ * slice converts and serializes its pages and hands them to the calling thread, which is the only
+ * one writing to the output stream. Slices block when the writer falls behind, so memory is bounded
+ * by the queue capacity plus one page per slice. Lines are written in no particular order.
+ */
+public class EsSearchExporter<T, SR, P extends SearchParameter> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EsSearchExporter.class);
+
+  private static final byte[] NEW_LINE = {'\n'};
+
+  private final EsClient esClient;
+  private final EsSearchRequestBuilder<P> requestBuilder;
+  private final Class<SR> documentClass;
+  private final Function<Hit<SR>, T> converter;
+  private final ObjectMapper objectMapper;
+  private final int slices;
+  private final int pageSize;
+  private final String keepAlive;
+
+  /**
+   * @param objectMapper used to serialize the converted results
+   * @param slices number of slices read in parallel
+   * @param pageSize number of hits requested per page
+   * @param keepAlive time to keep the point-in-time alive between requests, e.g.: 1m
+   */
+  public EsSearchExporter(
+      EsClient esClient,
+      EsSearchRequestBuilder<P> requestBuilder,
+      Class<SR> documentClass,
+      Function<Hit<SR>, T> converter,
+      ObjectMapper objectMapper,
+      int slices,
+      int pageSize,
+      String keepAlive) {
+    if (slices < 1 || pageSize < 1) {
+      throw new IllegalArgumentException("Slices and page size must be greater than 0");
+    }
+    this.esClient = esClient;
+    this.requestBuilder = requestBuilder;
+    this.documentClass = documentClass;
+    this.converter = converter;
+    this.objectMapper = objectMapper;
+    this.slices = slices;
+    this.pageSize = pageSize;
+    this.keepAlive = keepAlive;
+  }
+
+  /**
+   * Writes all the results matching the request to the output stream. Offset and limit of the
+   * request are ignored. The stream is flushed but not closed.
+   *
+   * @return the number of results written
+   */
+  public long export(SearchRequest<P> searchRequest, String index, OutputStream out)
+      throws IOException {
+    AtomicReference<String> pitId =
+        new AtomicReference<>(esClient.openPointInTime(index, keepAlive));
+    BlockingQueue<Page> queue = new ArrayBlockingQueue<>(slices * 2);
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            slices, new ThreadFactoryBuilder().setNameFormat("es-export-%d").setDaemon(true).build());
+
+    try {
+      for (int i = 0; i < slices; i++) {
+        int slice = i;
+        executor.execute(() -> exportSlice(searchRequest, slice, pitId, queue));
+      }
+
+      long count = 0;
+      int finishedSlices = 0;
+      while (finishedSlices < slices) {
+        Page page = queue.take();
+        if (page.error != null) {
+          Throwables.throwIfInstanceOf(page.error, Error.class);
+          throw new SearchException("Error exporting slice of index " + index, page.error);
+        }
+        if (page.lines == null) {
+          finishedSlices++;
+        } else {
+          out.write(page.lines);
+          count += page.count;
+        }
+      }
+      out.flush();
+      return count;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new SearchException("Export of index " + index + " interrupted", ex);
+    } finally {
+      // stops the slices that are still running, e.g.: if writing failed
+      executor.shutdownNow();
+      closePointInTime(pitId.get());
+    }
+  }
+
+  private void exportSlice(
+      SearchRequest<P> searchRequest, int slice, AtomicReference<String> pitId, BlockingQueue<Page> queue) {
+    try {
+      SearchCursor cursor = SearchCursor.start(pitId.get(), keepAlive);
+      boolean hasMore = true;
+      while (hasMore && !Thread.currentThread().isInterrupted()) {
+        // stores the terms lookups again when the export outlasts their time to live
+        requestBuilder.prepareTermsLookups(searchRequest).get();
+        SearchResponse<SR> response =
+            esClient.search(
+                requestBuilder.buildExportRequest(searchRequest, cursor, slice, slices, pageSize),
+                documentClass);
+        List<Hit<SR>> hits = response.hits().hits();
+        if (!hits.isEmpty()) {
+          queue.put(new Page(toNdjson(hits), hits.size(), null));
+        }
+
+        hasMore = hits.size() == pageSize;
+        if (hasMore) {
+          String latestPitId = Optional.ofNullable(response.pitId()).orElse(cursor.getPitId());
+          pitId.set(latestPitId);
+          cursor = cursor.next(latestPitId, hits.get(hits.size() - 1).sort());
+        }
+      }
+      queue.put(new Page(null, 0, null));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (Throwable ex) {
+      // errors thrown by the converter too, otherwise the writer would wait for this slice forever
+      LOG.error("Error exporting slice {}", slice, ex);
+      try {
+        // the writer stops at the first error it reads
+        queue.put(new Page(null, 0, ex));
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private byte[] toNdjson(List<Hit<SR>> hits) throws IOException {
+    ByteArrayOutputStream lines = new ByteArrayOutputStream();
+    for (Hit<SR> hit : hits) {
+      lines.write(objectMapper.writeValueAsBytes(converter.apply(hit)));
+      lines.write(NEW_LINE);
+    }
+    return lines.toByteArray();
+  }
+
+  private void closePointInTime(String pitId) {
+    try {
+      esClient.closePointInTime(pitId);
+    } catch (Exception ex) {
+      // the point-in-time expires anyway after its keep alive
+      LOG.warn("Error closing point-in-time {}", pitId, ex);
+    }
+  }
+
+  /** Serialized lines of a page. A page without lines marks the end of a slice or an error. */
+  private static class Page {
+    private final byte[] lines;
+    private final int count;
+    private final Throwable error;
+
+    private Page(byte[] lines, int count, Throwable error) {
+      this.lines = lines;
+      this.count = count;
+      this.error = error;
+    }
+  }
+}
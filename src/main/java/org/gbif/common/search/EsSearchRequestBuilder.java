@@ -21,17 +21,26 @@ import java.time.LocalDateTime;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.function.IntUnaryOperator;
 import java.util.stream.Collectors;
 
+import javax.annotation.Nullable;
+
 import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.LinearRing;
@@ -41,15 +50,22 @@ import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.io.ParseException;
 import org.locationtech.jts.io.WKTReader;
 import org.locationtech.jts.io.WKTWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
 
 import co.elastic.clients.elasticsearch._types.FieldValue;
 import co.elastic.clients.elasticsearch._types.GeoShapeRelation;
 import co.elastic.clients.elasticsearch._types.ScoreSort;
+import co.elastic.clients.elasticsearch._types.SortOptions;
+import co.elastic.clients.elasticsearch._types.SortOrder;
 import co.elastic.clients.elasticsearch._types.aggregations.Aggregation;
 import co.elastic.clients.elasticsearch._types.aggregations.AggregationBuilders;
+import co.elastic.clients.elasticsearch._types.aggregations.CompositeAggregation;
+import co.elastic.clients.elasticsearch._types.aggregations.CompositeAggregationSource;
 import co.elastic.clients.elasticsearch._types.aggregations.TermsAggregation;
 import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.GeoShapeQuery;
@@ -67,8 +83,6 @@ import co.elastic.clients.json.JsonData;
 import co.elastic.clients.util.NamedValue;
 
 import static org.gbif.api.model.common.search.SearchRequest.*;
-import static org.gbif.api.util.SearchTypeValidator.isDateRange;
-import static org.gbif.api.util.SearchTypeValidator.isNumericRange;
 import static org.gbif.common.search.es.indexing.EsQueryUtils.LOWER_BOUND_RANGE_PARSER;
 import static org.gbif.common.search.es.indexing.EsQueryUtils.RANGE_SEPARATOR;
 import static org.gbif.common.search.es.indexing.EsQueryUtils.RANGE_WILDCARD;
@@ -78,23 +92,104 @@ import static org.gbif.common.search.es.indexing.EsQueryUtils.extractFacetOffset
 
 public class EsSearchRequestBuilder<P extends SearchParameter> {
 
+  private static final Logger LOG = LoggerFactory.getLogger(EsSearchRequestBuilder.class);
+
   public static final String PRE_HL_TAG = "<em class=\"gbifHl\">";
   public static final String POST_HL_TAG = "</em>";
+  /** Prefix of the terms sub-aggregations of the multiselect facets. */
+  static final String FILTERED_AGGS_PREFIX = "filtered_";
   private static final int MAX_SIZE_TERMS_AGGS = 1200000;
   private static final IntUnaryOperator DEFAULT_SHARD_SIZE = size -> (size * 2) + 50000;
+  private static final SortOptions SHARD_DOC_SORT =
+      SortOptions.of(s -> s.field(f -> f.field("_shard_doc").order(SortOrder.Asc)));
 
   private EsFieldMapper<P> esFieldMapper;
 
+  private final ParamValueCodecs<P> paramValueCodecs;
+
+  private final Map<TermsQueryStrategy, LongAdder> termsQueryCounts = new EnumMap<>(TermsQueryStrategy.class);
+
   private final Highlight highlight;
 
+  private final EsQueryCache<P> queryCache;
+
+  private final GeometryCache geometryCache;
+
+  private final QueryBudgets queryBudgets;
+
   private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
 
   public EsSearchRequestBuilder(EsFieldMapper<P> esFieldMapper) {
+    this(esFieldMapper, null);
+  }
+
+  /**
+   * Creates a builder that reuses the compiled filter queries of recurring requests.
+   *
+   * @param queryCache cache of compiled queries, null disables caching
+   */
+  public EsSearchRequestBuilder(EsFieldMapper<P> esFieldMapper, @Nullable EsQueryCache<P> queryCache) {
+    this(esFieldMapper, queryCache, null);
+  }
+
+  /**
+   * Creates a builder that reuses the compiled filter queries and the parsed geometries of recurring
+   * requests.
+   *
+   * @param queryCache cache of compiled queries, null disables caching
+   * @param geometryCache cache of normalized geometries, null disables caching
+   */
+  public EsSearchRequestBuilder(
+      EsFieldMapper<P> esFieldMapper,
+      @Nullable EsQueryCache<P> queryCache,
+      @Nullable GeometryCache geometryCache) {
+    this(esFieldMapper, queryCache, geometryCache, QueryBudgets.UNLIMITED);
+  }
+
+  /**
+   * Creates a builder that limits the time and the collected documents of each type of request. The
+   * responses of requests exceeding their budget are partial, see {@link
+   * EsSearchResponse#getTimedOut()} and {@link EsSearchResponse#getTerminatedEarly()}.
+   *
+   * @param queryCache cache of compiled queries, null disables caching
+   * @param geometryCache cache of normalized geometries, null disables caching
+   * @param queryBudgets budgets of the search, faceted search, autocomplete and suggest requests
+   */
+  public EsSearchRequestBuilder(
+      EsFieldMapper<P> esFieldMapper,
+      @Nullable EsQueryCache<P> queryCache,
+      @Nullable GeometryCache geometryCache,
+      QueryBudgets queryBudgets) {
     this.esFieldMapper = esFieldMapper;
+    this.queryCache = queryCache;
+    this.geometryCache = geometryCache;
+    this.queryBudgets = queryBudgets;
+    this.paramValueCodecs = new ParamValueCodecs<>(esFieldMapper);
+    for (TermsQueryStrategy strategy : TermsQueryStrategy.values()) {
+      termsQueryCounts.put(strategy, new LongAdder());
+    }
     this.highlight = highlight();
   }
 
+  /**
+   * @return number of multi-value filters built with a strategy, see {@link LargeTermsPolicy}.
+   *     Filters are counted when their query is compiled, the queries reused from the {@link
+   *     EsQueryCache} aren't counted again.
+   */
+  public long getTermsQueryCount(TermsQueryStrategy strategy) {
+    return termsQueryCounts.get(strategy).sum();
+  }
+
+  /** Highlight of the fields not highlighted locally, null if all of them are. */
   private Highlight highlight() {
+    List<String> fields =
+        esFieldMapper.highlightingFields().stream()
+            .filter(field -> !esFieldMapper.localHighlightingFields().contains(field))
+            .collect(Collectors.toList());
+    if (fields.isEmpty() && !esFieldMapper.localHighlightingFields().isEmpty()) {
+      return null;
+    }
+
     return new Highlight.Builder()
             .preTags(PRE_HL_TAG)
             .postTags(POST_HL_TAG)
@@ -103,30 +198,92 @@ public class EsSearchRequestBuilder<P extends SearchParameter> {
             .requireFieldMatch(false)
             .numberOfFragments(0)
             .fields(
-                esFieldMapper.highlightingFields().stream()
+                fields.stream()
                     .map(field -> NamedValue.of(field, HighlightField.of(h -> h)))
                     .collect(Collectors.toList()))
             .build();
   }
   public SearchRequest buildSearchRequest(
     org.gbif.api.model.common.search.SearchRequest<P> searchRequest, String index) {
+    return buildSearchRequest(searchRequest, index, esFieldMapper.totalHitsPolicy());
+  }
 
-    SearchRequest.Builder esRequest = new SearchRequest.Builder();
+  /**
+   * Builds a search request counting the total hits as set by the policy instead of the default
+   * policy of the field mapper.
+   */
+  public SearchRequest buildSearchRequest(
+    org.gbif.api.model.common.search.SearchRequest<P> searchRequest,
+    String index,
+    TotalHitsPolicy totalHitsPolicy) {
+    return buildSearchRequest(searchRequest, index, totalHitsPolicy, null);
+  }
+
+  /**
+   * Builds a search request whose hits only return the fields of a projection, e.g.: for list views
+   * that only need a few fields.
+   */
+  public SearchRequest buildSearchRequest(
+    org.gbif.api.model.common.search.SearchRequest<P> searchRequest,
+    String index,
+    FieldProjection projection) {
+    return buildSearchRequest(searchRequest, index, esFieldMapper.totalHitsPolicy(), projection);
+  }
+
+  /**
+   * Builds a search request counting the total hits as set by the policy and returning the fields of
+   * a projection.
+   *
+   * @param projection fields of the hits, null for the source filtering of the field mapper
+   */
+  public SearchRequest buildSearchRequest(
+    org.gbif.api.model.common.search.SearchRequest<P> searchRequest,
+    String index,
+    TotalHitsPolicy totalHitsPolicy,
+    @Nullable FieldProjection projection) {
+
+    SearchRequest.Builder esRequest = searchRequestBuilder(searchRequest, totalHitsPolicy);
     esRequest.index(index);
-    esRequest.trackTotalHits(h -> h.enabled(true));
-    esRequest.source(s -> s.filter(f -> f.excludes(esFieldMapper.excludeFields())
-                                         .includes(esFieldMapper.getMappedFields())));
+    if (projection != null) {
+      projection.apply(esRequest, esFieldMapper.excludeFields());
+    }
+    queryBudgets.get(QueryBudgets.RequestType.SEARCH).apply(esRequest);
 
     // size and offset
     esRequest.size(searchRequest.getLimit());
     esRequest.from((int) searchRequest.getOffset());
 
+    return esRequest.build();
+  }
+
+  /**
+   * Builds a request for the page of a point-in-time pointed by a cursor. The offset of the search
+   * request is ignored and the _shard_doc tiebreaker is added to the sorting. The query budget isn't
+   * applied, a partial page would skip hits of the point-in-time.
+   */
+  public SearchRequest buildSearchAfterRequest(
+    org.gbif.api.model.common.search.SearchRequest<P> searchRequest, SearchCursor cursor) {
+
+    SearchRequest.Builder esRequest = searchRequestBuilder(searchRequest, esFieldMapper.totalHitsPolicy());
+    cursorPaging(esRequest, searchRequest.getLimit(), cursor);
+
+    return esRequest.build();
+  }
+
+  private SearchRequest.Builder searchRequestBuilder(
+    org.gbif.api.model.common.search.SearchRequest<P> searchRequest, TotalHitsPolicy totalHitsPolicy) {
+
+    SearchRequest.Builder esRequest = new SearchRequest.Builder();
+    esRequest.trackTotalHits(totalHitsPolicy.toTrackHits());
+    esRequest.source(s -> s.filter(f -> f.excludes(esFieldMapper.excludeFields())
+                                         .includes(esFieldMapper.getMappedFields())));
+
     // sort
     if (Strings.isNullOrEmpty(searchRequest.getQ())) {
       esRequest.sort(esFieldMapper.sorts());
     } else {
       esRequest.sort(s -> s.score(new ScoreSort.Builder().build()));
-      if (searchRequest.isHighlight()) {
+      if (searchRequest.isHighlight() && highlight != null) {
         esRequest.highlight(highlight);
       }
     }
@@ -139,29 +296,233 @@ public class EsSearchRequestBuilder<P extends SearchParameter> {
         .ifPresent(q -> esRequest.query(new Query.Builder().bool(q).build()));
     }
 
+    return esRequest;
+  }
+
+  /**
+   * Builds a request to export a slice of all the hits of a point-in-time. Only the _shard_doc sort
+   * is used and total hits are not tracked since they aren't needed to iterate over all the results.
+   *
+   * @param sliceId slice to read, ignored if maxSlices is 1
+   * @param maxSlices number of slices the export is split into
+   * @param pageSize number of hits per request
+   */
+  public SearchRequest buildExportRequest(
+    org.gbif.api.model.common.search.SearchRequest<P> searchRequest,
+    SearchCursor cursor,
+    int sliceId,
+    int maxSlices,
+    int pageSize) {
+
+    SearchRequest.Builder esRequest = new SearchRequest.Builder();
+    esRequest.trackTotalHits(h -> h.enabled(false));
+    esRequest.source(s -> s.filter(f -> f.excludes(esFieldMapper.excludeFields())
+                                         .includes(esFieldMapper.getMappedFields())));
+
+    // add query
+    if (!SearchConstants.QUERY_WILDCARD.equals(searchRequest.getQ())) {
+      buildQuery(searchRequest.getParameters(), searchRequest.getQ(), searchRequest.getQFields())
+        .ifPresent(q -> esRequest.query(new Query.Builder().bool(q).build()));
+    }
+
+    if (maxSlices > 1) {
+      esRequest.slice(s -> s.id(String.valueOf(sliceId)).max(maxSlices));
+    }
+    cursorPaging(esRequest, pageSize, cursor);
+
     return esRequest.build();
   }
 
   public SearchRequest buildFacetedSearchRequest(
       FacetedSearchRequest<P> searchRequest, boolean facetsEnabled, String index) {
+    return buildFacetedSearchRequest(searchRequest, facetsEnabled, index, esFieldMapper.totalHitsPolicy());
+  }
 
-    SearchRequest.Builder esRequest = new SearchRequest.Builder();
+  /**
+   * Builds a faceted search request counting the total hits as set by the policy instead of the
+   * default policy of the field mapper.
+   */
+  public SearchRequest buildFacetedSearchRequest(
+      FacetedSearchRequest<P> searchRequest,
+      boolean facetsEnabled,
+      String index,
+      TotalHitsPolicy totalHitsPolicy) {
+    return buildFacetedSearchRequest(searchRequest, facetsEnabled, index, totalHitsPolicy, null);
+  }
+
+  /** Builds a faceted search request whose hits only return the fields of a projection. */
+  public SearchRequest buildFacetedSearchRequest(
+      FacetedSearchRequest<P> searchRequest,
+      boolean facetsEnabled,
+      String index,
+      FieldProjection projection) {
+    return buildFacetedSearchRequest(
+        searchRequest, facetsEnabled, index, esFieldMapper.totalHitsPolicy(), projection);
+  }
+
+  /**
+   * Builds a faceted search request counting the total hits as set by the policy and returning the
+   * fields of a projection.
+   *
+   * @param projection fields of the hits, null for the source filtering of the field mapper
+   */
+  public SearchRequest buildFacetedSearchRequest(
+      FacetedSearchRequest<P> searchRequest,
+      boolean facetsEnabled,
+      String index,
+      TotalHitsPolicy totalHitsPolicy,
+      @Nullable FieldProjection projection) {
+
+    SearchRequest.Builder esRequest = facetedSearchRequestBuilder(searchRequest, facetsEnabled, totalHitsPolicy);
     esRequest.index(index);
-    esRequest.trackTotalHits(v -> v.enabled(true));
+    if (projection != null) {
+      projection.apply(esRequest, esFieldMapper.excludeFields());
+    }
+    queryBudgets.get(QueryBudgets.RequestType.FACETED_SEARCH).apply(esRequest);
 
-    esRequest.source(s -> s.filter(f -> f.excludes(esFieldMapper.excludeFields())
-      .includes(esFieldMapper.getMappedFields())));
+    // size and offset
+    esRequest.size(searchRequest.getLimit());
+    esRequest.from((int) searchRequest.getOffset());
+
+    return esRequest.build();
+  }
+
+  /**
+   * Builds a faceted request for the page of a point-in-time pointed by a cursor. The offset of the
+   * search request is ignored and the _shard_doc tiebreaker is added to the sorting. The query
+   * budget isn't applied, a partial page would skip hits of the point-in-time.
+   */
+  public SearchRequest buildFacetedSearchAfterRequest(
+      FacetedSearchRequest<P> searchRequest, boolean facetsEnabled, SearchCursor cursor) {
+
+    SearchRequest.Builder esRequest =
+        facetedSearchRequestBuilder(searchRequest, facetsEnabled, esFieldMapper.totalHitsPolicy());
+    if (!Strings.isNullOrEmpty(searchRequest.getQ())) {
+      // sort by score explicitly, otherwise the tiebreaker would be the only sort
+      esRequest.sort(s -> s.score(new ScoreSort.Builder().build()));
+    }
+    cursorPaging(esRequest, searchRequest.getLimit(), cursor);
+
+    return esRequest.build();
+  }
+
+  /**
+   * Builds a request for the count and the facets of a faceted search request, e.g.: for requests
+   * with a limit of 0. The request has no hits, source, sorting nor highlighting, and can be served
+   * from the shard request cache of Elasticsearch. The post-filter is kept since it changes the
+   * count, and so is the total hits policy of the field mapper.
+   */
+  public SearchRequest buildFacetsOnlyRequest(
+      FacetedSearchRequest<P> searchRequest, boolean facetsEnabled, String index) {
+    SearchRequest facetedRequest =
+        facetedSearchRequestBuilder(searchRequest, facetsEnabled, esFieldMapper.totalHitsPolicy()).build();
+
+    QueryBudget budget = queryBudgets.get(QueryBudgets.RequestType.FACETED_SEARCH);
+    return SearchRequest.of(s -> budget.apply(s).index(index)
+                                  .size(0)
+                                  .source(src -> src.fetch(false))
+                                  .requestCache(true)
+                                  .trackTotalHits(facetedRequest.trackTotalHits())
+                                  .query(facetedRequest.query())
+                                  .postFilter(facetedRequest.postFilter())
+                                  .aggregations(facetedRequest.aggregations()));
+  }
+
+  /**
+   * Builds the hits part of a faceted search request split in several requests: the request has the
+   * hits, sorting, highlighting and post-filter but no aggregations. The facets are requested with
+   * {@link #buildFacetsRequests}.
+   */
+  public SearchRequest buildFacetedHitsRequest(FacetedSearchRequest<P> searchRequest, String index) {
+    return buildFacetedSearchRequest(searchRequest, false, index, esFieldMapper.totalHitsPolicy());
+  }
+
+  /**
+   * Builds the aggregation-only requests of a faceted search request split in several requests. The
+   * requests don't return hits nor count them, so Elasticsearch can serve them from its shard request
+   * cache, and they don't change when only the page of hits changes.
+   *
+   * @param maxFacetsPerRequest maximum number of facet aggregations per request, facets sharing a
+   *     multiselect filter aggregation count as one
+   * @return the requests, empty if there are no facets to request
+   */
+  public List<SearchRequest> buildFacetsRequests(
+      FacetedSearchRequest<P> searchRequest, String index, int maxFacetsPerRequest) {
+    if (maxFacetsPerRequest < 1) {
+      throw new IllegalArgumentException("Max facets per request must be greater than 0");
+    }
+
+    SearchRequest facetedRequest =
+        facetedSearchRequestBuilder(searchRequest, true, TotalHitsPolicy.DISABLED).build();
+    if (facetedRequest.aggregations().isEmpty()) {
+      return Collections.emptyList();
+    }
+
+    // the aggs are computed on the query results, the post-filter only applies to the hits
+    QueryBudget budget = queryBudgets.get(QueryBudgets.RequestType.FACETED_SEARCH);
+    List<SearchRequest> requests = new ArrayList<>();
+    List<Map.Entry<String, Aggregation>> aggs = new ArrayList<>(facetedRequest.aggregations().entrySet());
+    for (int i = 0; i < aggs.size(); i += maxFacetsPerRequest) {
+      Map<String, Aggregation> chunk = new HashMap<>();
+      aggs.subList(i, Math.min(aggs.size(), i + maxFacetsPerRequest))
+          .forEach(e -> chunk.put(e.getKey(), e.getValue()));
+      requests.add(SearchRequest.of(s -> budget.apply(s).index(index)
+                                          .size(0)
+                                          .trackTotalHits(t -> t.enabled(false))
+                                          .requestCache(true)
+                                          .query(facetedRequest.query())
+                                          .aggregations(chunk)));
+    }
+    return requests;
+  }
+
+  /**
+   * Builds a faceted search request whose facets are paged with composite aggregations instead of
+   * terms aggregations. Each facet returns up to its facet limit of values, sorted by value, after
+   * the position of its cursor, so deep pages cost the same as the first one. Facet offsets are
+   * ignored, the facet min count is only applied to the values of each page, and multiselect facets
+   * aren't supported because composite aggregations can't be nested in filter aggregations.
+   *
+   * @param facetCursors cursors returned in a previous response, facets without a cursor start at
+   *     their first value
+   */
+  public SearchRequest buildCompositeFacetedSearchRequest(
+      FacetedSearchRequest<P> searchRequest, @Nullable Map<P, String> facetCursors, String index) {
+    if (searchRequest.isFacetMultiSelect()
+        && searchRequest.getFacets() != null
+        && searchRequest.getParameters().keySet().stream().anyMatch(searchRequest.getFacets()::contains)) {
+      throw new IllegalArgumentException("Multiselect facets are not supported with composite facet paging");
+    }
+
+    SearchRequest.Builder esRequest =
+        facetedSearchRequestBuilder(searchRequest, false, esFieldMapper.totalHitsPolicy());
+    esRequest.index(index);
+    queryBudgets.get(QueryBudgets.RequestType.FACETED_SEARCH).apply(esRequest);
 
     // size and offset
     esRequest.size(searchRequest.getLimit());
     esRequest.from((int) searchRequest.getOffset());
 
+    buildCompositeFacets(searchRequest, facetCursors).ifPresent(esRequest::aggregations);
+
+    return esRequest.build();
+  }
+
+  private SearchRequest.Builder facetedSearchRequestBuilder(
+      FacetedSearchRequest<P> searchRequest, boolean facetsEnabled, TotalHitsPolicy totalHitsPolicy) {
+
+    SearchRequest.Builder esRequest = new SearchRequest.Builder();
+    esRequest.trackTotalHits(totalHitsPolicy.toTrackHits());
+
+    esRequest.source(s -> s.filter(f -> f.excludes(esFieldMapper.excludeFields())
+      .includes(esFieldMapper.getMappedFields())));
+
     // sort
     if (Strings.isNullOrEmpty(searchRequest.getQ())) {
       esRequest.sort(esFieldMapper.sorts());
     } else {
       esRequest.query( q ->  q.matchAll(new MatchAllQuery.Builder().build()));
-      if (searchRequest.isHighlight()) {
+      if (searchRequest.isHighlight() && highlight != null) {
         esRequest.highlight(highlight);
       }
     }
@@ -177,17 +538,31 @@ public class EsSearchRequestBuilder<P extends SearchParameter> {
           .ifPresent(b -> esRequest.query(new Query.Builder().bool(b).build()));
     }
 
+    // the post-filter clauses are built once and shared by the post-filter and the multiselect aggs
+    Map<P, List<Query>> postFilterClauses = buildPostFilterClauses(groupedParams.postFilterParams);
+
     // add aggs
-    buildAggregations(searchRequest, groupedParams.postFilterParams, facetsEnabled)
+    buildAggregations(searchRequest, postFilterClauses, facetsEnabled)
         .ifPresent(esRequest::aggregations);
 
     // post-filter
-    buildPostFilter(groupedParams.postFilterParams)
+    buildPostFilter(postFilterClauses)
       .ifPresent(pf -> esRequest.postFilter(new Query.Builder()
                                               .bool(pf.build())
                                               .build()));
 
-    return esRequest.build();
+    return esRequest;
+  }
+
+  private static void cursorPaging(SearchRequest.Builder esRequest, int limit, SearchCursor cursor) {
+    esRequest.size(limit);
+    esRequest.pit(p -> p.id(cursor.getPitId()).keepAlive(k -> k.time(cursor.getKeepAlive())));
+
+    // tiebreaker to have a total order of the hits
+    esRequest.sort(SHARD_DOC_SORT);
+    if (!cursor.getSearchAfter().isEmpty()) {
+      esRequest.searchAfter(cursor.getSearchAfter());
+    }
   }
 
   public Optional<BoolQuery> buildQueryNode(FacetedSearchRequest<P> searchRequest) {
@@ -220,6 +595,7 @@ public class EsSearchRequestBuilder<P extends SearchParameter> {
 
     SearchRequest.Builder request = new SearchRequest.Builder();
     request.index(index);
+    queryBudgets.get(QueryBudgets.RequestType.AUTOCOMPLETE).apply(request);
 
     request.size(searchRequest.getLimit());
     request.from(Math.max(0, (int) searchRequest.getOffset()));
@@ -235,6 +611,7 @@ public class EsSearchRequestBuilder<P extends SearchParameter> {
   public SearchRequest buildSuggestQuery(String prefix, P parameter, Integer limit, String index) {
     SearchRequest.Builder request = new SearchRequest.Builder();
     request.index(index);
+    queryBudgets.get(QueryBudgets.RequestType.SUGGEST).apply(request);
 
     String esField = esFieldMapper.get(parameter);
 
@@ -254,6 +631,13 @@ public class EsSearchRequestBuilder<P extends SearchParameter> {
   }
 
   private Optional<BoolQuery> buildQuery(Map<P, Set<String>> params, String qParam, Set<QueryField> queryFields) {
+    if (queryCache == null || usesTermsLookup(params)) {
+      return compileQuery(params, qParam, queryFields);
+    }
+    return queryCache.get(params, qParam, queryFields, () -> compileQuery(params, qParam, queryFields));
+  }
+
+  private Optional<BoolQuery> compileQuery(Map<P, Set<String>> params, String qParam, Set<QueryField> queryFields) {
     // create bool node
     BoolQuery.Builder bool = QueryBuilders.bool();
 
@@ -309,29 +693,31 @@ public class EsSearchRequestBuilder<P extends SearchParameter> {
     return groupedParams;
   }
 
-  private Optional<BoolQuery.Builder> buildPostFilter(Map<P, Set<String>> postFilterParams) {
+  private Map<P, List<Query>> buildPostFilterClauses(Map<P, Set<String>> postFilterParams) {
     if (postFilterParams == null || postFilterParams.isEmpty()) {
-      return Optional.empty();
+      return Collections.emptyMap();
     }
 
-    BoolQuery.Builder bool = QueryBuilders.bool();
+    Map<P, List<Query>> clauses = new LinkedHashMap<>();
+    postFilterParams.forEach((k, v) -> clauses.put(k, buildTermQuery(v, k, esFieldMapper.get(k))));
+    return clauses;
+  }
 
+  private Optional<BoolQuery.Builder> buildPostFilter(Map<P, List<Query>> postFilterClauses) {
+    if (postFilterClauses.isEmpty()) {
+      return Optional.empty();
+    }
 
+    BoolQuery.Builder bool = QueryBuilders.bool();
     bool.filter(
-            postFilterParams.entrySet().stream()
-                .flatMap(
-                    e ->
-                      buildTermQuery(e.getValue(), e.getKey(), esFieldMapper.get(e.getKey()))
-                            .stream())
-              .collect(Collectors.toList()));
-
+        postFilterClauses.values().stream().flatMap(List::stream).collect(Collectors.toList()));
 
     return Optional.of(bool);
   }
 
   private Optional<Map<String,Aggregation>> buildAggregations(
       FacetedSearchRequest<P> searchRequest,
-      Map<P, Set<String>> postFilterParams,
+      Map<P, List<Query>> postFilterClauses,
       boolean facetsEnabled) {
     if (!facetsEnabled
         || searchRequest.getFacets() == null
@@ -339,61 +725,67 @@ public class EsSearchRequestBuilder<P extends SearchParameter> {
       return Optional.empty();
     }
 
-    if (searchRequest.isFacetMultiSelect()
-        && postFilterParams != null
-        && !postFilterParams.isEmpty()) {
-      return Optional.of(buildFacetsMultiselect(searchRequest, postFilterParams));
+    if (searchRequest.isFacetMultiSelect() && !postFilterClauses.isEmpty()) {
+      return Optional.of(buildFacetsMultiselect(searchRequest, postFilterClauses));
     }
 
     return Optional.of(buildFacets(searchRequest));
   }
 
+  /**
+   * Each facet is filtered by the post-filter clauses of all the other parameters. Facets with the
+   * same set of other parameters, e.g.: facets that aren't used as filters, share a single filter
+   * aggregation with a {@code filtered_<field>} terms sub-aggregation per facet. The filter
+   * aggregation is named after the field of its first facet.
+   */
   private Map<String,Aggregation> buildFacetsMultiselect(
-      FacetedSearchRequest<P> searchRequest, Map<P, Set<String>> postFilterParams) {
+      FacetedSearchRequest<P> searchRequest, Map<P, List<Query>> postFilterClauses) {
 
     if (searchRequest.getFacets().size() == 1) {
       // same case as normal facets
       return buildFacets(searchRequest);
     }
 
-    Map<String,Aggregation> facets = new HashMap<>();
+    // group the facets by the parameters used to filter them
+    Map<Set<P>, List<P>> facetsByFilterParams = new LinkedHashMap<>();
     searchRequest.getFacets().stream()
         .filter(p -> esFieldMapper.get(p) != null)
         .forEach(
             facetParam -> {
-
-              // build filter aggs
-              List<Query> filter =
-                      postFilterParams.entrySet().stream()
-                          .filter(entry -> entry.getKey() != facetParam)
-                          .flatMap(
-                              e ->
-                                  buildTermQuery(
-                                      e.getValue(), e.getKey(), esFieldMapper.get(e.getKey()))
-                                      .stream())
-                          .collect(Collectors.toList());
-
-              // add filter to the aggs
-              String esField = esFieldMapper.get(facetParam);
-
-
-              Query filterAggs = AggregationBuilders.filter().bool(b -> b.filter(filter)).build();
-
-
-              // build terms aggs and add it to the filter aggs
-              TermsAggregation termsAggs =
-                  buildTermsAggs(
-                      esField,
-                      extractFacetOffset(searchRequest, facetParam),
-                      extractFacetLimit(searchRequest, facetParam),
-                      searchRequest.getFacetMinCount());
-
-              facets.put(esField, Aggregation.of(ab -> ab.filter(filterAggs)
-                .aggregations("filtered_" + esField,
-                                                  Aggregation.of(ta -> ta.terms(termsAggs)))));
-
+              Set<P> filterParams = new HashSet<>(postFilterClauses.keySet());
+              filterParams.remove(facetParam);
+              facetsByFilterParams.computeIfAbsent(filterParams, k -> new ArrayList<>()).add(facetParam);
             });
 
+    Map<String,Aggregation> facets = new HashMap<>();
+    facetsByFilterParams.forEach(
+        (filterParams, facetParams) -> {
+
+          // build filter aggs
+          List<Query> filter =
+              filterParams.stream()
+                  .flatMap(p -> postFilterClauses.get(p).stream())
+                  .collect(Collectors.toList());
+          Query filterAggs = AggregationBuilders.filter().bool(b -> b.filter(filter)).build();
+
+          // build terms aggs and add them to the filter aggs
+          Map<String,Aggregation> termsAggs = new HashMap<>();
+          facetParams.forEach(
+              facetParam -> {
+                String esField = esFieldMapper.get(facetParam);
+                TermsAggregation ta =
+                    buildTermsAggs(
+                        esField,
+                        extractFacetOffset(searchRequest, facetParam),
+                        extractFacetLimit(searchRequest, facetParam),
+                        searchRequest.getFacetMinCount());
+                termsAggs.put(FILTERED_AGGS_PREFIX + esField, Aggregation.of(a -> a.terms(ta)));
+              });
+
+          facets.put(esFieldMapper.get(facetParams.get(0)),
+                     Aggregation.of(ab -> ab.filter(filterAggs).aggregations(termsAggs)));
+        });
+
     return facets;
   }
 
@@ -413,6 +805,35 @@ public class EsSearchRequestBuilder<P extends SearchParameter> {
      return facets;
   }
 
+  private Optional<Map<String,Aggregation>> buildCompositeFacets(
+      FacetedSearchRequest<P> searchRequest, @Nullable Map<P, String> facetCursors) {
+    if (searchRequest.getFacets() == null || searchRequest.getFacets().isEmpty()) {
+      return Optional.empty();
+    }
+
+    Map<String,Aggregation> facets = new HashMap<>();
+    searchRequest.getFacets().stream()
+        .filter(p -> esFieldMapper.get(p) != null)
+        .forEach(
+            facetParam -> {
+              String esField = esFieldMapper.get(facetParam);
+              CompositeAggregation.Builder composite =
+                  new CompositeAggregation.Builder()
+                      .size(extractFacetLimit(searchRequest, facetParam))
+                      .sources(Collections.singletonMap(esField,
+                          CompositeAggregationSource.of(s -> s.terms(t -> t.field(esField)))));
+
+              // continue after the last value of the previous page
+              Optional.ofNullable(facetCursors)
+                  .map(c -> c.get(facetParam))
+                  .ifPresent(c -> composite.after(esField, FacetCursor.decode(c)));
+
+              CompositeAggregation compositeAggs = composite.build();
+              facets.put(esField, Aggregation.of(a -> a.composite(compositeAggs)));
+            });
+    return Optional.of(facets);
+  }
+
   private TermsAggregation buildTermsAggs(String esField, int facetOffset, int facetLimit, Integer minCount) {
     // build aggs for the field
     TermsAggregation.Builder builder = AggregationBuilders.terms().field(esField);
@@ -450,22 +871,27 @@ public class EsSearchRequestBuilder<P extends SearchParameter> {
 
   private List<Query> buildTermQuery(Collection<String> values, P param, String esField) {
 
-    Query.Builder builder = new Query.Builder();
     if (esFieldMapper.isSpatialParameter(param)) {
-      return values.stream()
-              .map(v -> builder.geoShape(buildGeoShapeQuery(v, esField).build()).build())
-              .collect(Collectors.toList());
+      GeometrySimplifier simplifier = esFieldMapper.getGeometrySimplifier(param);
+      List<Query> queries = new ArrayList<>();
+      for (String value : values) {
+        GeometryCache.Shape shape = shape(value, simplifier, geometryCache);
+        // cheap prefilter to discard most of the documents before evaluating the shape relation
+        buildBoundingBoxQuery(shape.getEnvelope(), esField).ifPresent(queries::add);
+        queries.add(new Query.Builder().geoShape(geoShapeQuery(shape, esField).build()).build());
+      }
+      return queries;
     }
 
     List<Query> queries = new ArrayList<>();
     // collect queries for each value
     List<FieldValue> parsedValues = new ArrayList<>();
     for (String value : values) {
-      if (isNumericRange(value) || isDateRange(value) && value.contains(RANGE_SEPARATOR)) {
+      if (ParamValueCodecs.isRange(value)) {
         queries.add(new Query.Builder().range(buildRangeQuery(esField, value)).build());
         continue;
       }
-      parsedValues.add(esFieldMapper.parseParamValue(value, param));
+      parsedValues.add(paramValueCodecs.parse(value, param));
     }
 
     if (parsedValues.size() == 1) {
@@ -473,14 +899,99 @@ public class EsSearchRequestBuilder<P extends SearchParameter> {
       queries.add(new Query.Builder().term(t -> t.field(esField).value(parsedValues.get(0))).build());
     } else if (parsedValues.size() > 1) {
       // multi term query
-      queries.add(new Query.Builder()
-                    .terms(t -> t.field(esField)
-                                 .terms(new TermsQueryField.Builder().value(parsedValues).build()))
-                    .build());
+      queries.add(buildTermsQuery(esField, parsedValues));
     }
     return queries;
   }
 
+  /** Terms query split or read from a lookup store as set by the large terms policy of the mapper. */
+  private Query buildTermsQuery(String esField, List<FieldValue> values) {
+    LargeTermsPolicy policy = esFieldMapper.largeTermsPolicy();
+    TermsQueryStrategy strategy = policy.strategy(values.size());
+    if (strategy == TermsQueryStrategy.TERMS) {
+      termsQueryCounts.get(strategy).increment();
+      return termsQuery(esField, new TermsQueryField.Builder().value(values).build());
+    }
+    LOG.debug("Filter of field {} with {} values sent as {} queries", esField, values.size(), strategy);
+
+    List<Query> chunks = new ArrayList<>();
+    for (List<FieldValue> chunk : Lists.partition(values, policy.getChunkSize())) {
+      if (strategy == TermsQueryStrategy.LOOKUP) {
+        TermsLookupStore store = policy.getLookupStore();
+        String id = TermsLookupStore.id(chunk);
+        if (!store.isStored(id)) {
+          throw new IllegalStateException(
+              "Values of field " + esField + " aren't in the lookup store, see prepareTermsLookups");
+        }
+        chunks.add(
+            termsQuery(
+                esField,
+                TermsQueryField.of(
+                    t -> t.lookup(l -> l.index(store.getIndex()).id(id).path(TermsLookupStore.TERMS_FIELD)))));
+      } else {
+        chunks.add(termsQuery(esField, new TermsQueryField.Builder().value(chunk).build()));
+      }
+    }
+    termsQueryCounts.get(strategy).increment();
+    return chunks.size() == 1
+        ? chunks.get(0)
+        : Query.of(q -> q.bool(b -> b.should(chunks).minimumShouldMatch("1")));
+  }
+
+  /**
+   * Stores the values of the filters read by terms lookup queries, the requests of a search request
+   * can only be built once the returned future completes. Nothing is stored when the large terms
+   * policy of the mapper has no lookup store.
+   *
+   * @return future completed once the values are in the lookup store
+   */
+  public CompletableFuture<Void> prepareTermsLookups(
+      org.gbif.api.model.common.search.SearchRequest<P> searchRequest) {
+    LargeTermsPolicy policy = esFieldMapper.largeTermsPolicy();
+    if (!usesTermsLookup(searchRequest.getParameters())) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    List<CompletableFuture<String>> stored = new ArrayList<>();
+    searchRequest
+        .getParameters()
+        .forEach(
+            (param, values) -> {
+              if (values == null
+                  || esFieldMapper.get(param) == null
+                  || esFieldMapper.isSpatialParameter(param)) {
+                return;
+              }
+              List<FieldValue> parsedValues =
+                  values.stream()
+                      .filter(v -> !ParamValueCodecs.isRange(v))
+                      .map(v -> paramValueCodecs.parse(v, param))
+                      .collect(Collectors.toList());
+              if (parsedValues.size() > 1
+                  && policy.strategy(parsedValues.size()) == TermsQueryStrategy.LOOKUP) {
+                for (List<FieldValue> chunk : Lists.partition(parsedValues, policy.getChunkSize())) {
+                  stored.add(policy.getLookupStore().storeAsync(chunk));
+                }
+              }
+            });
+    return CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0]));
+  }
+
+  private static Query termsQuery(String esField, TermsQueryField termsQueryField) {
+    return new Query.Builder().terms(t -> t.field(esField).terms(termsQueryField)).build();
+  }
+
+  /**
+   * Queries reading values from a lookup store aren't cached, the lookup documents are deleted when
+   * they aren't stored again.
+   */
+  private boolean usesTermsLookup(Map<P, Set<String>> params) {
+    LargeTermsPolicy policy = esFieldMapper.largeTermsPolicy();
+    return params != null
+        && policy.getLookupStore() != null
+        && params.values().stream().anyMatch(v -> v != null && v.size() >= policy.getLookupThreshold());
+  }
+
   private RangeQuery buildRangeQuery(String esField, String value) {
     if (esFieldMapper.isDateField(esField)) {
       String[] values = value.split(RANGE_SEPARATOR);
@@ -564,17 +1075,94 @@ public class EsSearchRequestBuilder<P extends SearchParameter> {
   }
 
   public static GeoShapeQuery.Builder buildGeoShapeQuery(String wkt, String fieldName) {
+    return buildGeoShapeQuery(wkt, fieldName, null, null);
+  }
 
-    Geometry geometry = normalize(readGeometry(wkt));
-
-    WKTWriter wktWriter = new WKTWriter();
+  /**
+   * Builds a geo_shape WITHIN query, looking up the normalized shape in the geometry cache first.
+   *
+   * @param simplifier simplification applied after normalizing the geometry, null to keep all the
+   *     vertices
+   * @param geometryCache cache of normalized geometries, null to always parse the WKT
+   */
+  public static GeoShapeQuery.Builder buildGeoShapeQuery(
+      String wkt,
+      String fieldName,
+      @Nullable GeometrySimplifier simplifier,
+      @Nullable GeometryCache geometryCache) {
+
+    return geoShapeQuery(shape(wkt, simplifier, geometryCache), fieldName);
+  }
 
+  private static GeoShapeQuery.Builder geoShapeQuery(GeometryCache.Shape shape, String fieldName) {
     return QueryBuilders.geoShape()
             .field(fieldName)
-            .shape(b -> b.shape(JsonData.of(wktWriter.write(geometry)))
+            .shape(b -> b.shape(JsonData.of(shape.getWkt()))
                          .relation(GeoShapeRelation.Within));
   }
 
+  /**
+   * Builds a geo_bounding_box query from the envelope of a shape. Envelopes of 180 degrees or wider
+   * are ambiguous, Elasticsearch can interpret them as polygons crossing the dateline, so no query is
+   * built for them. Longitudes outside [-180, 180] are wrapped, envelopes partially outside it produce
+   * a bounding box crossing the dateline, i.e.: left > right.
+   */
+  @VisibleForTesting
+  static Optional<Query> buildBoundingBoxQuery(@Nullable Envelope envelope, String fieldName) {
+    if (envelope == null || envelope.isNull() || envelope.getWidth() >= 180) {
+      return Optional.empty();
+    }
+
+    double left = wrapLongitude(envelope.getMinX());
+    double right = wrapLongitude(envelope.getMaxX());
+    return Optional.of(
+        Query.of(
+            q ->
+                q.geoBoundingBox(
+                    b ->
+                        b.field(fieldName)
+                            .boundingBox(
+                                bb ->
+                                    bb.coords(
+                                        c ->
+                                            c.top(envelope.getMaxY())
+                                                .bottom(envelope.getMinY())
+                                                .left(left)
+                                                .right(right))))));
+  }
+
+  private static double wrapLongitude(double longitude) {
+    if (longitude >= -180 && longitude <= 180) {
+      return longitude;
+    }
+    double wrapped = ((longitude + 180) % 360 + 360) % 360 - 180;
+    // -180 and 180 are the same meridian, 180 keeps the right side of the box east of the left side
+    return wrapped == -180 && longitude > 0 ? 180 : wrapped;
+  }
+
+  private static GeometryCache.Shape shape(
+      String wkt, @Nullable GeometrySimplifier simplifier, @Nullable GeometryCache geometryCache) {
+    return geometryCache != null
+        ? geometryCache.get(wkt, simplifier, () -> toShape(wkt, simplifier))
+        : toShape(wkt, simplifier);
+  }
+
+  private static GeometryCache.Shape toShape(String wkt, @Nullable GeometrySimplifier simplifier) {
+    Geometry geometry = normalize(readGeometry(wkt));
+    if (simplifier != null) {
+      geometry = simplifier.simplify(geometry);
+    }
+
+    // only polygonal shapes use a bounding box prefilter
+    Envelope envelope =
+        geometry instanceof Polygon || geometry instanceof MultiPolygon
+            ? geometry.getEnvelopeInternal()
+            : null;
+
+    return new GeometryCache.Shape(
+        new WKTWriter().write(geometry), geometry.getNumPoints(), envelope);
+  }
+
   /** Eliminates consecutive duplicates. The order is preserved. */
   @VisibleForTesting
   static Coordinate[] normalizePolygonCoordinates(Coordinate[] coordinates) {
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.api.model.common.search.SearchRequest;
+import org.gbif.api.model.common.search.SearchResponse;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * {@link SearchResponse} with Elasticsearch specific information. The additional properties are
+ * only serialized when they are set.
+ */
+public class EsSearchResponse<T, P extends SearchParameter> extends SearchResponse<T, P> {
+
+  private String next;
+
+  private Boolean countLowerBound;
+
+  private Map<P, String> facetCursors;
+
+  private Boolean timedOut;
+
+  private Boolean terminatedEarly;
+
+  public EsSearchResponse(SearchRequest<P> searchRequest) {
+    super(searchRequest);
+  }
+
+  /** @return opaque token to request the next page, null when there are no more results */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public String getNext() {
+    return next;
+  }
+
+  public void setNext(String next) {
+    this.next = next;
+  }
+
+  /**
+   * @return true if the count is a lower bound of the number of hits, i.e.: the hits were only
+   *     counted up to a threshold, null if the count is exact or not available
+   */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Boolean getCountLowerBound() {
+    return countLowerBound;
+  }
+
+  public void setCountLowerBound(Boolean countLowerBound) {
+    this.countLowerBound = countLowerBound;
+  }
+
+  /**
+   * @return opaque tokens to request the next page of the facets paged with composite aggregations,
+   *     facets without more values have no token
+   */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Map<P, String> getFacetCursors() {
+    return facetCursors;
+  }
+
+  public void setFacetCursors(Map<P, String> facetCursors) {
+    this.facetCursors = facetCursors;
+  }
+
+  /**
+   * @return true if the search timed out in some shard and the results are partial, null
+   *     otherwise, see {@link QueryBudget}
+   */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Boolean getTimedOut() {
+    return timedOut;
+  }
+
+  public void setTimedOut(Boolean timedOut) {
+    this.timedOut = timedOut;
+  }
+
+  /**
+   * @return true if some shard stopped collecting documents after its terminate_after limit, the
+   *     results and the count are partial, null otherwise, see {@link QueryBudget}
+   */
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Boolean getTerminatedEarly() {
+    return terminatedEarly;
+  }
+
+  public void setTerminatedEarly(Boolean terminatedEarly) {
+    this.terminatedEarly = terminatedEarly;
+  }
+
+  /** @return true if the response exceeded its {@link QueryBudget} and its results are partial */
+  static boolean isPartial(SearchResponse<?, ?> response) {
+    if (!(response instanceof EsSearchResponse)) {
+      return false;
+    }
+    EsSearchResponse<?, ?> esResponse = (EsSearchResponse<?, ?>) response;
+    return Boolean.TRUE.equals(esResponse.getTimedOut())
+        || Boolean.TRUE.equals(esResponse.getTerminatedEarly());
+  }
+}
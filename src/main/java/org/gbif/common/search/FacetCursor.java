@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+
+/**
+ * Opaque tokens pointing to the next page of a facet paged with a composite aggregation. A token
+ * holds the after key of the last bucket returned.
+ */
+final class FacetCursor {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private FacetCursor() {}
+
+  /** @return a URL-safe token of the after key of a composite aggregation with a single source */
+  static String encode(FieldValue afterKey) {
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(
+            SearchCursor.toJson(Collections.singletonList(afterKey))
+                .toString()
+                .getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Reads a token created by {@link #encode(FieldValue)}.
+   *
+   * @throws IllegalArgumentException if the token is not valid
+   */
+  static FieldValue decode(String token) {
+    JsonNode node;
+    try {
+      node = MAPPER.readTree(Base64.getUrlDecoder().decode(token));
+    } catch (IOException | IllegalArgumentException ex) {
+      throw new IllegalArgumentException("Invalid facet cursor " + token, ex);
+    }
+    List<FieldValue> values = SearchCursor.fromJson(node);
+    if (values.size() != 1) {
+      throw new IllegalArgumentException("Invalid facet cursor " + token);
+    }
+    return values.get(0);
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.common.search.es.AliasSwapListener;
+import org.gbif.common.search.es.EsClient;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregation;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+
+/**
+ * Periodically estimates the cardinality of the facetable fields of an index using cardinality
+ * aggregations. The estimates are refreshed every refresh interval and after each swap of the alias
+ * of the index, see {@link EsClient#addAliasSwapListener(AliasSwapListener)}. If a refresh fails the
+ * previous estimates are kept.
+ *
+ * <p>The estimates are exposed to the search request builder through a
+ * {@link CardinalityAwareFieldMapper}.
+ */
+public class FieldCardinalityService<P extends SearchParameter> implements AliasSwapListener, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FieldCardinalityService.class);
+
+  /** Maximum precision threshold supported by Elasticsearch, counts below it are close to exact. */
+  static final int PRECISION_THRESHOLD = 40000;
+
+  private final EsClient esClient;
+  private final String index;
+  private final Set<String> esFields;
+  private final Duration refreshInterval;
+
+  private volatile Map<String, Long> cardinalities = Collections.emptyMap();
+
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param index alias or index to read
+   * @param facetableParameters parameters whose fields are estimated
+   * @param refreshInterval time between refreshes of the estimates
+   */
+  public FieldCardinalityService(
+      EsClient esClient,
+      String index,
+      EsFieldMapper<P> esFieldMapper,
+      Collection<P> facetableParameters,
+      Duration refreshInterval) {
+    this.esClient = esClient;
+    this.index = index;
+    this.esFields =
+        facetableParameters.stream()
+            .map(esFieldMapper::get)
+            .filter(Objects::nonNull)
+            .collect(Collectors.toSet());
+    this.refreshInterval = refreshInterval;
+  }
+
+  /** Registers this service as alias swap listener and schedules the refreshes, starting now. */
+  public synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("es-cardinality-%d").setDaemon(true).build());
+    executor.scheduleWithFixedDelay(
+        this::refresh, 0, refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    esClient.addAliasSwapListener(this);
+  }
+
+  /** Runs the cardinality aggregations and replaces the estimates. */
+  public void refresh() {
+    if (esFields.isEmpty()) {
+      return;
+    }
+    try {
+      Map<String, Aggregation> aggs = new HashMap<>();
+      esFields.forEach(
+          f -> aggs.put(f, Aggregation.of(a -> a.cardinality(c -> c.field(f).precisionThreshold(PRECISION_THRESHOLD)))));
+      SearchRequest request =
+          SearchRequest.of(s -> s.index(index).size(0).trackTotalHits(t -> t.enabled(false)).aggregations(aggs));
+
+      SearchResponse<Void> response = esClient.search(request, Void.class);
+      Map<String, Long> refreshed = new HashMap<>();
+      for (Map.Entry<String, Aggregate> agg : response.aggregations().entrySet()) {
+        refreshed.put(agg.getKey(), agg.getValue().cardinality().value());
+      }
+      cardinalities = Collections.unmodifiableMap(refreshed);
+      LOG.debug("Cardinalities of index {} refreshed: {}", index, refreshed);
+    } catch (Exception ex) {
+      LOG.warn("Error refreshing the cardinalities of index {}, keeping the previous ones", index, ex);
+    }
+  }
+
+  /** @return the estimated cardinality of a field, null if the field hasn't been estimated yet */
+  public Long getCardinality(String esField) {
+    return cardinalities.get(esField);
+  }
+
+  @Override
+  public void onAliasSwapped(String alias, String indexName) {
+    if (!index.equals(alias)) {
+      return;
+    }
+    synchronized (this) {
+      if (executor != null) {
+        // don't hold the indexing thread
+        executor.execute(this::refresh);
+        return;
+      }
+    }
+    refresh();
+  }
+
+  @Override
+  public synchronized void close() {
+    esClient.removeAliasSwapListener(this);
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import co.elastic.clients.elasticsearch._types.query_dsl.FieldAndFormat;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Fields returned by the hits of a search request, instead of the source filtering of the field
+ * mapper. Fields can be read from the source, or from the fields of the hits with the source
+ * disabled, which saves decompressing and parsing the source of each hit when only a few fields are
+ * needed. {@link org.gbif.common.search.es.EsConversionUtils} reads the hits of any mode.
+ */
+@Getter
+@EqualsAndHashCode
+@ToString
+public final class FieldProjection {
+
+  /** Where the fields are read from. */
+  public enum Mode {
+    /** Source filtered to the fields. */
+    SOURCE,
+    /** Fields API, reads the source but only returns the fields and doesn't send the source. */
+    FIELDS,
+    /** Doc values, don't read the source, only for keyword, numeric, date and boolean fields. */
+    DOC_VALUES
+  }
+
+  private final Mode mode;
+
+  private final List<String> fields;
+
+  private FieldProjection(Mode mode, List<String> fields) {
+    this.mode = mode;
+    this.fields = fields;
+  }
+
+  /** @param fields ES fields to return */
+  public static FieldProjection of(Mode mode, Collection<String> fields) {
+    if (fields == null || fields.isEmpty()) {
+      throw new IllegalArgumentException("Field projection needs at least one field");
+    }
+    return new FieldProjection(mode, Collections.unmodifiableList(new ArrayList<>(fields)));
+  }
+
+  /** Returns the fields from a filtered source. */
+  public static FieldProjection source(String... fields) {
+    return of(Mode.SOURCE, Arrays.asList(fields));
+  }
+
+  /** Returns the fields with the fields API and without the source. */
+  public static FieldProjection fields(String... fields) {
+    return of(Mode.FIELDS, Arrays.asList(fields));
+  }
+
+  /** Returns the fields from the doc values and without the source. */
+  public static FieldProjection docValues(String... fields) {
+    return of(Mode.DOC_VALUES, Arrays.asList(fields));
+  }
+
+  /**
+   * Replaces the source filtering of a request.
+   *
+   * @param excludeFields fields excluded from the source of the field mapper
+   */
+  void apply(SearchRequest.Builder esRequest, List<String> excludeFields) {
+    if (mode == Mode.SOURCE) {
+      esRequest.source(s -> s.filter(f -> f.excludes(excludeFields).includes(fields)));
+      return;
+    }
+
+    esRequest.source(s -> s.fetch(false));
+    List<FieldAndFormat> fieldsAndFormats =
+        fields.stream().map(f -> FieldAndFormat.of(ff -> ff.field(f))).collect(Collectors.toList());
+    if (mode == Mode.FIELDS) {
+      esRequest.fields(fieldsAndFormats);
+    } else {
+      esRequest.docvalueFields(fieldsAndFormats);
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.Value;
+
+/**
+ * Immutable sorted array of keys for prefix lookups. Keys are front coded in blocks: the first key
+ * of a block is stored whole and the others as the length of the prefix shared with the previous
+ * key and the remaining suffix, which is small for sorted keys. The texts of the entries are only
+ * used to skip duplicates, so they aren't stored: entries keep the id of their text, the same for
+ * equal texts.
+ */
+final class FrontCodedIndex<T> {
+
+  private static final int BLOCK_SIZE = 16;
+
+  private final String[] heads;
+  private final int[] sharedLengths;
+  private final String[] suffixes;
+  private final int[] textIds;
+  private final Object[] values;
+  private final int maxKeyLength;
+
+  @Value
+  static class Entry<T> {
+    String key;
+    String text;
+    T value;
+  }
+
+  private FrontCodedIndex(List<Entry<T>> sortedEntries) {
+    int size = sortedEntries.size();
+    heads = new String[(size + BLOCK_SIZE - 1) / BLOCK_SIZE];
+    sharedLengths = new int[size];
+    suffixes = new String[size];
+    textIds = new int[size];
+    values = new Object[size];
+
+    Map<String, Integer> ids = new HashMap<>();
+    int maxLength = 0;
+    String previous = null;
+    for (int i = 0; i < size; i++) {
+      Entry<T> entry = sortedEntries.get(i);
+      String key = entry.getKey();
+      if (i % BLOCK_SIZE == 0) {
+        heads[i / BLOCK_SIZE] = key;
+      } else {
+        int shared = sharedLength(previous, key);
+        sharedLengths[i] = shared;
+        suffixes[i] = key.substring(shared);
+      }
+      Integer textId = ids.putIfAbsent(entry.getText(), ids.size());
+      textIds[i] = textId != null ? textId : ids.size() - 1;
+      values[i] = entry.getValue();
+      maxLength = Math.max(maxLength, key.length());
+      previous = key;
+    }
+    maxKeyLength = maxLength;
+  }
+
+  /** Builds an index of the entries, entries with the same key keep their order. */
+  static <T> FrontCodedIndex<T> build(List<Entry<T>> entries) {
+    List<Entry<T>> sorted = new ArrayList<>(entries);
+    sorted.sort(Comparator.comparing(Entry::getKey));
+    return new FrontCodedIndex<>(sorted);
+  }
+
+  int size() {
+    return textIds.length;
+  }
+
+  /**
+   * Values of the keys starting with a prefix, in key order and skipping the entries with the text
+   * of a previous value.
+   */
+  @SuppressWarnings("unchecked")
+  List<T> lookup(String prefix, int limit) {
+    List<T> results = new ArrayList<>();
+    Set<Integer> seenTexts = new HashSet<>();
+    // keys are decoded in place, no string is created per scanned key
+    char[] key = new char[maxKeyLength];
+    for (int i = firstBlock(prefix) * BLOCK_SIZE; i < textIds.length && results.size() < limit; i++) {
+      String part = i % BLOCK_SIZE == 0 ? heads[i / BLOCK_SIZE] : suffixes[i];
+      int offset = i % BLOCK_SIZE == 0 ? 0 : sharedLengths[i];
+      part.getChars(0, part.length(), key, offset);
+      int comparison = compareToPrefix(key, offset + part.length(), prefix);
+      if (comparison == 0) {
+        if (seenTexts.add(textIds[i])) {
+          results.add((T) values[i]);
+        }
+      } else if (comparison > 0) {
+        // keys starting with the prefix are contiguous
+        break;
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Compares a key with a prefix as {@link String#compareTo}, except that keys starting with the
+   * prefix are equal to it.
+   */
+  private static int compareToPrefix(char[] key, int keyLength, String prefix) {
+    int length = Math.min(keyLength, prefix.length());
+    for (int i = 0; i < length; i++) {
+      if (key[i] != prefix.charAt(i)) {
+        return key[i] - prefix.charAt(i);
+      }
+    }
+    return keyLength < prefix.length() ? -1 : 0;
+  }
+
+  /** Last block whose first key is lower than the prefix, it can contain the first match. */
+  private int firstBlock(String prefix) {
+    int low = 0;
+    int high = heads.length - 1;
+    int block = 0;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (heads[mid].compareTo(prefix) < 0) {
+        block = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return block;
+  }
+
+  private static int sharedLength(String a, String b) {
+    int max = Math.min(a.length(), b.length());
+    int i = 0;
+    while (i < max && a.charAt(i) == b.charAt(i)) {
+      i++;
+    }
+    return i;
+  }
+}
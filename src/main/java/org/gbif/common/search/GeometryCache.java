@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+import org.locationtech.jts.geom.Envelope;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import lombok.Value;
+
+/**
+ * LRU cache of the shapes used in geometry filters, from the raw WKT sent by the client to the
+ * normalized WKT sent to Elasticsearch. Shapes are cached per {@link GeometrySimplifier} since the
+ * same WKT can be simplified differently for each field. The cache is bounded by the total number
+ * of vertices of the cached shapes rather than by the number of entries.
+ */
+public class GeometryCache {
+
+  private final Cache<Key, Shape> cache;
+
+  /** @param maxVertices maximum number of vertices summed over all the cached shapes */
+  public GeometryCache(long maxVertices) {
+    cache =
+        CacheBuilder.newBuilder()
+            .maximumWeight(maxVertices)
+            .weigher((Key key, Shape shape) -> Math.max(1, shape.getNumVertices()))
+            .recordStats()
+            .build();
+  }
+
+  /**
+   * Gets the shape of a WKT, parsing and caching it if it's not present. Exceptions thrown by the
+   * loader, e.g.: invalid geometries, are propagated as they are and nothing is cached.
+   */
+  Shape get(String wkt, @Nullable GeometrySimplifier simplifier, Supplier<Shape> loader) {
+    Key key = new Key(wkt, simplifier);
+    Shape shape = cache.getIfPresent(key);
+    if (shape == null) {
+      shape = loader.get();
+      cache.put(key, shape);
+    }
+    return shape;
+  }
+
+  /** @return hit, miss and eviction counts of the cache */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /** @return the approximate number of cached shapes */
+  public long size() {
+    return cache.size();
+  }
+
+  /** Discards all the cached shapes. */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  @Value
+  private static class Key {
+    String wkt;
+    GeometrySimplifier simplifier;
+  }
+
+  /** Normalized shape ready to be used in a geo_shape query. */
+  @Value
+  static class Shape {
+    String wkt;
+    int numVertices;
+
+    /** Envelope used to prefilter polygonal shapes, null for other shapes. */
+    @Nullable Envelope envelope;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Topology preserving simplification of the polygons used in geometry filters.
+ *
+ * <p>Polygons are first simplified using the configured distance tolerance. If the result still has
+ * more vertices than the configured budget the tolerance is doubled until the budget is met, or
+ * until {@link #MAX_ITERATIONS} is reached. Points and lines are never simplified.
+ *
+ * <p>Instances keep counters of the simplified geometries and removed vertices. Geometries served
+ * from a {@link GeometryCache} are simplified once, so they are only counted the first time.
+ */
+public class GeometrySimplifier {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GeometrySimplifier.class);
+
+  private static final int MAX_ITERATIONS = 20;
+
+  /** Initial tolerance, relative to the envelope diagonal, used when only a budget is set. */
+  private static final double MIN_RELATIVE_TOLERANCE = 1e-6;
+
+  private final double tolerance;
+  private final int maxVertices;
+
+  private final LongAdder simplifiedGeometries = new LongAdder();
+  private final LongAdder removedVertices = new LongAdder();
+
+  /**
+   * @param tolerance distance tolerance in degrees, 0 to only apply the vertex budget
+   * @param maxVertices maximum number of vertices of a simplified geometry, 0 or less to only apply
+   *     the tolerance
+   */
+  public GeometrySimplifier(double tolerance, int maxVertices) {
+    if (tolerance < 0) {
+      throw new IllegalArgumentException("Tolerance can't be negative");
+    }
+    this.tolerance = tolerance;
+    this.maxVertices = maxVertices;
+  }
+
+  /** Simplifies a normalized geometry, geometries that aren't polygons are returned as they are. */
+  Geometry simplify(Geometry geometry) {
+    if (!(geometry instanceof Polygon || geometry instanceof MultiPolygon)) {
+      return geometry;
+    }
+
+    Geometry simplified =
+        tolerance > 0 ? TopologyPreservingSimplifier.simplify(geometry, tolerance) : geometry;
+
+    if (maxVertices > 0 && simplified.getNumPoints() > maxVertices) {
+      double currentTolerance =
+          Math.max(
+              tolerance,
+              geometry.getEnvelopeInternal().getDiameter() * MIN_RELATIVE_TOLERANCE);
+      for (int i = 0; i < MAX_ITERATIONS && simplified.getNumPoints() > maxVertices; i++) {
+        simplified = TopologyPreservingSimplifier.simplify(geometry, currentTolerance);
+        currentTolerance *= 2;
+      }
+    }
+
+    int removed = geometry.getNumPoints() - simplified.getNumPoints();
+    if (removed > 0) {
+      simplifiedGeometries.increment();
+      removedVertices.add(removed);
+      LOG.debug(
+          "Geometry simplified from {} to {} vertices",
+          geometry.getNumPoints(),
+          simplified.getNumPoints());
+    }
+    return simplified;
+  }
+
+  public double getTolerance() {
+    return tolerance;
+  }
+
+  public int getMaxVertices() {
+    return maxVertices;
+  }
+
+  /** @return number of geometries that lost at least one vertex */
+  public long getSimplifiedGeometries() {
+    return simplifiedGeometries.sum();
+  }
+
+  /** @return total number of vertices removed from all the simplified geometries */
+  public long getRemovedVertices() {
+    return removedVertices.sum();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    GeometrySimplifier that = (GeometrySimplifier) o;
+    return Double.compare(that.tolerance, tolerance) == 0 && maxVertices == that.maxVertices;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(tolerance, maxVertices);
+  }
+}
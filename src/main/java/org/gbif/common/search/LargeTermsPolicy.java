@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import javax.annotation.Nullable;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * How filters with many values are sent to Elasticsearch. A terms query can't have more values than
+ * the index.max_terms_count setting, and large queries make the request body and its parsing on
+ * every node expensive. Above the chunk size the values are split into several terms queries, and
+ * above the lookup threshold they are stored in a {@link TermsLookupStore} and read by terms lookup
+ * queries.
+ */
+@Getter
+@EqualsAndHashCode
+@ToString
+public final class LargeTermsPolicy {
+
+  /** Default index.max_terms_count of Elasticsearch. */
+  public static final int DEFAULT_MAX_TERMS_COUNT = 65_536;
+
+  /** Splits the values above the default max_terms_count of Elasticsearch. */
+  public static final LargeTermsPolicy DEFAULT = chunked(DEFAULT_MAX_TERMS_COUNT);
+
+  /** Maximum number of values of a terms query. */
+  private final int chunkSize;
+
+  /** Minimum number of values read from the lookup store, only used when there is a store. */
+  private final int lookupThreshold;
+
+  @Nullable private final TermsLookupStore lookupStore;
+
+  private LargeTermsPolicy(int chunkSize, int lookupThreshold, @Nullable TermsLookupStore lookupStore) {
+    if (chunkSize < 1 || lookupThreshold < 1) {
+      throw new IllegalArgumentException("Terms chunk size and lookup threshold must be positive");
+    }
+    this.chunkSize = chunkSize;
+    this.lookupThreshold = lookupThreshold;
+    this.lookupStore = lookupStore;
+  }
+
+  /**
+   * Splits the values in terms queries of up to chunkSize values.
+   *
+   * @param chunkSize maximum number of values of a terms query, at most the max_terms_count of the
+   *     index
+   */
+  public static LargeTermsPolicy chunked(int chunkSize) {
+    return new LargeTermsPolicy(chunkSize, Integer.MAX_VALUE, null);
+  }
+
+  /**
+   * Reads the values from the lookup store when there are at least lookupThreshold values, and
+   * splits them in terms queries of up to chunkSize values otherwise. The values are stored before
+   * building the requests, see {@link EsSearchRequestBuilder#prepareTermsLookups}, and the store
+   * must be started to purge the unused ones, see {@link TermsLookupStore#start}.
+   *
+   * @param lookupThreshold minimum number of values stored in the lookup store
+   * @param chunkSize maximum number of values of a terms query, and of a lookup document since the
+   *     terms read by a lookup also count for the max_terms_count of the index
+   */
+  public static LargeTermsPolicy lookup(int lookupThreshold, int chunkSize, TermsLookupStore lookupStore) {
+    return new LargeTermsPolicy(chunkSize, lookupThreshold, lookupStore);
+  }
+
+  /** @return the strategy used for a filter with the given number of values */
+  public TermsQueryStrategy strategy(int valuesCount) {
+    if (lookupStore != null && valuesCount >= lookupThreshold) {
+      return TermsQueryStrategy.LOOKUP;
+    }
+    return valuesCount > chunkSize ? TermsQueryStrategy.CHUNKED : TermsQueryStrategy.TERMS;
+  }
+}
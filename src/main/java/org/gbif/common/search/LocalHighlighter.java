@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.api.model.common.search.SearchConstants;
+import org.gbif.common.search.es.EsConversionUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+
+import co.elastic.clients.elasticsearch.core.search.Hit;
+
+import static org.gbif.common.search.EsSearchRequestBuilder.POST_HL_TAG;
+import static org.gbif.common.search.EsSearchRequestBuilder.PRE_HL_TAG;
+
+/**
+ * Highlights the {@link EsFieldMapper#localHighlightingFields()} in the JVM, which are left out of
+ * the highlight of the requests of {@link EsSearchRequestBuilder}. The markup is the one of the
+ * unified highlighter of Elasticsearch with the html encoder and no fragments: the whole value is
+ * html encoded and each term of the query is wrapped in the highlight tags.
+ *
+ * <p>Terms are split at the word boundaries of Unicode (UAX#29) and lower cased, as the standard
+ * analyzer does. Runs of letters and digits are joined by underscores, apostrophes and periods
+ * between letters or digits, colons between letters and commas between digits: "o'brien",
+ * "snake_case" and "3.5" are single terms, "e-mail" isn't. Ideographs and hiragana are terms of
+ * one character. Scripts segmented with dictionaries, e.g.: Thai, aren't supported. Fields with
+ * other analyzers, e.g.: stemming or ascii folding, must be highlighted by Elasticsearch.
+ *
+ * <p>The converters of the hits don't know the query, so the highlights are read in a converter
+ * per request passed to {@link EsResponseParser}.
+ */
+public class LocalHighlighter {
+
+  // word break properties of the middle punctuation in UAX#29, the single quote is a MidNumLetQ
+  private static final String MID_LETTER = ":\u00B7\u0387\u055F\u05F4\u2027\uFE13\uFE55\uFF1A";
+  private static final String MID_NUM_LETTER = ".'\u2018\u2019\u2024\uFE52\uFF07\uFF0E";
+  private static final String MID_NUM =
+      ",;\u037E\u0589\u060C\u060D\u066C\u07F8\u2044\uFE10\uFE14\uFE50\uFE54\uFF0C\uFF1B";
+
+  private final Set<String> fields;
+
+  public LocalHighlighter(EsFieldMapper<?> esFieldMapper) {
+    this.fields = new HashSet<>(esFieldMapper.localHighlightingFields());
+  }
+
+  /**
+   * Highlights of a hit: the highlights of Elasticsearch plus the highlighted values of the local
+   * fields. The values are read with {@link EsConversionUtils#getListValue(Hit, String)}, only
+   * values with a term of the query are highlighted.
+   *
+   * @return highlighted values by field, as in {@link Hit#highlight()}
+   */
+  public Map<String, List<String>> highlight(String q, Hit<?> hit) {
+    Map<String, List<String>> highlights = new HashMap<>(hit.highlight());
+    Set<String> queryTerms = queryTerms(q);
+    if (queryTerms.isEmpty()) {
+      return highlights;
+    }
+
+    for (String field : fields) {
+      EsConversionUtils.getListValue(hit, field)
+          .ifPresent(
+              values -> {
+                List<String> highlighted = new ArrayList<>();
+                values.forEach(v -> highlight(queryTerms, v).ifPresent(highlighted::add));
+                if (!highlighted.isEmpty()) {
+                  highlights.put(field, highlighted);
+                }
+              });
+    }
+    return highlights;
+  }
+
+  /** @return the highlighted text, empty if it has no term of the query */
+  public Optional<String> highlight(String q, String text) {
+    return highlight(queryTerms(q), text);
+  }
+
+  private static Set<String> queryTerms(String q) {
+    Set<String> terms = new HashSet<>();
+    if (Strings.isNullOrEmpty(q) || SearchConstants.QUERY_WILDCARD.equals(q)) {
+      return terms;
+    }
+    int i = 0;
+    while (i < q.length()) {
+      int end = termEnd(q, i);
+      if (end > i) {
+        terms.add(q.substring(i, end).toLowerCase(Locale.ROOT));
+        i = end;
+      } else {
+        i += Character.charCount(q.codePointAt(i));
+      }
+    }
+    return terms;
+  }
+
+  private static Optional<String> highlight(Set<String> queryTerms, String text) {
+    if (queryTerms.isEmpty() || Strings.isNullOrEmpty(text)) {
+      return Optional.empty();
+    }
+
+    StringBuilder highlighted = new StringBuilder(text.length() + 32);
+    boolean matched = false;
+    int i = 0;
+    while (i < text.length()) {
+      int end = termEnd(text, i);
+      if (end > i) {
+        String term = text.substring(i, end);
+        boolean match = queryTerms.contains(term.toLowerCase(Locale.ROOT));
+        if (match) {
+          highlighted.append(PRE_HL_TAG);
+          matched = true;
+        }
+        // terms can have apostrophes to encode
+        for (int j = 0; j < term.length(); j++) {
+          encode(term.charAt(j), highlighted);
+        }
+        if (match) {
+          highlighted.append(POST_HL_TAG);
+        }
+        i = end;
+      } else {
+        encode(text.charAt(i), highlighted);
+        i++;
+      }
+    }
+    return matched ? Optional.of(highlighted.toString()) : Optional.empty();
+  }
+
+  /**
+   * End of the term starting at a position, the same position if there is no term. Implements the
+   * rules WB4 to WB13b of UAX#29 for letters, digits, connector punctuation and the middle
+   * punctuation of the word boundaries.
+   */
+  private static int termEnd(String text, int start) {
+    int end = start;
+    // last letter or digit of the term
+    int last = -1;
+    while (end < text.length()) {
+      int codePoint = text.codePointAt(end);
+      if (isSingleCharTerm(codePoint)) {
+        if (end == start) {
+          last = codePoint;
+          end = skipExtend(text, end + Character.charCount(codePoint));
+        }
+        break;
+      }
+
+      if (Character.isLetterOrDigit(codePoint)) {
+        last = codePoint;
+        end = skipExtend(text, end + Character.charCount(codePoint));
+      } else if (Character.getType(codePoint) == Character.CONNECTOR_PUNCTUATION) {
+        // WB13a, WB13b: underscores join letters and digits
+        end = skipExtend(text, end + Character.charCount(codePoint));
+      } else if (last != -1 && isMiddle(last, codePoint, text, end + Character.charCount(codePoint))) {
+        // WB6, WB7, WB11, WB12: a middle punctuation between two letters or two digits
+        end = skipExtend(text, end + Character.charCount(codePoint));
+      } else {
+        break;
+      }
+    }
+    // a term has at least a letter or a digit
+    return last == -1 ? start : end;
+  }
+
+  /** WB4: combining marks and format characters belong to the preceding character. */
+  private static int skipExtend(String text, int position) {
+    int end = position;
+    while (end < text.length()) {
+      int type = Character.getType(text.codePointAt(end));
+      if (type != Character.NON_SPACING_MARK
+          && type != Character.ENCLOSING_MARK
+          && type != Character.COMBINING_SPACING_MARK
+          && type != Character.FORMAT) {
+        break;
+      }
+      end += Character.charCount(text.codePointAt(end));
+    }
+    return end;
+  }
+
+  /** Ideographs and hiragana aren't joined with their neighbours. */
+  private static boolean isSingleCharTerm(int codePoint) {
+    return Character.isIdeographic(codePoint)
+        || Character.UnicodeScript.of(codePoint) == Character.UnicodeScript.HIRAGANA;
+  }
+
+  /**
+   * @param previous last letter or digit before the punctuation
+   * @param next position after the punctuation
+   */
+  private static boolean isMiddle(int previous, int punctuation, String text, int next) {
+    if (next >= text.length()) {
+      return false;
+    }
+    int following = text.codePointAt(next);
+    if (isSingleCharTerm(following)) {
+      return false;
+    }
+    if (Character.isLetter(previous) && Character.isLetter(following)) {
+      return MID_LETTER.indexOf(punctuation) >= 0 || MID_NUM_LETTER.indexOf(punctuation) >= 0;
+    }
+    if (Character.isDigit(previous) && Character.isDigit(following)) {
+      return MID_NUM.indexOf(punctuation) >= 0 || MID_NUM_LETTER.indexOf(punctuation) >= 0;
+    }
+    return false;
+  }
+
+  /** Same encoding as the html encoder of Elasticsearch. */
+  private static void encode(char c, StringBuilder encoded) {
+    switch (c) {
+      case '"':
+        encoded.append("&quot;");
+        break;
+      case '&':
+        encoded.append("&amp;");
+        break;
+      case '<':
+        encoded.append("&lt;");
+        break;
+      case '>':
+        encoded.append("&gt;");
+        break;
+      case '\'':
+        encoded.append("&#x27;");
+        break;
+      case '/':
+        encoded.append("&#x2F;");
+        break;
+      default:
+        encoded.append(c);
+    }
+  }
+}
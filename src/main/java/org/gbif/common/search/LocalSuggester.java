@@ -0,0 +1,283 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.api.model.common.search.SearchConstants;
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.common.search.es.AliasSwapListener;
+import org.gbif.common.search.es.EsClient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOptions;
+import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+
+/**
+ * In-memory alternative to the completion suggester requests of {@link
+ * EsSearchRequestBuilder#buildSuggestQuery} for small vocabularies, e.g.: dataset titles or
+ * institution names.
+ *
+ * <p>The suggest inputs of each parameter are read with a full scan of the index and kept in a
+ * {@link FrontCodedIndex}. The scan is repeated every refresh interval and after each swap of the
+ * alias of the index. Suggestions match the lower case inputs by prefix, skip duplicated inputs
+ * and are sorted by input, unlike the completion suggester they don't use weights. Requests are
+ * sent to Elasticsearch while the suggestions are stale: before the first scan, after an alias
+ * swap until the next scan, or when the last scan is older than twice the refresh interval.
+ */
+public class LocalSuggester<T, SR, P extends SearchParameter> implements AliasSwapListener, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LocalSuggester.class);
+
+  private static final int SCAN_PAGE_SIZE = 1000;
+  private static final String SCAN_KEEP_ALIVE = "1m";
+  private static final SortOptions SHARD_DOC_SORT =
+      SortOptions.of(s -> s.field(f -> f.field("_shard_doc").order(SortOrder.Asc)));
+
+  private final EsClient esClient;
+  private final String index;
+  private final Class<SR> documentClass;
+  private final Function<Hit<SR>, T> resultConverter;
+  private final Map<P, Function<SR, Collection<String>>> inputs;
+  private final List<String> sourceIncludes;
+  private final Duration refreshInterval;
+
+  private volatile Map<P, FrontCodedIndex<T>> suggesters = Collections.emptyMap();
+  private volatile long scannedAt;
+  private volatile boolean stale = true;
+
+  // scans started before an alias swap don't make the suggestions fresh
+  private final AtomicLong aliasSwaps = new AtomicLong();
+
+  private final LongAdder localSuggestions = new LongAdder();
+  private final LongAdder fallbackSuggestions = new LongAdder();
+
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param index alias or index to scan
+   * @param resultConverter converter of the scanned documents to suggest results
+   * @param inputs suggest inputs of a document, by suggested parameter
+   * @param refreshInterval time between scans
+   */
+  public LocalSuggester(
+      EsClient esClient,
+      String index,
+      EsFieldMapper<P> esFieldMapper,
+      Class<SR> documentClass,
+      Function<Hit<SR>, T> resultConverter,
+      Map<P, Function<SR, Collection<String>>> inputs,
+      Duration refreshInterval) {
+    this.esClient = esClient;
+    this.index = index;
+    this.documentClass = documentClass;
+    this.resultConverter = resultConverter;
+    this.inputs = new HashMap<>(inputs);
+    Set<String> includes = new LinkedHashSet<>();
+    inputs.keySet().forEach(p -> includes.addAll(esFieldMapper.includeSuggestFields(p)));
+    this.sourceIncludes = new ArrayList<>(includes);
+    this.refreshInterval = refreshInterval;
+  }
+
+  /** Registers this suggester as alias swap listener and schedules the scans, starting now. */
+  public synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("es-suggester-%d").setDaemon(true).build());
+    executor.scheduleWithFixedDelay(
+        this::refresh, 0, refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    esClient.addAliasSwapListener(this);
+  }
+
+  /** Scans the index and replaces the suggestions. If the scan fails the previous ones are kept. */
+  public void refresh() {
+    try {
+      long start = System.currentTimeMillis();
+      long swaps = aliasSwaps.get();
+      Map<P, FrontCodedIndex<T>> scanned = scan();
+      synchronized (this) {
+        suggesters = scanned;
+        scannedAt = start;
+        stale = swaps != aliasSwaps.get();
+      }
+      LOG.debug("Suggestions of index {} scanned in {} ms", index, System.currentTimeMillis() - start);
+    } catch (Exception ex) {
+      LOG.warn("Error scanning the suggestions of index {}, keeping the previous ones", index, ex);
+    }
+  }
+
+  /**
+   * Suggests the results of the inputs starting with a prefix, using Elasticsearch if the local
+   * suggestions are stale or the parameter isn't suggested locally.
+   *
+   * @param limit maximum number of suggestions, null for the default limit
+   * @param fallback executes the suggest request in Elasticsearch
+   */
+  public List<T> suggest(String prefix, P parameter, Integer limit, Supplier<List<T>> fallback) {
+    FrontCodedIndex<T> suggester = isStale() ? null : suggesters.get(parameter);
+    if (suggester == null) {
+      fallbackSuggestions.increment();
+      return fallback.get();
+    }
+    localSuggestions.increment();
+    return suggester.lookup(
+        normalize(Strings.nullToEmpty(prefix)),
+        limit != null ? limit : SearchConstants.DEFAULT_SUGGEST_LIMIT);
+  }
+
+  /** @return true if the suggestions are sent to Elasticsearch */
+  public boolean isStale() {
+    return stale || System.currentTimeMillis() - scannedAt > 2 * refreshInterval.toMillis();
+  }
+
+  /** @return number of suggest requests answered locally */
+  public long getLocalSuggestions() {
+    return localSuggestions.sum();
+  }
+
+  /** @return number of suggest requests sent to Elasticsearch */
+  public long getFallbackSuggestions() {
+    return fallbackSuggestions.sum();
+  }
+
+  @Override
+  public void onAliasSwapped(String alias, String indexName) {
+    if (!index.equals(alias)) {
+      return;
+    }
+    synchronized (this) {
+      // the suggestions of the previous index are not used anymore
+      aliasSwaps.incrementAndGet();
+      stale = true;
+      if (executor != null) {
+        // don't hold the indexing thread
+        executor.execute(this::refresh);
+        return;
+      }
+    }
+    refresh();
+  }
+
+  @Override
+  public synchronized void close() {
+    esClient.removeAliasSwapListener(this);
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /** Reads all the documents of the index in a point-in-time. */
+  private Map<P, FrontCodedIndex<T>> scan() throws IOException {
+    Map<P, List<FrontCodedIndex.Entry<T>>> entries = new HashMap<>();
+    inputs.keySet().forEach(p -> entries.put(p, new ArrayList<>()));
+
+    String pitId = esClient.openPointInTime(index, SCAN_KEEP_ALIVE);
+    try {
+      List<FieldValue> searchAfter = Collections.emptyList();
+      while (true) {
+        SearchResponse<SR> response = esClient.search(scanRequest(pitId, searchAfter), documentClass);
+        if (response.pitId() != null) {
+          pitId = response.pitId();
+        }
+        List<Hit<SR>> hits = response.hits().hits();
+        for (Hit<SR> hit : hits) {
+          addEntries(hit, entries);
+        }
+        if (hits.size() < SCAN_PAGE_SIZE) {
+          break;
+        }
+        searchAfter = hits.get(hits.size() - 1).sort();
+      }
+    } finally {
+      esClient.closePointInTime(pitId);
+    }
+
+    Map<P, FrontCodedIndex<T>> scanned = new HashMap<>();
+    entries.forEach((p, e) -> scanned.put(p, FrontCodedIndex.build(e)));
+    return Collections.unmodifiableMap(scanned);
+  }
+
+  private SearchRequest scanRequest(String pitId, List<FieldValue> searchAfter) {
+    return SearchRequest.of(
+        s -> {
+          s.size(SCAN_PAGE_SIZE)
+              .pit(p -> p.id(pitId).keepAlive(k -> k.time(SCAN_KEEP_ALIVE)))
+              .sort(SHARD_DOC_SORT)
+              .trackTotalHits(t -> t.enabled(false))
+              .source(src -> src.filter(f -> f.includes(sourceIncludes)));
+          if (!searchAfter.isEmpty()) {
+            s.searchAfter(searchAfter);
+          }
+          return s;
+        });
+  }
+
+  private void addEntries(Hit<SR> hit, Map<P, List<FrontCodedIndex.Entry<T>>> entries) {
+    SR document = hit.source();
+    if (document == null) {
+      return;
+    }
+    T result = null;
+    for (Map.Entry<P, Function<SR, Collection<String>>> parameterInputs : inputs.entrySet()) {
+      Collection<String> texts = parameterInputs.getValue().apply(document);
+      if (texts == null) {
+        continue;
+      }
+      for (String text : texts) {
+        if (Strings.isNullOrEmpty(text)) {
+          continue;
+        }
+        if (result == null) {
+          result = resultConverter.apply(hit);
+        }
+        entries.get(parameterInputs.getKey()).add(new FrontCodedIndex.Entry<>(normalize(text), text, result));
+      }
+    }
+  }
+
+  private static String normalize(String text) {
+    return text.toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.api.model.common.search.SearchParameter;
+import org.gbif.api.util.VocabularyUtils;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+
+import static org.gbif.api.util.SearchTypeValidator.isDateRange;
+import static org.gbif.api.util.SearchTypeValidator.isNumericRange;
+import static org.gbif.common.search.es.indexing.EsQueryUtils.RANGE_SEPARATOR;
+
+/**
+ * Parsers of the values of each search parameter, selected once per parameter instead of checking
+ * the parameter type for every value. The parsers produce the same values as the default {@link
+ * EsFieldMapper#parseParamValue}, mappers that override it keep using their own implementation.
+ * Decorators are looked through with {@link EsFieldMapper#unwrap()}.
+ */
+final class ParamValueCodecs<P extends SearchParameter> {
+
+  private final EsFieldMapper<P> esFieldMapper;
+
+  private final boolean customParser;
+
+  private final Map<P, Function<String, FieldValue>> codecs = new ConcurrentHashMap<>();
+
+  ParamValueCodecs(EsFieldMapper<P> esFieldMapper) {
+    this.esFieldMapper = esFieldMapper;
+    this.customParser = overridesParseParamValue(esFieldMapper);
+  }
+
+  /** Parses the value of a parameter as {@link EsFieldMapper#parseParamValue}. */
+  FieldValue parse(String value, P parameter) {
+    Function<String, FieldValue> codec = codecs.get(parameter);
+    if (codec == null) {
+      codec = codecs.computeIfAbsent(parameter, this::codec);
+    }
+    return codec.apply(value);
+  }
+
+  /** @return true if the value is a numeric range or a date range */
+  static boolean isRange(String value) {
+    // both kinds of ranges have a separator, most values are discarded without the regex validators
+    return value.contains(RANGE_SEPARATOR) && (isNumericRange(value) || isDateRange(value));
+  }
+
+  @SuppressWarnings("unchecked")
+  private Function<String, FieldValue> codec(P parameter) {
+    if (customParser) {
+      return value -> esFieldMapper.parseParamValue(value, parameter);
+    }
+    Class<?> type = parameter.type();
+    if (Enum.class.isAssignableFrom(type)) {
+      return enumCodec((Class<Enum<?>>) type);
+    }
+    if (Boolean.class.isAssignableFrom(type)) {
+      return value -> FieldValue.of(value.toLowerCase());
+    }
+    if (Integer.class.isAssignableFrom(type)) {
+      return value -> FieldValue.of(Integer.parseInt(value));
+    }
+    if (Long.class.isAssignableFrom(type)) {
+      return value -> FieldValue.of(Long.parseLong(value));
+    }
+    if (Double.class.isAssignableFrom(type)) {
+      return value -> FieldValue.of(Double.parseDouble(value));
+    }
+    if (Float.class.isAssignableFrom(type)) {
+      return value -> FieldValue.of(Float.parseFloat(value));
+    }
+    return FieldValue::of;
+  }
+
+  /**
+   * Resolves the names of the constants, in upper and lower case, from a table. Other spellings
+   * are looked-up with {@link VocabularyUtils#lookup}.
+   */
+  private static Function<String, FieldValue> enumCodec(Class<Enum<?>> type) {
+    Map<String, FieldValue> names = new HashMap<>();
+    Enum<?>[] constants = type.getEnumConstants();
+    if (constants != null) {
+      for (Enum<?> constant : constants) {
+        for (String name : new String[] {constant.name(), constant.name().toLowerCase(Locale.ENGLISH)}) {
+          VocabularyUtils.lookup(name, type).ifPresent(e -> names.put(name, FieldValue.of(e.name())));
+        }
+      }
+    }
+    return value -> {
+      FieldValue fieldValue = names.get(value);
+      if (fieldValue != null) {
+        return fieldValue;
+      }
+      return VocabularyUtils.lookup(value, type).map(e -> FieldValue.of(e.name())).orElse(null);
+    };
+  }
+
+  private static boolean overridesParseParamValue(EsFieldMapper<?> esFieldMapper) {
+    EsFieldMapper<?> innermost = esFieldMapper;
+    for (EsFieldMapper<?> next = innermost.unwrap(); next != null && next != innermost; next = innermost.unwrap()) {
+      innermost = next;
+    }
+    try {
+      return innermost
+              .getClass()
+              .getMethod("parseParamValue", String.class, SearchParameter.class)
+              .getDeclaringClass()
+          != EsFieldMapper.class;
+    } catch (NoSuchMethodException ex) {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import java.time.Duration;
+
+import javax.annotation.Nullable;
+
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Limits of the work of a search request in each shard: the time spent searching, after which the
+ * shard returns the hits collected so far, and the number of documents collected, after which the
+ * shard stops searching. Responses of requests exceeding a limit have partial results, see {@link
+ * EsSearchResponse#getTimedOut()} and {@link EsSearchResponse#getTerminatedEarly()}.
+ */
+@Getter
+@EqualsAndHashCode
+@ToString
+public final class QueryBudget {
+
+  /** No limits. */
+  public static final QueryBudget UNLIMITED = new QueryBudget(null, null);
+
+  @Nullable private final Duration timeout;
+
+  @Nullable private final Long terminateAfter;
+
+  private QueryBudget(@Nullable Duration timeout, @Nullable Long terminateAfter) {
+    this.timeout = timeout;
+    this.terminateAfter = terminateAfter;
+  }
+
+  /**
+   * @param timeout maximum time spent searching in each shard, null for no limit
+   * @param terminateAfter maximum number of documents collected in each shard, null for no limit
+   */
+  public static QueryBudget of(@Nullable Duration timeout, @Nullable Long terminateAfter) {
+    if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+      throw new IllegalArgumentException("Query timeout must be positive");
+    }
+    if (terminateAfter != null && terminateAfter < 1) {
+      throw new IllegalArgumentException("Terminate after must be positive");
+    }
+    return new QueryBudget(timeout, terminateAfter);
+  }
+
+  /** @param timeout maximum time spent searching in each shard */
+  public static QueryBudget timeout(Duration timeout) {
+    return of(timeout, null);
+  }
+
+  /** Sets the timeout and terminate_after of a request. */
+  SearchRequest.Builder apply(SearchRequest.Builder esRequest) {
+    if (timeout != null) {
+      esRequest.timeout(timeout.toMillis() + "ms");
+    }
+    if (terminateAfter != null) {
+      esRequest.terminateAfter(terminateAfter);
+    }
+    return esRequest;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+/**
+ * {@link QueryBudget} of each type of request built by {@link EsSearchRequestBuilder}. Requests
+ * iterating over all the results, i.e.: search-after and export requests, have no budget since
+ * partial pages would silently skip results.
+ */
+@EqualsAndHashCode
+@ToString
+public final class QueryBudgets {
+
+  /** Types of requests with a budget. */
+  public enum RequestType {
+    SEARCH,
+    FACETED_SEARCH,
+    AUTOCOMPLETE,
+    SUGGEST
+  }
+
+  /** No limits for any request. */
+  public static final QueryBudgets UNLIMITED = new QueryBudgets(new EnumMap<>(RequestType.class));
+
+  private final Map<RequestType, QueryBudget> budgets;
+
+  private QueryBudgets(Map<RequestType, QueryBudget> budgets) {
+    this.budgets = budgets;
+  }
+
+  /** Same budget for all the types of requests. */
+  public static QueryBudgets of(QueryBudget budget) {
+    Map<RequestType, QueryBudget> budgets = new EnumMap<>(RequestType.class);
+    for (RequestType requestType : RequestType.values()) {
+      budgets.put(requestType, budget);
+    }
+    return new QueryBudgets(budgets);
+  }
+
+  /** @return a copy of these budgets with the budget of a type of request replaced */
+  public QueryBudgets with(RequestType requestType, QueryBudget budget) {
+    Map<RequestType, QueryBudget> copy = new EnumMap<>(RequestType.class);
+    copy.putAll(budgets);
+    copy.put(requestType, budget);
+    return new QueryBudgets(copy);
+  }
+
+  /** @return the budget of a type of request, unlimited if it has none */
+  public QueryBudget get(RequestType requestType) {
+    return budgets.getOrDefault(requestType, QueryBudget.UNLIMITED);
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import lombok.Value;
+
+/**
+ * Position of a client in a point-in-time based iteration of search results. Cursors are exchanged
+ * with clients as opaque tokens, see {@link #encode()} and {@link #decode(String)}. Tokens can be
+ * forged, so the keep alive of a decoded cursor is clamped to a maximum.
+ */
+@Value
+public class SearchCursor {
+
+  /** Default maximum keep alive of the decoded cursors. */
+  public static final Duration DEFAULT_MAX_KEEP_ALIVE = Duration.ofMinutes(5);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  // time units of Elasticsearch
+  private static final Pattern KEEP_ALIVE_PATTERN = Pattern.compile("(\\d+)(d|h|m|s|ms|micros|nanos)");
+
+  private static final String PIT = "pit";
+  private static final String KEEP_ALIVE = "keepAlive";
+  private static final String AFTER = "after";
+
+  /** Point-in-time id. */
+  String pitId;
+
+  /** Time to keep the point-in-time alive after each request, e.g.: 1m. */
+  String keepAlive;
+
+  /** Sort values of the last hit returned, empty for the first page. */
+  List<FieldValue> searchAfter;
+
+  /** Cursor pointing to the first page of a point-in-time. */
+  public static SearchCursor start(String pitId, String keepAlive) {
+    return new SearchCursor(pitId, keepAlive, Collections.emptyList());
+  }
+
+  /** Cursor pointing to the page after the hit with the given sort values. */
+  public SearchCursor next(String pitId, List<FieldValue> lastSortValues) {
+    return new SearchCursor(pitId, keepAlive, lastSortValues);
+  }
+
+  /** @return an opaque URL-safe token representing this cursor */
+  public String encode() {
+    ObjectNode node = MAPPER.createObjectNode();
+    node.put(PIT, pitId);
+    node.put(KEEP_ALIVE, keepAlive);
+    node.set(AFTER, toJson(searchAfter));
+    return Base64.getUrlEncoder()
+        .withoutPadding()
+        .encodeToString(node.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Reads a token created by {@link #encode()}, clamping its keep alive to the {@link
+   * #DEFAULT_MAX_KEEP_ALIVE}.
+   *
+   * @throws IllegalArgumentException if the token is not valid
+   */
+  public static SearchCursor decode(String token) {
+    return decode(token, DEFAULT_MAX_KEEP_ALIVE);
+  }
+
+  /**
+   * Reads a token created by {@link #encode()}.
+   *
+   * @param maxKeepAlive maximum keep alive, longer keep alives of the token are replaced by it
+   * @throws IllegalArgumentException if the token is not valid
+   */
+  public static SearchCursor decode(String token, Duration maxKeepAlive) {
+    JsonNode node;
+    try {
+      node = MAPPER.readTree(Base64.getUrlDecoder().decode(token));
+    } catch (IOException | IllegalArgumentException ex) {
+      throw new IllegalArgumentException("Invalid cursor " + token, ex);
+    }
+    if (node == null || !node.hasNonNull(PIT) || !node.hasNonNull(KEEP_ALIVE)) {
+      throw new IllegalArgumentException("Invalid cursor " + token);
+    }
+    return new SearchCursor(
+        node.get(PIT).asText(),
+        clampKeepAlive(node.get(KEEP_ALIVE).asText(), maxKeepAlive),
+        fromJson(node.get(AFTER)));
+  }
+
+  private static String clampKeepAlive(String keepAlive, Duration maxKeepAlive) {
+    String normalized = keepAlive.toLowerCase(Locale.ROOT);
+    Matcher matcher = KEEP_ALIVE_PATTERN.matcher(normalized);
+    if (!matcher.matches()) {
+      throw new IllegalArgumentException("Invalid cursor keep alive " + keepAlive);
+    }
+    Duration duration;
+    try {
+      duration = Duration.of(Long.parseLong(matcher.group(1)), unit(matcher.group(2)));
+    } catch (ArithmeticException | NumberFormatException ex) {
+      // too long to be represented
+      duration = null;
+    }
+    return duration != null && duration.compareTo(maxKeepAlive) <= 0
+        ? normalized
+        : maxKeepAlive.toMillis() + "ms";
+  }
+
+  private static ChronoUnit unit(String unit) {
+    switch (unit) {
+      case "d":
+        return ChronoUnit.DAYS;
+      case "h":
+        return ChronoUnit.HOURS;
+      case "m":
+        return ChronoUnit.MINUTES;
+      case "s":
+        return ChronoUnit.SECONDS;
+      case "ms":
+        return ChronoUnit.MILLIS;
+      case "micros":
+        return ChronoUnit.MICROS;
+      default:
+        return ChronoUnit.NANOS;
+    }
+  }
+
+  /** Converts sort or after-key values into a JSON array. */
+  static ArrayNode toJson(List<FieldValue> values) {
+    ArrayNode array = MAPPER.createArrayNode();
+    for (FieldValue value : values) {
+      if (value.isLong()) {
+        array.add(value.longValue());
+      } else if (value.isDouble()) {
+        array.add(value.doubleValue());
+      } else if (value.isBoolean()) {
+        array.add(value.booleanValue());
+      } else if (value.isString()) {
+        array.add(value.stringValue());
+      } else if (value.isNull()) {
+        array.addNull();
+      } else {
+        throw new IllegalArgumentException("Unsupported cursor value " + value._kind());
+      }
+    }
+    return array;
+  }
+
+  /** Reads the values written by {@link #toJson(List)}. */
+  static List<FieldValue> fromJson(JsonNode array) {
+    if (array == null || !array.isArray()) {
+      return Collections.emptyList();
+    }
+    List<FieldValue> values = new ArrayList<>(array.size());
+    for (JsonNode value : array) {
+      if (value.isIntegralNumber()) {
+        values.add(FieldValue.of(value.longValue()));
+      } else if (value.isNumber()) {
+        values.add(FieldValue.of(value.doubleValue()));
+      } else if (value.isBoolean()) {
+        values.add(FieldValue.of(value.booleanValue()));
+      } else if (value.isNull()) {
+        values.add(FieldValue.NULL);
+      } else {
+        values.add(FieldValue.of(value.asText()));
+      }
+    }
+    return values;
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Coalesces concurrent calls with the same key: the first caller executes the call and the callers
+ * arriving while it's in flight wait for its result instead of executing it again. Results aren't
+ * kept once the call completes, see {@link EsResponseCache} for that. Waiters receive the same
+ * result instance, or the same exception, as the caller that executed the call.
+ */
+public class SingleFlight<K, V> {
+
+  private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+
+  private final LongAdder coalescedCalls = new LongAdder();
+
+  /** Executes the call, or waits for the in-flight call with the same key. */
+  public V execute(K key, Supplier<V> call) {
+    Flight<V> flight = new Flight<>();
+    Flight<V> inFlight = flights.putIfAbsent(key, flight);
+    if (inFlight != null) {
+      coalescedCalls.increment();
+      return inFlight.await();
+    }
+
+    try {
+      V result = call.get();
+      flight.result.complete(result);
+      return result;
+    } catch (RuntimeException | Error ex) {
+      flight.result.completeExceptionally(ex);
+      throw ex;
+    } finally {
+      flights.remove(key, flight);
+    }
+  }
+
+  /** @return number of callers waiting for each in-flight call */
+  public Map<K, Integer> waiters() {
+    Map<K, Integer> waiters = new HashMap<>();
+    flights.forEach((k, v) -> waiters.put(k, v.waiters.get()));
+    return waiters;
+  }
+
+  /** @return number of calls in flight */
+  public int inFlight() {
+    return flights.size();
+  }
+
+  /** @return total number of calls served by waiting for an in-flight call */
+  public long getCoalescedCalls() {
+    return coalescedCalls.sum();
+  }
+
+  private static class Flight<V> {
+    private final CompletableFuture<V> result = new CompletableFuture<>();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private V await() {
+      waiters.incrementAndGet();
+      try {
+        return result.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new SearchException("Interrupted while waiting for an in-flight search", ex);
+      } catch (ExecutionException ex) {
+        Throwables.throwIfUnchecked(ex.getCause());
+        throw new SearchException(ex.getCause());
+      } finally {
+        waiters.decrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.json.JsonpDeserializer;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import co.elastic.clients.json.jackson.JacksonJsonpParser;
+
+/**
+ * Reads the body of a search response as a stream. Each hit of hits.hits is deserialized and handed
+ * over as soon as it's read, so only one hit is in memory at a time. The rest of the response, e.g.:
+ * the total hits and the aggregations, is buffered and deserialized without hits.
+ */
+final class StreamingHitsReader<SR> {
+
+  private static final String HITS_FIELD = "hits";
+
+  private final JacksonJsonpMapper mapper;
+  private final JsonpDeserializer<Hit<SR>> hitDeserializer;
+  private final JsonpDeserializer<SearchResponse<SR>> responseDeserializer;
+
+  StreamingHitsReader(JacksonJsonpMapper mapper, Class<SR> documentClass) {
+    this.mapper = mapper;
+    JsonpDeserializer<SR> documentDeserializer = JsonpDeserializer.of(documentClass);
+    this.hitDeserializer = Hit.createHitDeserializer(documentDeserializer);
+    this.responseDeserializer = SearchResponse.createSearchResponseDeserializer(documentDeserializer);
+  }
+
+  /**
+   * @param hitConsumer receives the hits in the order of the response
+   * @return the response without hits
+   */
+  SearchResponse<SR> read(InputStream body, Consumer<Hit<SR>> hitConsumer) throws IOException {
+    try (JsonParser parser = mapper.objectMapper().getFactory().createParser(body)) {
+      TokenBuffer rest = new TokenBuffer(parser);
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException(parser, "Search response is not an object");
+      }
+
+      rest.writeStartObject();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.currentName();
+        rest.writeFieldName(field);
+        if (parser.nextToken() == JsonToken.START_OBJECT && HITS_FIELD.equals(field)) {
+          readHits(parser, rest, hitConsumer);
+        } else {
+          rest.copyCurrentStructure(parser);
+        }
+      }
+      rest.writeEndObject();
+
+      try (JacksonJsonpParser restParser = new JacksonJsonpParser(rest.asParser(), mapper)) {
+        return responseDeserializer.deserialize(restParser, mapper);
+      }
+    }
+  }
+
+  /** Reads the hits object, the array of hits is replaced by an empty one in the buffer. */
+  private void readHits(JsonParser parser, TokenBuffer rest, Consumer<Hit<SR>> hitConsumer)
+      throws IOException {
+    rest.writeStartObject();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.currentName();
+      rest.writeFieldName(field);
+      if (parser.nextToken() == JsonToken.START_ARRAY && HITS_FIELD.equals(field)) {
+        rest.writeStartArray();
+        rest.writeEndArray();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+          hitConsumer.accept(readHit(parser));
+        }
+      } else {
+        rest.copyCurrentStructure(parser);
+      }
+    }
+    rest.writeEndObject();
+  }
+
+  private Hit<SR> readHit(JsonParser parser) throws IOException {
+    TokenBuffer hit = new TokenBuffer(parser);
+    hit.copyCurrentStructure(parser);
+    try (JacksonJsonpParser hitParser = new JacksonJsonpParser(hit.asParser(), mapper)) {
+      return hitDeserializer.deserialize(hitParser, mapper);
+    }
+  }
+}
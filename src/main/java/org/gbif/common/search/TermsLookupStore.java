@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import org.gbif.common.search.es.EsClient;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.mapping.TypeMapping;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+
+/**
+ * Stores the values of large filters as documents of an index, so the queries can read them with
+ * a terms lookup instead of sending them in the request body.
+ *
+ * <p>Documents are identified by a hash of their values, so the same values are stored once.
+ * Documents are rewritten when they are used again after the time to live, and {@link #purge}
+ * deletes the documents that weren't used in twice that time, every time to live once the store is
+ * started. Searches must take less than the time to live.
+ *
+ * <p>The values are stored before building the requests, see {@link
+ * EsSearchRequestBuilder#prepareTermsLookups}.
+ */
+public class TermsLookupStore implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TermsLookupStore.class);
+
+  /** Field of the lookup documents with the values. */
+  public static final String TERMS_FIELD = "terms";
+
+  /** Field of the lookup documents with the time they were stored, in epoch milliseconds. */
+  public static final String CREATED_FIELD = "created";
+
+  private final EsClient esClient;
+  private final String index;
+  private final Duration ttl;
+
+  // ids of the documents stored during the time to live
+  private final Cache<String, Boolean> storedIds;
+
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param index index of the lookup documents, see {@link #mappings()}
+   * @param ttl time to live of the stored documents
+   */
+  public TermsLookupStore(EsClient esClient, String index, Duration ttl) {
+    this.esClient = esClient;
+    this.index = index;
+    this.ttl = ttl;
+    this.storedIds = CacheBuilder.newBuilder().expireAfterWrite(ttl).build();
+  }
+
+  /** Mappings of the lookup index, the values are only read from the _source. */
+  public static TypeMapping mappings() {
+    return TypeMapping.of(
+        m ->
+            m.properties(TERMS_FIELD, p -> p.keyword(k -> k.index(false).docValues(false)))
+                .properties(CREATED_FIELD, p -> p.date(d -> d)));
+  }
+
+  public String getIndex() {
+    return index;
+  }
+
+  /** Schedules the purges, every time to live. */
+  public synchronized void start() {
+    if (executor != null) {
+      return;
+    }
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("es-terms-lookup-purge-%d").setDaemon(true).build());
+    executor.scheduleWithFixedDelay(
+        () -> {
+          try {
+            LOG.debug("Purged {} terms lookup documents of index {}", purge(), index);
+          } catch (Exception ex) {
+            LOG.warn("Error purging the terms lookup documents of index {}", index, ex);
+          }
+        },
+        ttl.toMillis(),
+        ttl.toMillis(),
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stores the values without blocking the calling thread, if they weren't stored recently.
+   *
+   * @return future completed with the id of the lookup document once it's stored
+   */
+  public CompletableFuture<String> storeAsync(List<FieldValue> values) {
+    String id = id(values);
+    if (isStored(id)) {
+      return CompletableFuture.completedFuture(id);
+    }
+    Map<String, Object> document = new HashMap<>();
+    document.put(TERMS_FIELD, values.stream().map(FieldValue::_get).collect(Collectors.toList()));
+    document.put(CREATED_FIELD, System.currentTimeMillis());
+    return esClient
+        .indexAsync(index, id, document)
+        .thenApply(
+            r -> {
+              storedIds.put(id, Boolean.TRUE);
+              return id;
+            });
+  }
+
+  /** @return true if the document was stored during the time to live */
+  boolean isStored(String id) {
+    return storedIds.getIfPresent(id) != null;
+  }
+
+  /**
+   * Deletes the documents that weren't stored in twice the time to live.
+   *
+   * @return the number of deleted documents
+   */
+  public long purge() {
+    String expired = Long.toString(System.currentTimeMillis() - 2 * ttl.toMillis());
+    return esClient.deleteByQuery(
+        index, Query.of(q -> q.range(r -> r.date(d -> d.field(CREATED_FIELD).lt(expired)))));
+  }
+
+  /** @return id of the lookup document of the values */
+  static String id(List<FieldValue> values) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    for (FieldValue value : values) {
+      hasher.putString(value._kind().name(), StandardCharsets.UTF_8);
+      hasher.putString(String.valueOf(value._get()), StandardCharsets.UTF_8);
+      hasher.putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
+
+  /** Stops the purges. */
+  @Override
+  public synchronized void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+}
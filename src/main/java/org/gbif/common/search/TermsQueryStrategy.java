@@ -0,0 +1,27 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+/** How the values of a multi-value filter are sent to Elasticsearch, see {@link LargeTermsPolicy}. */
+public enum TermsQueryStrategy {
+
+  /** A single terms query with all the values. */
+  TERMS,
+
+  /** Several terms queries of a bounded number of values. */
+  CHUNKED,
+
+  /** Terms lookup queries reading the values from documents stored in a {@link TermsLookupStore}. */
+  LOOKUP
+}
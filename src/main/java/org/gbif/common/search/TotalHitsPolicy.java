@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search;
+
+import co.elastic.clients.elasticsearch.core.search.TrackHits;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+/**
+ * How accurately Elasticsearch counts the hits of a request. Counting all the hits prevents shards
+ * from skipping non-competitive documents, so a threshold or no count at all makes searches faster.
+ */
+@EqualsAndHashCode
+@ToString
+public final class TotalHitsPolicy {
+
+  /** Count all the hits. */
+  public static final TotalHitsPolicy EXACT = new TotalHitsPolicy(true, null);
+
+  /** Don't count the hits, responses won't have a count. */
+  public static final TotalHitsPolicy DISABLED = new TotalHitsPolicy(false, null);
+
+  private final boolean enabled;
+  private final Integer threshold;
+
+  private TotalHitsPolicy(boolean enabled, Integer threshold) {
+    this.enabled = enabled;
+    this.threshold = threshold;
+  }
+
+  /**
+   * Count the hits accurately up to a threshold, above it the count is a lower bound.
+   *
+   * @param threshold maximum number of hits counted accurately
+   */
+  public static TotalHitsPolicy threshold(int threshold) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException("Total hits threshold can't be negative");
+    }
+    return new TotalHitsPolicy(true, threshold);
+  }
+
+  /** @return the track_total_hits value of this policy */
+  public TrackHits toTrackHits() {
+    if (threshold != null) {
+      return TrackHits.of(t -> t.count(threshold));
+    }
+    return TrackHits.of(t -> t.enabled(enabled));
+  }
+}
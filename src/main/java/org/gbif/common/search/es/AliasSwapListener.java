@@ -0,0 +1,27 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search.es;
+
+/** Listener notified by {@link EsClient#swapAlias(String, String)} once an alias points to a new index. */
+@FunctionalInterface
+public interface AliasSwapListener {
+
+  /**
+   * Called after the alias has been swapped.
+   *
+   * @param alias swapped alias
+   * @param indexName index the alias points to
+   */
+  void onAliasSwapped(String alias, String indexName);
+}
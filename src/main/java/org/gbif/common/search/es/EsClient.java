@@ -17,30 +17,53 @@ import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Stream;
 
 import org.apache.http.HttpHost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.elasticsearch.client.NodeSelector;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
 import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.ErrorResponse;
 import co.elastic.clients.elasticsearch._types.mapping.TypeMapping;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 import co.elastic.clients.elasticsearch.core.BulkRequest;
 import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.elasticsearch.core.MsearchRequest;
+import co.elastic.clients.elasticsearch.core.MsearchResponse;
 import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
 import co.elastic.clients.elasticsearch.indices.*;
 import co.elastic.clients.elasticsearch.indices.update_aliases.Action;
 import co.elastic.clients.elasticsearch.indices.update_aliases.AddAction;
 import co.elastic.clients.json.JsonpDeserializer;
 import co.elastic.clients.json.jackson.JacksonJsonpGenerator;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import co.elastic.clients.transport.TransportOptions;
 import co.elastic.clients.transport.endpoints.BooleanResponse;
 import co.elastic.clients.transport.rest_client.RestClientTransport;
 import jakarta.json.stream.JsonParser;
@@ -51,6 +74,8 @@ import lombok.SneakyThrows;
 @Component
 public class EsClient implements Closeable {
 
+  private static final Logger LOG = LoggerFactory.getLogger(EsClient.class);
+
   private static final JacksonJsonpMapper MAPPER = new JacksonJsonpMapper();
 
   @Data
@@ -64,9 +89,25 @@ public class EsClient implements Closeable {
 
   private final ElasticsearchClient elasticsearchClient;
 
+  private final ElasticsearchAsyncClient elasticsearchAsyncClient;
+
+  private final List<AliasSwapListener> aliasSwapListeners = new CopyOnWriteArrayList<>();
+
   @Autowired
   public EsClient(ElasticsearchClient elasticsearchClient) {
     this.elasticsearchClient = elasticsearchClient;
+    // shares the transport, and its connections, with the blocking client
+    this.elasticsearchAsyncClient =
+      new ElasticsearchAsyncClient(elasticsearchClient._transport(), elasticsearchClient._transportOptions());
+  }
+
+  /** Registers a listener notified after each alias swap, e.g.: to refresh data derived from an index. */
+  public void addAliasSwapListener(AliasSwapListener listener) {
+    aliasSwapListeners.add(listener);
+  }
+
+  public void removeAliasSwapListener(AliasSwapListener listener) {
+    aliasSwapListeners.remove(listener);
   }
 
   /**
@@ -109,6 +150,18 @@ public class EsClient implements Closeable {
     } catch (IOException ex) {
       throw new RuntimeException(ex);
     }
+    notifyAliasSwapped(alias, indexName);
+  }
+
+  private void notifyAliasSwapped(String alias, String indexName) {
+    for (AliasSwapListener listener : aliasSwapListeners) {
+      try {
+        listener.onAliasSwapped(alias, indexName);
+      } catch (Exception ex) {
+        // the swap is already done, a failing listener must not fail it
+        LOG.error("Error notifying swap of alias {} to index {}", alias, indexName, ex);
+      }
+    }
   }
 
   public static <T> T deserializeFromFile(String settingsFile, JsonpDeserializer<T> deserializer) {
@@ -143,6 +196,169 @@ public class EsClient implements Closeable {
     }
   }
 
+  /**
+   * Opens a point-in-time on an index.
+   *
+   * @param keepAlive time to keep the point-in-time alive, e.g.: 1m
+   * @return the id of the point-in-time
+   */
+  public String openPointInTime(String index, String keepAlive) {
+    try {
+      return elasticsearchClient
+          .openPointInTime(o -> o.index(index).keepAlive(k -> k.time(keepAlive)))
+          .id();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /** Closes a point-in-time, releasing its resources before its keep alive expires. */
+  public void closePointInTime(String pitId) {
+    try {
+      elasticsearchClient.closePointInTime(c -> c.id(pitId));
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Resolves the indices an alias points to.
+   *
+   * @return the sorted names of the indices of the alias, or the name itself if it isn't an alias
+   */
+  public SortedSet<String> resolveAlias(String alias) {
+    try {
+      if (!elasticsearchClient.indices().existsAlias(e -> e.name(alias)).value()) {
+        return new TreeSet<>(Collections.singleton(alias));
+      }
+      return new TreeSet<>(
+          elasticsearchClient.indices().getAlias(g -> g.name(alias)).aliases().keySet());
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /** Performs a ElasticSearch {@link SearchRequest}. */
+  public <T> SearchResponse<T> search(SearchRequest searchRequest, Class<T> documentClass)
+      throws IOException {
+    return elasticsearchClient.search(searchRequest, documentClass);
+  }
+
+  /**
+   * Performs a ElasticSearch {@link SearchRequest} and reads the body of the response with a reader
+   * instead of deserializing it, e.g.: to stream the hits of large pages. Only clients with a {@link
+   * RestClientTransport} and a {@link JacksonJsonpMapper} are supported. The headers and query
+   * parameters of the transport options of the client are sent and error responses are thrown as
+   * {@link ElasticsearchException}, as in {@link #search(SearchRequest, Class)}.
+   *
+   * <p>The low level client buffers the whole body before it's read, up to the buffer limit of its
+   * response consumer, so the reader saves the objects built for the response but not the buffer.
+   */
+  public <R> R search(SearchRequest searchRequest, ResponseBodyReader<R> bodyReader)
+      throws IOException {
+    if (!(elasticsearchClient._transport() instanceof RestClientTransport)
+        || !(elasticsearchClient._jsonpMapper() instanceof JacksonJsonpMapper)) {
+      throw new UnsupportedOperationException(
+          "Reading the response body needs a RestClientTransport with a JacksonJsonpMapper");
+    }
+    RestClientTransport transport = (RestClientTransport) elasticsearchClient._transport();
+    JacksonJsonpMapper mapper = (JacksonJsonpMapper) elasticsearchClient._jsonpMapper();
+
+    Request request =
+        new Request(
+            SearchRequest._ENDPOINT.method(searchRequest),
+            SearchRequest._ENDPOINT.requestUrl(searchRequest));
+    // includes typed_keys, needed to deserialize the aggregations
+    request.addParameters(SearchRequest._ENDPOINT.queryParameters(searchRequest));
+    ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+    try (jakarta.json.stream.JsonGenerator generator = mapper.jsonProvider().createGenerator(requestBody)) {
+      searchRequest.serialize(generator, mapper);
+    }
+    request.setEntity(new ByteArrayEntity(requestBody.toByteArray(), ContentType.APPLICATION_JSON));
+
+    TransportOptions transportOptions =
+        Optional.ofNullable(elasticsearchClient._transportOptions()).orElse(transport.options());
+    RequestOptions.Builder requestOptions = RequestOptions.DEFAULT.toBuilder();
+    transportOptions.headers().forEach(h -> requestOptions.addHeader(h.getKey(), h.getValue()));
+    request.setOptions(requestOptions);
+    request.addParameters(transportOptions.queryParameters());
+
+    Response response;
+    try {
+      response = transport.restClient().performRequest(request);
+    } catch (ResponseException ex) {
+      throw elasticsearchException(ex, mapper);
+    }
+    try (InputStream responseBody = response.getEntity().getContent()) {
+      return bodyReader.read(responseBody, mapper);
+    }
+  }
+
+  /**
+   * Converts an error response into the exception thrown by the client, the original exception is
+   * thrown if the body isn't an error response.
+   */
+  private static ElasticsearchException elasticsearchException(
+      ResponseException ex, JacksonJsonpMapper mapper) throws ResponseException {
+    if (ex.getResponse().getEntity() == null) {
+      throw ex;
+    }
+    try (InputStream body = ex.getResponse().getEntity().getContent();
+        JsonParser parser = mapper.jsonProvider().createParser(body)) {
+      return new ElasticsearchException(
+          SearchRequest._ENDPOINT.id(), ErrorResponse._DESERIALIZER.deserialize(parser, mapper));
+    } catch (Exception parseEx) {
+      ex.addSuppressed(parseEx);
+      throw ex;
+    }
+  }
+
+  /** Reader of the body of a response, see {@link #search(SearchRequest, ResponseBodyReader)}. */
+  @FunctionalInterface
+  public interface ResponseBodyReader<R> {
+
+    R read(InputStream body, JacksonJsonpMapper mapper) throws IOException;
+  }
+
+  /**
+   * Performs a ElasticSearch {@link SearchRequest} without blocking the calling thread. Cancelling
+   * the returned future aborts the HTTP request.
+   */
+  public <T> CompletableFuture<SearchResponse<T>> searchAsync(
+      SearchRequest searchRequest, Class<T> documentClass) {
+    return elasticsearchAsyncClient.search(searchRequest, documentClass);
+  }
+
+  /** Performs a ElasticSearch {@link MsearchRequest} without blocking the calling thread. */
+  public <T> CompletableFuture<MsearchResponse<T>> msearchAsync(
+      MsearchRequest msearchRequest, Class<T> documentClass) {
+    return elasticsearchAsyncClient.msearch(msearchRequest, documentClass);
+  }
+
+  /**
+   * Indexes a document without blocking the calling thread, replacing the document with the same id
+   * if it exists.
+   */
+  public CompletableFuture<Void> indexAsync(String index, String id, Object document) {
+    return elasticsearchAsyncClient
+        .index(i -> i.index(index).id(id).document(document))
+        .thenApply(r -> null);
+  }
+
+  /**
+   * Deletes the documents of an index that match a query.
+   *
+   * @return the number of deleted documents
+   */
+  public long deleteByQuery(String index, Query query) {
+    try {
+      Long deleted = elasticsearchClient.deleteByQuery(d -> d.index(index).query(query)).deleted();
+      return deleted != null ? deleted : 0;
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
   /** Performs a ElasticSearch {@link BulkRequest}. */
   public BulkResponse bulk(BulkRequest bulkRequest) throws IOException {
     return elasticsearchClient.bulk(bulkRequest);
@@ -15,6 +15,7 @@ package org.gbif.common.search.es;
 
 import org.gbif.api.util.VocabularyUtils;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
@@ -26,6 +27,9 @@ import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import co.elastic.clients.elasticsearch.core.search.Hit;
 import co.elastic.clients.json.JsonData;
 import lombok.experimental.UtilityClass;
@@ -42,6 +46,9 @@ public class EsConversionUtils {
   private static final Pattern NESTED_PATTERN = Pattern.compile("^\\w+(\\.\\w+)+$");
   private static final Predicate<String> IS_NESTED = s -> NESTED_PATTERN.matcher(s).find();
 
+  // JSON sources converted into maps, the keys are compared by identity and weakly referenced
+  private static final Cache<JsonData, Map<?, ?>> SOURCE_MAPS = CacheBuilder.newBuilder().weakKeys().build();
+
   public static Optional<String> getStringValue(Hit<?> hit, String esField) {
     return getValue(hit, esField, Function.identity());
   }
@@ -62,19 +69,62 @@ public class EsConversionUtils {
     return getValue(hit, esField, v -> VocabularyUtils.lookupEnum(v, enumClass));
   }
 
+  /**
+   * Values of a field of a hit as strings, see {@link #getFieldValues(Hit, String)}. Numbers and
+   * booleans are converted with {@link String#valueOf(Object)}.
+   */
   public static Optional<List<String>> getListValue(Hit<?> hit, String esField) {
-    return Optional.ofNullable(hit.fields().get(esField))
-      .map(v -> (List<String>) v)
-      .filter(v -> !v.isEmpty());
+    return getFieldValues(hit, esField)
+      .map(v -> v.stream().map(String::valueOf).collect(Collectors.toList()));
   }
 
   public static Optional<List<Map<String, Object>>> getObjectsListValue(
     Hit<?> hit, String esField) {
-    return Optional.ofNullable(hit.fields().get(esField))
-      .map(v -> (List<Map<String, Object>>) v)
+    return getFieldValues(hit, esField)
+      .map(v -> (List<Map<String, Object>>) (List<?>) v);
+  }
+
+  /**
+   * Values of a field of a hit. They are read from the fields of the hit, i.e.: the fields API or
+   * doc values of a {@link org.gbif.common.search.FieldProjection}, and otherwise from its source if
+   * the source is a map or JSON data. A JSON source is converted into a map once per hit, not once
+   * per field read.
+   */
+  public static Optional<List<Object>> getFieldValues(Hit<?> hit, String esField) {
+    JsonData fieldValues = hit.fields().get(esField);
+    if (fieldValues != null) {
+      // the fields API and doc values always return arrays
+      return Optional.ofNullable((List<Object>) fieldValues.to(List.class)).filter(v -> !v.isEmpty());
+    }
+    return Optional.ofNullable(getSourceValue(hit.source(), esField))
+      .map(v -> v instanceof List ? (List<Object>) v : Collections.singletonList(v))
       .filter(v -> !v.isEmpty());
   }
 
+  private static Object getSourceValue(Object source, String esField) {
+    Map<?, ?> sourceMap;
+    if (source instanceof Map) {
+      sourceMap = (Map<?, ?>) source;
+    } else if (source instanceof JsonData) {
+      sourceMap = SOURCE_MAPS.asMap().computeIfAbsent((JsonData) source, s -> s.to(Map.class));
+    } else {
+      return null;
+    }
+
+    if (sourceMap.containsKey(esField)) {
+      return sourceMap.get(esField);
+    }
+    // objects of the source are nested
+    Object value = sourceMap;
+    for (String path : esField.split("\\.")) {
+      if (!(value instanceof Map)) {
+        return null;
+      }
+      value = ((Map<?, ?>) value).get(path);
+    }
+    return value;
+  }
+
   public static <T> Optional<List<T>> getObjectList(Map<String, JsonData> fields, String field, Function<String,T> mapper) {
     return Optional.ofNullable(fields.get(field))
       .map(v -> (List<String>) v)
@@ -82,22 +132,10 @@ public class EsConversionUtils {
       .map(v -> v.stream().map(mapper::apply).collect(Collectors.toList()));
   }
 
+  /** First value of a field of a hit, see {@link #getFieldValues(Hit, String)}. */
   public static <T> Optional<T> getValue(
     Hit<?> hit, String esField, Function<String, T> mapper) {
-    String fieldName = esField;
-    Map<String, JsonData> fields = hit.fields();
-    if (IS_NESTED.test(esField)) {
-      // take all paths till the field name
-      String[] paths = esField.split("\\.");
-      for (int i = 0; i < paths.length - 1 && fields.containsKey(paths[i]); i++) {
-        // update the fields with the current path
-        fields = (Map<String, JsonData>) fields.get(paths[i]);
-      }
-      // the last path is the field name
-      fieldName = paths[paths.length - 1];
-    }
-
-    return extractValue(fields, fieldName, mapper);
+    return mapValue(getFieldValues(hit, esField).map(v -> v.get(0)), esField, mapper);
   }
 
   private static <T> Optional<T> getValue(
@@ -119,7 +157,12 @@ public class EsConversionUtils {
 
   protected static <T> Optional<T> extractValue(
     Map<String, JsonData> fields, String fieldName, Function<String, T> mapper) {
-    return Optional.ofNullable(fields.get(fieldName))
+    return mapValue(Optional.ofNullable(fields.get(fieldName)), fieldName, mapper);
+  }
+
+  private static <T> Optional<T> mapValue(
+    Optional<?> value, String fieldName, Function<String, T> mapper) {
+    return value
       .map(String::valueOf)
       .filter(v -> !v.isEmpty())
       .map(
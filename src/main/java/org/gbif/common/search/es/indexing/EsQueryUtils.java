@@ -17,16 +17,7 @@ import org.gbif.api.model.common.paging.Pageable;
 import org.gbif.api.model.common.search.FacetedSearchRequest;
 import org.gbif.api.model.common.search.SearchParameter;
 
-import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.LocalTime;
-import java.time.Month;
-import java.time.Year;
-import java.time.YearMonth;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.TemporalAccessor;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Optional;
@@ -81,13 +72,6 @@ public class EsQueryUtils {
   public static final String RANGE_SEPARATOR = ",";
   public static final String RANGE_WILDCARD = "*";
 
-  private static final DateTimeFormatter FORMATTER =
-      DateTimeFormatter.ofPattern(
-          "[yyyy-MM-dd'T'HH:mm:ssXXX][yyyy-MM-dd'T'HH:mmXXX][yyyy-MM-dd'T'HH:mm:ss.SSS XXX][yyyy-MM-dd'T'HH:mm:ss.SSSXXX]"
-              + "[yyyy-MM-dd'T'HH:mm:ss.SSSSSS][yyyy-MM-dd'T'HH:mm:ss.SSSSS][yyyy-MM-dd'T'HH:mm:ss.SSSS][yyyy-MM-dd'T'HH:mm:ss.SSS]"
-              + "[yyyy-MM-dd'T'HH:mm:ss][yyyy-MM-dd'T'HH:mm:ss XXX][yyyy-MM-dd'T'HH:mm:ssXXX][yyyy-MM-dd'T'HH:mm:ss]"
-              + "[yyyy-MM-dd'T'HH:mm][yyyy-MM-dd][yyyy-MM][yyyy]");
-
   public static final Function<String, Date> STRING_TO_DATE =
       dateAsString -> {
         if (Strings.isNullOrEmpty(dateAsString)) {
@@ -101,33 +85,7 @@ public class EsQueryUtils {
         }
 
         // parse string
-        TemporalAccessor temporalAccessor =
-            FORMATTER.parseBest(
-                dateAsString,
-                ZonedDateTime::from,
-                LocalDateTime::from,
-                LocalDate::from,
-                YearMonth::from,
-                Year::from);
-        Date dateParsed = null;
-        if (temporalAccessor instanceof ZonedDateTime) {
-          dateParsed = Date.from(((ZonedDateTime) temporalAccessor).toInstant());
-        } else if (temporalAccessor instanceof LocalDateTime) {
-          dateParsed = Date.from(((LocalDateTime) temporalAccessor).toInstant(ZoneOffset.UTC));
-        } else if (temporalAccessor instanceof LocalDate) {
-          dateParsed =
-              Date.from((((LocalDate) temporalAccessor).atStartOfDay()).toInstant(ZoneOffset.UTC));
-        } else if (temporalAccessor instanceof YearMonth) {
-          dateParsed =
-              Date.from(
-                  (((YearMonth) temporalAccessor).atDay(1))
-                      .atStartOfDay()
-                      .toInstant(ZoneOffset.UTC));
-        } else if (temporalAccessor instanceof Year) {
-          dateParsed =
-              Date.from(
-                  (((Year) temporalAccessor).atDay(1)).atStartOfDay().toInstant(ZoneOffset.UTC));
-        }
+        Date dateParsed = IsoDateParser.parseDate(dateAsString);
 
         if (dateParsed != null && firstYear) {
           Calendar cal = Calendar.getInstance();
@@ -145,22 +103,7 @@ public class EsQueryUtils {
           return null;
         }
 
-        TemporalAccessor temporalAccessor =
-            FORMATTER.parseBest(lowerBound, LocalDate::from, YearMonth::from, Year::from);
-
-        if (temporalAccessor instanceof LocalDate) {
-          return ((LocalDate) temporalAccessor).atTime(LocalTime.MIN);
-        }
-
-        if (temporalAccessor instanceof Year) {
-          return Year.from(temporalAccessor).atMonth(Month.JANUARY).atDay(1).atTime(LocalTime.MIN);
-        }
-
-        if (temporalAccessor instanceof YearMonth) {
-          return YearMonth.from(temporalAccessor).atDay(1).atTime(LocalTime.MIN);
-        }
-
-        return null;
+        return IsoDateParser.parseLowerBound(lowerBound);
       };
 
   public static final Function<String, LocalDateTime> UPPER_BOUND_RANGE_PARSER =
@@ -169,25 +112,7 @@ public class EsQueryUtils {
           return null;
         }
 
-        TemporalAccessor temporalAccessor =
-            FORMATTER.parseBest(upperBound, LocalDate::from, YearMonth::from, Year::from);
-
-        if (temporalAccessor instanceof LocalDate) {
-          return ((LocalDate) temporalAccessor).atTime(LocalTime.MAX);
-        }
-
-        if (temporalAccessor instanceof Year) {
-          return Year.from(temporalAccessor)
-              .atMonth(Month.DECEMBER)
-              .atEndOfMonth()
-              .atTime(LocalTime.MAX);
-        }
-
-        if (temporalAccessor instanceof YearMonth) {
-          return YearMonth.from(temporalAccessor).atEndOfMonth().atTime(LocalTime.MAX);
-        }
-
-        return null;
+        return IsoDateParser.parseUpperBound(upperBound);
       };
 
   public static <P extends SearchParameter> int extractFacetLimit(
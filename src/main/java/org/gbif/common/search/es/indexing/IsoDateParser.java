@@ -0,0 +1,459 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search.es.indexing;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+
+/**
+ * Parser of the ISO-8601 dates accepted by {@link EsQueryUtils}, replacing a {@code
+ * DateTimeFormatter} built from this pattern of optional sections:
+ *
+ * <pre>
+ * [yyyy-MM-dd'T'HH:mm:ssXXX][yyyy-MM-dd'T'HH:mmXXX][yyyy-MM-dd'T'HH:mm:ss.SSS XXX][yyyy-MM-dd'T'HH:mm:ss.SSSXXX]
+ * [yyyy-MM-dd'T'HH:mm:ss.SSSSSS][yyyy-MM-dd'T'HH:mm:ss.SSSSS][yyyy-MM-dd'T'HH:mm:ss.SSSS][yyyy-MM-dd'T'HH:mm:ss.SSS]
+ * [yyyy-MM-dd'T'HH:mm:ss][yyyy-MM-dd'T'HH:mm:ss XXX][yyyy-MM-dd'T'HH:mm:ssXXX][yyyy-MM-dd'T'HH:mm:ss]
+ * [yyyy-MM-dd'T'HH:mm][yyyy-MM-dd][yyyy-MM][yyyy]
+ * </pre>
+ *
+ * <p>The formatter semantics are kept, including the less obvious ones: the optional sections are
+ * tried in order from the end of the last section that matched, so a text can match several
+ * sections as long as they don't set different values to the same field, and the fields are
+ * resolved with {@code ResolverStyle.SMART}, e.g.: 2021-02-30 is 2021-02-28, 24:00 is the start of
+ * the next day and a month out of range without a day is ignored. The formatter used a hash map per
+ * optional section and exceptions to try each temporal type, this parser only uses primitive
+ * fields.
+ */
+public final class IsoDateParser {
+
+  // parsed fields
+  private static final int YEAR = 0;
+  private static final int MONTH = 1;
+  private static final int DAY = 2;
+  private static final int HOUR = 3;
+  private static final int MINUTE = 4;
+  private static final int SECOND = 5;
+  private static final int NANO = 6;
+  private static final int OFFSET = 7;
+  private static final int FIELDS = 8;
+
+  // tokens of the sections, the fields of the numeric tokens are their own values
+  private static final int FRACTION_3 = 10;
+  private static final int FRACTION_4 = 11;
+  private static final int FRACTION_5 = 12;
+  private static final int FRACTION_6 = 13;
+  private static final int OFFSET_ID = 14;
+  private static final int DASH = '-';
+  private static final int T = 'T';
+  private static final int COLON = ':';
+  private static final int DOT = '.';
+  private static final int SPACE = ' ';
+
+  /** yyyy-MM-dd'T'HH:mm, shared by the first sections. */
+  private static final int[] DATE_HOUR_MINUTE = {YEAR, DASH, MONTH, DASH, DAY, T, HOUR, COLON, MINUTE};
+
+  /** Number of sections starting with {@link #DATE_HOUR_MINUTE}. */
+  private static final int DATE_TIME_SECTIONS = 13;
+
+  private static final int[][] SECTIONS = {
+    dateTime(COLON, SECOND, OFFSET_ID),
+    dateTime(OFFSET_ID),
+    dateTime(COLON, SECOND, DOT, FRACTION_3, SPACE, OFFSET_ID),
+    dateTime(COLON, SECOND, DOT, FRACTION_3, OFFSET_ID),
+    dateTime(COLON, SECOND, DOT, FRACTION_6),
+    dateTime(COLON, SECOND, DOT, FRACTION_5),
+    dateTime(COLON, SECOND, DOT, FRACTION_4),
+    dateTime(COLON, SECOND, DOT, FRACTION_3),
+    dateTime(COLON, SECOND),
+    dateTime(COLON, SECOND, SPACE, OFFSET_ID),
+    dateTime(COLON, SECOND, OFFSET_ID),
+    dateTime(COLON, SECOND),
+    dateTime(),
+    {YEAR, DASH, MONTH, DASH, DAY},
+    {YEAR, DASH, MONTH},
+    {YEAR}
+  };
+
+  private static final int MAX_YEAR = 999_999_999;
+  private static final int MAX_OFFSET_SECONDS = 18 * 3600;
+  private static final long DAYS_0000_TO_1970 = 719_528L;
+  private static final long[] FRACTION_SCALE = {1_000_000L, 100_000L, 10_000L, 1_000L};
+
+  private final String text;
+
+  // fields parsed by the sections that matched, and by the section being parsed
+  private final long[] values = new long[FIELDS];
+  private final long[] sectionValues = new long[FIELDS];
+  private int parsed;
+  private int sectionParsed;
+
+  // resolved fields
+  private int year;
+  private int month;
+  private int day;
+  private boolean date;
+  private boolean validMonth;
+  private int secondOfDay;
+  private int nano;
+  private boolean nextDay;
+
+  private IsoDateParser(String text) {
+    this.text = text;
+  }
+
+  /**
+   * Parses a date as {@code DateTimeFormatter#parseBest} with the queries {@code
+   * ZonedDateTime::from, LocalDateTime::from, LocalDate::from, YearMonth::from, Year::from}, dates
+   * without offset are in UTC.
+   *
+   * @throws DateTimeParseException if the text is not valid
+   * @throws IllegalArgumentException if the date is too large to be a {@link Date}
+   */
+  public static Date parseDate(String text) {
+    IsoDateParser parser = parse(text);
+    long epochSecond;
+    if (parser.date) {
+      long epochDay = toEpochDay(parser.year, parser.month, parser.day) + (parser.nextDay ? 1 : 0);
+      epochSecond = epochDay * 86400 + parser.secondOfDay;
+      if (parser.isParsed(OFFSET)) {
+        epochSecond -= parser.values[OFFSET];
+      }
+    } else {
+      epochSecond = (toEpochDay(parser.year, parser.validMonth ? parser.month : 1, 1)) * 86400;
+    }
+    return Date.from(Instant.ofEpochSecond(epochSecond, parser.nano));
+  }
+
+  /**
+   * Parses the start of a date range as {@code DateTimeFormatter#parseBest} with the queries {@code
+   * LocalDate::from, YearMonth::from, Year::from}: the start of the day, month or year.
+   *
+   * @throws DateTimeParseException if the text is not valid
+   */
+  public static LocalDateTime parseLowerBound(String text) {
+    IsoDateParser parser = parse(text);
+    if (parser.date) {
+      return parser.localDate().atTime(LocalTime.MIN);
+    }
+    return LocalDate.of(parser.year, parser.validMonth ? parser.month : 1, 1).atTime(LocalTime.MIN);
+  }
+
+  /**
+   * Parses the end of a date range as {@code DateTimeFormatter#parseBest} with the queries {@code
+   * LocalDate::from, YearMonth::from, Year::from}: the end of the day, month or year.
+   *
+   * @throws DateTimeParseException if the text is not valid
+   */
+  public static LocalDateTime parseUpperBound(String text) {
+    IsoDateParser parser = parse(text);
+    if (parser.date) {
+      return parser.localDate().atTime(LocalTime.MAX);
+    }
+    int month = parser.validMonth ? parser.month : 12;
+    return LocalDate.of(parser.year, month, lengthOfMonth(parser.year, month)).atTime(LocalTime.MAX);
+  }
+
+  private static IsoDateParser parse(String text) {
+    IsoDateParser parser = new IsoDateParser(text);
+    parser.parseSections();
+    parser.resolve();
+    return parser;
+  }
+
+  private LocalDate localDate() {
+    LocalDate localDate = LocalDate.of(year, month, day);
+    return nextDay ? localDate.plusDays(1) : localDate;
+  }
+
+  private static int[] dateTime(int... tokens) {
+    int[] section = new int[DATE_HOUR_MINUTE.length + tokens.length];
+    System.arraycopy(DATE_HOUR_MINUTE, 0, section, 0, DATE_HOUR_MINUTE.length);
+    System.arraycopy(tokens, 0, section, DATE_HOUR_MINUTE.length, tokens.length);
+    return section;
+  }
+
+  /** Tries each section from the end of the last one that matched, the whole text must be parsed. */
+  private void parseSections() {
+    int pos = 0;
+    // the first sections share a prefix, if it fails at a position all of them fail there
+    int prefixFailure = -1;
+    for (int i = 0; i < SECTIONS.length; i++) {
+      if (i < DATE_TIME_SECTIONS && pos == prefixFailure) {
+        continue;
+      }
+      int result = parseSection(SECTIONS[i], pos);
+      if (result >= 0) {
+        pos = result;
+        System.arraycopy(sectionValues, 0, values, 0, FIELDS);
+        parsed = sectionParsed;
+      } else if (~result < DATE_HOUR_MINUTE.length) {
+        prefixFailure = pos;
+      }
+    }
+    if (pos != text.length()) {
+      throw new DateTimeParseException(
+          "Text '" + text + "' could not be parsed, unparsed text found at index " + pos, text, pos);
+    }
+  }
+
+  /** @return the end position of the section, or the complement of the index of the failed token */
+  private int parseSection(int[] section, int position) {
+    System.arraycopy(values, 0, sectionValues, 0, FIELDS);
+    sectionParsed = parsed;
+    int pos = position;
+    for (int i = 0; i < section.length; i++) {
+      pos = parseToken(section[i], pos);
+      if (pos < 0) {
+        return ~i;
+      }
+    }
+    return pos;
+  }
+
+  /** @return the position after the token, or a negative value if it can't be parsed */
+  private int parseToken(int token, int pos) {
+    switch (token) {
+      case YEAR:
+        return parseYear(pos);
+      case MONTH:
+      case DAY:
+      case HOUR:
+      case MINUTE:
+      case SECOND:
+        return parseTwoDigits(token, pos);
+      case FRACTION_3:
+      case FRACTION_4:
+      case FRACTION_5:
+      case FRACTION_6:
+        return parseFraction(token - FRACTION_3 + 3, pos);
+      case OFFSET_ID:
+        return parseOffset(pos);
+      default:
+        return pos < text.length() && text.charAt(pos) == token ? pos + 1 : -1;
+    }
+  }
+
+  /**
+   * Year of 4 digits, or more than 4 digits after a plus sign. Negative years are never valid, so
+   * they are rejected here instead of during the resolution.
+   */
+  private int parseYear(int pos) {
+    int length = text.length();
+    if (pos == length) {
+      return -1;
+    }
+    char sign = text.charAt(pos);
+    if (sign == '-') {
+      return -1;
+    }
+    boolean positive = sign == '+';
+    int start = positive ? pos + 1 : pos;
+    if (start + 4 > length) {
+      return -1;
+    }
+
+    int maxEnd = Math.min(start + 19, length);
+    int end = start;
+    long total = 0;
+    while (end < maxEnd && isDigit(text.charAt(end))) {
+      int digit = text.charAt(end) - '0';
+      if (end - start == 18 && total > (Long.MAX_VALUE - digit) / 10) {
+        // the 19th digit would overflow, it's left unparsed
+        break;
+      }
+      total = total * 10 + digit;
+      end++;
+    }
+
+    int digits = end - start;
+    if (digits < 4 || (positive && digits <= 4) || (!positive && digits > 4)) {
+      return -1;
+    }
+    return setField(YEAR, total) ? end : -1;
+  }
+
+  private int parseTwoDigits(int field, int pos) {
+    if (pos + 2 > text.length() || !isDigit(text.charAt(pos)) || !isDigit(text.charAt(pos + 1))) {
+      return -1;
+    }
+    long value = (text.charAt(pos) - '0') * 10 + (text.charAt(pos + 1) - '0');
+    return setField(field, value) ? pos + 2 : -1;
+  }
+
+  private int parseFraction(int digits, int pos) {
+    if (pos + digits > text.length()) {
+      return -1;
+    }
+    long total = 0;
+    for (int i = pos; i < pos + digits; i++) {
+      if (!isDigit(text.charAt(i))) {
+        return -1;
+      }
+      total = total * 10 + (text.charAt(i) - '0');
+    }
+    return setField(NANO, total * FRACTION_SCALE[digits - 3]) ? pos + digits : -1;
+  }
+
+  /** Offset as +HH:MM or Z. */
+  private int parseOffset(int pos) {
+    int length = text.length();
+    if (pos == length) {
+      return -1;
+    }
+    char sign = text.charAt(pos);
+    if (sign == 'Z') {
+      return setField(OFFSET, 0) ? pos + 1 : -1;
+    }
+    if (sign != '+' && sign != '-') {
+      return -1;
+    }
+
+    int hours = offsetDigits(pos + 1, false);
+    int minutes = hours < 0 ? -1 : offsetDigits(pos + 3, true);
+    if (minutes < 0) {
+      return -1;
+    }
+    if (hours > 23) {
+      throw new DateTimeParseException(
+          "Text '" + text + "' could not be parsed: Value out of range: Hour[0-23], Minute[0-59], Second[0-59]",
+          text,
+          0);
+    }
+    long offsetSeconds = (sign == '-' ? -1 : 1) * (hours * 3600L + minutes * 60L);
+    return setField(OFFSET, offsetSeconds) ? pos + 6 : -1;
+  }
+
+  /** @return two digits of an offset up to 59, optionally preceded by a colon, or -1 */
+  private int offsetDigits(int pos, boolean colon) {
+    if (colon) {
+      if (pos >= text.length() || text.charAt(pos) != ':') {
+        return -1;
+      }
+      pos++;
+    }
+    if (pos + 2 > text.length() || !isDigit(text.charAt(pos)) || !isDigit(text.charAt(pos + 1))) {
+      return -1;
+    }
+    int value = (text.charAt(pos) - '0') * 10 + (text.charAt(pos + 1) - '0');
+    return value > 59 ? -1 : value;
+  }
+
+  /** Sets a field of the current section, a field can't change its value once parsed. */
+  private boolean setField(int field, long value) {
+    int mask = 1 << field;
+    if ((sectionParsed & mask) != 0 && sectionValues[field] != value) {
+      return false;
+    }
+    sectionValues[field] = value;
+    sectionParsed |= mask;
+    return true;
+  }
+
+  private boolean isParsed(int field) {
+    return (parsed & (1 << field)) != 0;
+  }
+
+  /** Validates and resolves the parsed fields as {@code ResolverStyle.SMART} does. */
+  private void resolve() {
+    long yearValue = values[YEAR];
+    if (yearValue < 1 || yearValue > MAX_YEAR) {
+      throw invalidValue("Year", yearValue);
+    }
+    year = (int) yearValue;
+
+    if (isParsed(DAY)) {
+      month = checkRange("MonthOfYear", values[MONTH], 1, 12);
+      int dayOfMonth = checkRange("DayOfMonth", values[DAY], 1, 31);
+      // the last valid day of the month
+      day = Math.min(dayOfMonth, lengthOfMonth(year, month));
+      date = true;
+    } else if (isParsed(MONTH)) {
+      // a month without day is only used if it's valid
+      month = (int) values[MONTH];
+      validMonth = month >= 1 && month <= 12;
+    }
+
+    if (isParsed(HOUR)) {
+      int minute = checkRange("MinuteOfHour", values[MINUTE], 0, 59);
+      long second = isParsed(SECOND) ? values[SECOND] : 0;
+      nano = isParsed(NANO) ? (int) values[NANO] : 0;
+      if (values[HOUR] == 24 && minute == 0 && second == 0 && nano == 0) {
+        // end of day
+        if (year == MAX_YEAR && month == 12 && day == 31) {
+          throw invalidValue("Year", MAX_YEAR + 1L);
+        }
+        nextDay = true;
+      } else {
+        int hour = checkRange("HourOfDay", values[HOUR], 0, 23);
+        secondOfDay = hour * 3600 + minute * 60 + checkRange("SecondOfMinute", second, 0, 59);
+      }
+    }
+
+    if (isParsed(OFFSET) && Math.abs(values[OFFSET]) > MAX_OFFSET_SECONDS) {
+      throw invalidValue("ZoneOffset", values[OFFSET]);
+    }
+  }
+
+  private int checkRange(String field, long value, int min, int max) {
+    if (value < min || value > max) {
+      throw invalidValue(field, value);
+    }
+    return (int) value;
+  }
+
+  private DateTimeParseException invalidValue(String field, long value) {
+    return new DateTimeParseException(
+        "Text '" + text + "' could not be parsed: Invalid value for " + field + ": " + value, text, 0);
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isLeapYear(long year) {
+    return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+  }
+
+  private static int lengthOfMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        return isLeapYear(year) ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  /** Same as {@code LocalDate#toEpochDay} for positive years. */
+  private static long toEpochDay(long year, int month, int day) {
+    long total = 365 * year + (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+    total += (367L * month - 362) / 12;
+    total += day - 1;
+    if (month > 2) {
+      total--;
+      if (!isLeapYear(year)) {
+        total--;
+      }
+    }
+    return total - DAYS_0000_TO_1970;
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common;
+
+import org.gbif.api.model.common.search.SearchRequest;
+import org.gbif.api.model.common.search.SearchResponse;
+import org.gbif.common.search.AutocompleteCache;
+import org.gbif.common.search.EsResponseParser;
+import org.gbif.common.search.EsSearchExecutor;
+import org.gbif.common.search.EsSearchRequestBuilder;
+import org.gbif.common.search.EsSearchResponse;
+import org.gbif.common.search.es.EsClient;
+import org.gbif.common.search.test.Data;
+import org.gbif.common.search.test.DataFieldMapper;
+import org.gbif.common.search.test.DataSearchParameter;
+import org.gbif.common.search.test.DataSearchResultConverter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+
+import static org.gbif.common.search.test.EsResponses.esResponse;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AutocompleteCacheTest {
+
+  private final AutocompleteCache<Data, DataSearchParameter> autocompleteCache =
+      new AutocompleteCache<>(100, Duration.ofMinutes(1), (d, p) -> d.getTitle());
+
+  private EsClient esClient;
+  private EsSearchExecutor<Data, Data, DataSearchParameter> executor;
+
+  @BeforeEach
+  public void setUp() {
+    esClient = mock(EsClient.class);
+    executor =
+        new EsSearchExecutor<>(
+            esClient,
+            new EsSearchRequestBuilder<>(new DataFieldMapper()),
+            new EsResponseParser<>(new DataSearchResultConverter(), new DataFieldMapper()),
+            Data.class,
+            "data");
+  }
+
+  @Test
+  public void testLongerPrefixFromCache() {
+    AtomicInteger loads = new AtomicInteger();
+    Supplier<SearchResponse<Data, DataSearchParameter>> loader =
+        () -> {
+          loads.incrementAndGet();
+          return response(request("bir"), false, "Birds", "Bird songs", "Birches");
+        };
+
+    assertEquals(3, autocompleteCache.get(request("bir"), DataSearchParameter.TITLE, loader).getResults().size());
+
+    // the response of the shorter prefix is complete, it answers the longer one
+    SearchResponse<Data, DataSearchParameter> response =
+        autocompleteCache.get(request("bird"), DataSearchParameter.TITLE, loader);
+    assertEquals(1, loads.get());
+    assertEquals(2, response.getResults().size());
+    assertEquals(1, autocompleteCache.getPrefixHits());
+  }
+
+  @Test
+  public void testPartialResponsesNotCached() {
+    AtomicInteger loads = new AtomicInteger();
+    Supplier<SearchResponse<Data, DataSearchParameter>> loader =
+        () -> {
+          loads.incrementAndGet();
+          return response(request("bir"), true, "Birds");
+        };
+
+    autocompleteCache.get(request("bir"), DataSearchParameter.TITLE, loader);
+    assertEquals(0, autocompleteCache.size());
+
+    // a timed out response may miss documents, neither the same nor longer prefixes use it
+    autocompleteCache.get(request("bir"), DataSearchParameter.TITLE, loader);
+    autocompleteCache.get(request("bird"), DataSearchParameter.TITLE, loader);
+    assertEquals(3, loads.get());
+    assertEquals(0, autocompleteCache.getPrefixHits());
+  }
+
+  @Test
+  public void testAutocompleteRequests() throws IOException {
+    when(esClient.search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenReturn(esResponse("Blue bird", "Birds", "Birches"));
+
+    executor.autocomplete(request("bir"), DataSearchParameter.TITLE, autocompleteCache);
+
+    // the longer prefix discards the results not matching it and ranks first the ones starting with it
+    SearchResponse<Data, DataSearchParameter> response =
+        executor.autocomplete(request("bird"), DataSearchParameter.TITLE, autocompleteCache);
+    assertEquals(Arrays.asList("Birds", "Blue bird"), titles(response));
+    assertEquals(2L, response.getCount());
+
+    // prefixes of up to 2 characters don't use the span query, they aren't answered from longer ones
+    executor.autocomplete(request("bi"), DataSearchParameter.TITLE, autocompleteCache);
+
+    List<co.elastic.clients.elasticsearch.core.SearchRequest> esRequests = esRequests(2);
+    assertEquals(Collections.singletonList("data"), esRequests.get(0).index());
+    assertEquals(10, esRequests.get(0).size());
+    BoolQuery query = esRequests.get(0).query().bool();
+    assertEquals(2, query.should().size());
+    assertEquals("titleAutocomplete", query.should().get(0).match().field());
+    assertEquals("bir", query.should().get(0).match().query().stringValue());
+    assertEquals("bi", esRequests.get(1).query().bool().should().get(0).match().query().stringValue());
+    assertEquals(1, esRequests.get(1).query().bool().should().size());
+
+    assertEquals(1, autocompleteCache.getPrefixHits());
+    assertEquals(2, autocompleteCache.getMisses());
+  }
+
+  @Test
+  public void testFullResponseNotUsed() throws IOException {
+    when(esClient.search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenReturn(esResponse("Birds", "Bird songs"));
+
+    SearchRequest<DataSearchParameter> searchRequest = request("bir");
+    searchRequest.setLimit(2);
+    executor.autocomplete(searchRequest, DataSearchParameter.TITLE, autocompleteCache);
+
+    // as many results as the limit, there may be more documents matching the longer prefix
+    SearchRequest<DataSearchParameter> longerRequest = request("bird");
+    longerRequest.setLimit(2);
+    executor.autocomplete(longerRequest, DataSearchParameter.TITLE, autocompleteCache);
+
+    List<co.elastic.clients.elasticsearch.core.SearchRequest> esRequests = esRequests(2);
+    assertEquals(2, esRequests.get(1).size());
+    assertEquals("bird", esRequests.get(1).query().bool().should().get(0).match().query().stringValue());
+    assertEquals(0, autocompleteCache.getPrefixHits());
+  }
+
+  @Test
+  public void testFilteredRequests() throws IOException {
+    when(esClient.search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenReturn(esResponse("Fishes of Denmark", "Birds"));
+
+    SearchRequest<DataSearchParameter> searchRequest = request("bir");
+    searchRequest.addParameter(DataSearchParameter.COUNTRY, "DK");
+    executor.autocomplete(searchRequest, DataSearchParameter.TITLE, autocompleteCache);
+
+    // Elasticsearch returns all the filtered documents, the prefix only ranks them
+    SearchRequest<DataSearchParameter> longerRequest = request("bird");
+    longerRequest.addParameter(DataSearchParameter.COUNTRY, "DK");
+    SearchResponse<Data, DataSearchParameter> response =
+        executor.autocomplete(longerRequest, DataSearchParameter.TITLE, autocompleteCache);
+    assertEquals(Arrays.asList("Birds", "Fishes of Denmark"), titles(response));
+
+    // the response of other filters is not used
+    executor.autocomplete(request("bird"), DataSearchParameter.TITLE, autocompleteCache);
+
+    List<co.elastic.clients.elasticsearch.core.SearchRequest> esRequests = esRequests(2);
+    assertEquals(1, esRequests.get(0).query().bool().must().size());
+    assertTrue(esRequests.get(0).query().bool().must().get(0).isBool());
+    assertTrue(esRequests.get(1).query().bool().must().isEmpty());
+    assertEquals(1, autocompleteCache.getPrefixHits());
+  }
+
+  @Test
+  public void testOffsetNotCached() throws IOException {
+    when(esClient.search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenReturn(esResponse("Birds"));
+
+    SearchRequest<DataSearchParameter> searchRequest = request("bir");
+    searchRequest.setOffset(10);
+    executor.autocomplete(searchRequest, DataSearchParameter.TITLE, autocompleteCache);
+    executor.autocomplete(searchRequest, DataSearchParameter.TITLE, autocompleteCache);
+
+    assertEquals(10, esRequests(2).get(1).from());
+    assertEquals(0, autocompleteCache.size());
+  }
+
+  private static SearchRequest<DataSearchParameter> request(String q) {
+    SearchRequest<DataSearchParameter> searchRequest = new SearchRequest<>();
+    searchRequest.setQ(q);
+    searchRequest.setLimit(10);
+    return searchRequest;
+  }
+
+  private static SearchResponse<Data, DataSearchParameter> response(
+      SearchRequest<DataSearchParameter> searchRequest, boolean timedOut, String... titles) {
+    EsSearchResponse<Data, DataSearchParameter> response = new EsSearchResponse<>(searchRequest);
+    response.setCount((long) titles.length);
+    response.setResults(
+        Arrays.stream(titles).map(t -> Data.builder().title(t).build()).collect(Collectors.toList()));
+    if (timedOut) {
+      response.setTimedOut(true);
+    }
+    return response;
+  }
+
+  private List<co.elastic.clients.elasticsearch.core.SearchRequest> esRequests(int expected)
+      throws IOException {
+    ArgumentCaptor<co.elastic.clients.elasticsearch.core.SearchRequest> captor =
+        ArgumentCaptor.forClass(co.elastic.clients.elasticsearch.core.SearchRequest.class);
+    verify(esClient, times(expected)).search(captor.capture(), eq(Data.class));
+    return captor.getAllValues();
+  }
+
+  private static List<String> titles(SearchResponse<Data, DataSearchParameter> response) {
+    return response.getResults().stream().map(Data::getTitle).collect(Collectors.toList());
+  }
+}
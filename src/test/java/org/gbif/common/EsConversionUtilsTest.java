@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common;
+
+import org.gbif.common.search.es.EsConversionUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.json.JsonData;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EsConversionUtilsTest {
+
+  @Test
+  public void testFieldValues() {
+    // the fields API and doc values return arrays, the fields win over the source
+    Hit<Map<String, Object>> hit =
+        new Hit.Builder<Map<String, Object>>()
+            .id("1")
+            .index("data")
+            .fields("title", JsonData.of(Arrays.asList("Birds", "Fishes")))
+            .fields("key", JsonData.of(Collections.singletonList(7)))
+            .fields("empty", JsonData.of(Collections.emptyList()))
+            .source(Collections.singletonMap("title", "Source title"))
+            .build();
+
+    assertEquals(Optional.of("Birds"), EsConversionUtils.getStringValue(hit, "title"));
+    assertEquals(Optional.of(Arrays.asList("Birds", "Fishes")), EsConversionUtils.getListValue(hit, "title"));
+    assertEquals(Optional.of(7), EsConversionUtils.getIntValue(hit, "key"));
+    assertEquals(Optional.of(Collections.singletonList("7")), EsConversionUtils.getListValue(hit, "key"));
+    assertEquals(Optional.empty(), EsConversionUtils.getListValue(hit, "empty"));
+  }
+
+  @Test
+  public void testMapSource() {
+    Hit<Map<String, Object>> hit =
+        new Hit.Builder<Map<String, Object>>().id("1").index("data").source(source()).build();
+
+    assertEquals(Optional.of("Birds"), EsConversionUtils.getStringValue(hit, "title"));
+    assertEquals(Optional.of(12), EsConversionUtils.getIntValue(hit, "count"));
+    // single values are lists of one value, converted to strings
+    assertEquals(Optional.of(Collections.singletonList("12")), EsConversionUtils.getListValue(hit, "count"));
+    assertEquals(Optional.of(Arrays.asList("bird", "sea")), EsConversionUtils.getListValue(hit, "tags"));
+    // nested objects
+    assertEquals(Optional.of("DK"), EsConversionUtils.getStringValue(hit, "country.code"));
+    assertEquals(
+        Optional.of(Collections.singletonList(Collections.singletonMap("name", "Ann"))),
+        EsConversionUtils.getObjectsListValue(hit, "authors"));
+  }
+
+  @Test
+  public void testJsonDataSource() {
+    JsonData source = mock(JsonData.class);
+    when(source.to(Map.class)).thenReturn(source());
+    Hit<JsonData> hit = new Hit.Builder<JsonData>().id("1").index("data").source(source).build();
+
+    assertEquals(Optional.of("Birds"), EsConversionUtils.getStringValue(hit, "title"));
+    assertEquals(Optional.of("DK"), EsConversionUtils.getStringValue(hit, "country.code"));
+    assertEquals(Optional.of(Arrays.asList("bird", "sea")), EsConversionUtils.getListValue(hit, "tags"));
+    assertEquals(Optional.empty(), EsConversionUtils.getStringValue(hit, "missing"));
+
+    // the source is converted once for all the fields read
+    verify(source, times(1)).to(Map.class);
+  }
+
+  @Test
+  public void testMissingField() {
+    Hit<Map<String, Object>> hit =
+        new Hit.Builder<Map<String, Object>>().id("1").index("data").source(source()).build();
+    assertEquals(Optional.empty(), EsConversionUtils.getStringValue(hit, "missing"));
+    assertEquals(Optional.empty(), EsConversionUtils.getListValue(hit, "country.name"));
+    assertEquals(Optional.empty(), EsConversionUtils.getStringValue(hit, "title.missing"));
+
+    // hits without source nor fields
+    Hit<Object> emptyHit = new Hit.Builder<Object>().id("2").index("data").build();
+    assertEquals(Optional.empty(), EsConversionUtils.getStringValue(emptyHit, "title"));
+    assertEquals(Optional.empty(), EsConversionUtils.getListValue(emptyHit, "title"));
+  }
+
+  private static Map<String, Object> source() {
+    Map<String, Object> source = new HashMap<>();
+    source.put("title", "Birds");
+    source.put("count", 12);
+    source.put("tags", Arrays.asList("bird", "sea"));
+    source.put("country", Collections.singletonMap("code", "DK"));
+    source.put("authors", Collections.singletonList(Collections.singletonMap("name", "Ann")));
+    return source;
+  }
+}
@@ -0,0 +1,291 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common;
+
+import org.gbif.common.search.EsMultiSearchBatcher;
+import org.gbif.common.search.SearchException;
+import org.gbif.common.search.es.EsClient;
+import org.gbif.common.search.test.Data;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch.core.MsearchRequest;
+import co.elastic.clients.elasticsearch.core.MsearchResponse;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.msearch.MultiSearchItem;
+import co.elastic.clients.elasticsearch.core.msearch.MultiSearchResponseItem;
+import co.elastic.clients.elasticsearch.core.msearch.MultisearchBody;
+import co.elastic.clients.elasticsearch.core.msearch.RequestItem;
+import co.elastic.clients.elasticsearch.core.search.ResponseBody;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EsMultiSearchBatcherTest {
+
+  private EsClient esClient;
+
+  @BeforeEach
+  public void setUp() {
+    esClient = mock(EsClient.class);
+    when(esClient.msearchAsync(any(MsearchRequest.class), eq(Data.class)))
+        .thenAnswer(EsMultiSearchBatcherTest::respond);
+  }
+
+  @Test
+  public void testFullBatch() throws Exception {
+    try (EsMultiSearchBatcher<Data> batcher =
+        new EsMultiSearchBatcher<>(esClient, Data.class, 2, Duration.ofMinutes(1))) {
+      CompletableFuture<ResponseBody<Data>> first = batcher.submit(request("birds"));
+      assertFalse(first.isDone());
+      CompletableFuture<ResponseBody<Data>> second = batcher.submit(request("fishes"));
+
+      // the second request fills the batch, both are sent without waiting for the window
+      assertEquals(1, first.get(1, TimeUnit.SECONDS).took());
+      assertEquals(1, second.get(1, TimeUnit.SECONDS).took());
+      assertEquals(1, batcher.getBatches());
+      assertEquals(2, batcher.getBatchedRequests());
+
+      ArgumentCaptor<MsearchRequest> captor = ArgumentCaptor.forClass(MsearchRequest.class);
+      verify(esClient).msearchAsync(captor.capture(), eq(Data.class));
+      assertEquals(2, captor.getValue().searches().size());
+    }
+  }
+
+  @Test
+  public void testBatchWindow() throws Exception {
+    try (EsMultiSearchBatcher<Data> batcher =
+        new EsMultiSearchBatcher<>(esClient, Data.class, 10, Duration.ofMillis(500))) {
+      // the window is much longer than the time between both submits
+      CompletableFuture<ResponseBody<Data>> first = batcher.submit(request("birds"));
+      CompletableFuture<ResponseBody<Data>> second = batcher.submit(request("fishes"));
+
+      first.get(1, TimeUnit.SECONDS);
+      second.get(1, TimeUnit.SECONDS);
+      assertEquals(1, batcher.getBatches());
+      assertEquals(2, batcher.getBatchedRequests());
+    }
+  }
+
+  @Test
+  public void testRequestItem() throws Exception {
+    SearchRequest request =
+        SearchRequest.of(
+            s ->
+                s.index("data")
+                    .routing("r1")
+                    .requestCache(false)
+                    .size(10)
+                    .minScore(0.5)
+                    .searchAfter(FieldValue.of(5))
+                    .docvalueFields(f -> f.field("created"))
+                    .fields(f -> f.field("title"))
+                    .collapse(c -> c.field("country"))
+                    .query(q -> q.matchAll(m -> m)));
+
+    try (EsMultiSearchBatcher<Data> batcher =
+        new EsMultiSearchBatcher<>(esClient, Data.class, 1, Duration.ofMinutes(1))) {
+      batcher.submit(request).get(1, TimeUnit.SECONDS);
+    }
+
+    ArgumentCaptor<MsearchRequest> captor = ArgumentCaptor.forClass(MsearchRequest.class);
+    verify(esClient).msearchAsync(captor.capture(), eq(Data.class));
+    RequestItem item = captor.getValue().searches().get(0);
+    assertEquals(Collections.singletonList("data"), item.header().index());
+    assertEquals("r1", item.header().routing());
+    assertEquals(Boolean.FALSE, item.header().requestCache());
+
+    MultisearchBody body = item.body();
+    assertEquals(10, body.size());
+    assertEquals(0.5, body.minScore());
+    assertEquals(5L, body.searchAfter().get(0).longValue());
+    assertEquals("created", body.docvalueFields().get(0).field());
+    assertEquals("title", body.fields().get(0).field());
+    assertEquals("country", body.collapse().field());
+    assertTrue(body.query().isMatchAll());
+  }
+
+  @Test
+  public void testUnsupportedSettings() {
+    try (EsMultiSearchBatcher<Data> batcher =
+        new EsMultiSearchBatcher<>(esClient, Data.class, 1, Duration.ofMinutes(1))) {
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> batcher.submit(SearchRequest.of(s -> s.index("data").scroll(t -> t.time("1m")))));
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> batcher.submit(SearchRequest.of(s -> s.index("data").q("title:birds"))));
+    }
+    verify(esClient, never()).msearchAsync(any(MsearchRequest.class), eq(Data.class));
+  }
+
+  @Test
+  public void testItemError() throws Exception {
+    when(esClient.msearchAsync(any(MsearchRequest.class), eq(Data.class)))
+        .thenAnswer(
+            invocation -> {
+              List<MultiSearchResponseItem<Data>> items = new ArrayList<>();
+              items.add(resultItem());
+              items.add(
+                  new MultiSearchResponseItem.Builder<Data>()
+                      .failure(
+                          f -> f.status(400).error(e -> e.type("parsing_exception").reason("bad query")))
+                      .build());
+              return CompletableFuture.completedFuture(
+                  new MsearchResponse.Builder<Data>().took(1).responses(items).build());
+            });
+
+    try (EsMultiSearchBatcher<Data> batcher =
+        new EsMultiSearchBatcher<>(esClient, Data.class, 2, Duration.ofMinutes(1))) {
+      CompletableFuture<ResponseBody<Data>> first = batcher.submit(request("birds"));
+      CompletableFuture<ResponseBody<Data>> second = batcher.submit(request("fishes"));
+
+      // only the future of the failed item fails
+      assertEquals(1, first.get(1, TimeUnit.SECONDS).took());
+      ExecutionException ex =
+          assertThrows(ExecutionException.class, () -> second.get(1, TimeUnit.SECONDS));
+      assertTrue(ex.getCause() instanceof SearchException);
+      assertTrue(ex.getCause().getMessage().contains("bad query"));
+    }
+  }
+
+  @Test
+  public void testMultiSearchError() {
+    CompletableFuture<MsearchResponse<Data>> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new IllegalStateException("node down"));
+    when(esClient.msearchAsync(any(MsearchRequest.class), eq(Data.class))).thenReturn(failed);
+
+    try (EsMultiSearchBatcher<Data> batcher =
+        new EsMultiSearchBatcher<>(esClient, Data.class, 2, Duration.ofMinutes(1))) {
+      CompletableFuture<ResponseBody<Data>> first = batcher.submit(request("birds"));
+      CompletableFuture<ResponseBody<Data>> second = batcher.submit(request("fishes"));
+
+      assertThrows(ExecutionException.class, () -> first.get(1, TimeUnit.SECONDS));
+      assertThrows(ExecutionException.class, () -> second.get(1, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testSubmitAfterClose() throws Exception {
+    EsMultiSearchBatcher<Data> batcher =
+        new EsMultiSearchBatcher<>(esClient, Data.class, 10, Duration.ofMinutes(1));
+    CompletableFuture<ResponseBody<Data>> pending = batcher.submit(request("birds"));
+    batcher.close();
+
+    // the remaining batch is sent on close
+    assertEquals(1, pending.get(1, TimeUnit.SECONDS).took());
+
+    CompletableFuture<ResponseBody<Data>> late = batcher.submit(request("fishes"));
+    ExecutionException ex =
+        assertThrows(ExecutionException.class, () -> late.get(1, TimeUnit.SECONDS));
+    assertTrue(ex.getCause() instanceof SearchException);
+    verify(esClient, times(1)).msearchAsync(any(MsearchRequest.class), eq(Data.class));
+  }
+
+  @Test
+  public void testCloseSubmitRace() throws Exception {
+    int threads = 8;
+    int requestsPerThread = 200;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (int round = 0; round < 20; round++) {
+        EsMultiSearchBatcher<Data> batcher =
+            new EsMultiSearchBatcher<>(esClient, Data.class, 7, Duration.ofMinutes(1));
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<CompletableFuture<ResponseBody<Data>>>>> submitted = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+          submitted.add(
+              executor.submit(
+                  () -> {
+                    start.await();
+                    List<CompletableFuture<ResponseBody<Data>>> futures = new ArrayList<>();
+                    for (int i = 0; i < requestsPerThread; i++) {
+                      futures.add(batcher.submit(request("birds")));
+                    }
+                    return futures;
+                  }));
+        }
+        start.countDown();
+        batcher.close();
+
+        // every future completes, either sent or failed for being submitted after the close
+        for (Future<List<CompletableFuture<ResponseBody<Data>>>> f : submitted) {
+          for (CompletableFuture<ResponseBody<Data>> future : f.get(5, TimeUnit.SECONDS)) {
+            try {
+              future.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException ex) {
+              assertTrue(ex.getCause() instanceof SearchException);
+            }
+          }
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static SearchRequest request(String q) {
+    return SearchRequest.of(
+        s -> s.index("data").size(10).query(qb -> qb.match(m -> m.field("title").query(q))));
+  }
+
+  /** Successful items for all the searches of the request. */
+  private static CompletableFuture<MsearchResponse<Data>> respond(InvocationOnMock invocation) {
+    MsearchRequest request = invocation.getArgument(0);
+    List<MultiSearchResponseItem<Data>> items = new ArrayList<>();
+    for (int i = 0; i < request.searches().size(); i++) {
+      items.add(resultItem());
+    }
+    return CompletableFuture.completedFuture(
+        new MsearchResponse.Builder<Data>().took(1).responses(items).build());
+  }
+
+  private static MultiSearchResponseItem<Data> resultItem() {
+    return new MultiSearchResponseItem.Builder<Data>()
+        .result(
+            new MultiSearchItem.Builder<Data>()
+                .took(1)
+                .timedOut(false)
+                .status(200)
+                .shards(s -> s.successful(1).failed(0).total(1))
+                .hits(h -> h.hits(Collections.emptyList()))
+                .build())
+        .build();
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common;
+
+import org.gbif.api.model.common.search.SearchRequest;
+import org.gbif.common.search.EsResponseCache;
+import org.gbif.common.search.EsResponseParser;
+import org.gbif.common.search.EsSearchExecutor;
+import org.gbif.common.search.EsSearchRequestBuilder;
+import org.gbif.common.search.es.EsClient;
+import org.gbif.common.search.test.Data;
+import org.gbif.common.search.test.DataFieldMapper;
+import org.gbif.common.search.test.DataSearchParameter;
+import org.gbif.common.search.test.DataSearchResultConverter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+
+import static org.gbif.common.search.test.EsResponses.esResponseBuilder;
+import static org.gbif.common.search.test.EsResponses.hits;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EsResponseCacheTest {
+
+  private EsClient esClient;
+  private EsResponseCache responseCache;
+  private EsSearchExecutor<Data, Data, DataSearchParameter> executor;
+
+  @BeforeEach
+  public void setUp() {
+    esClient = mock(EsClient.class);
+    when(esClient.resolveAlias("data")).thenReturn(new TreeSet<>(Collections.singleton("data_1")));
+    responseCache = new EsResponseCache(esClient, 1000, Duration.ofMinutes(1), Duration.ofMinutes(1));
+    executor =
+        new EsSearchExecutor<>(
+            esClient,
+            new EsSearchRequestBuilder<>(new DataFieldMapper()),
+            new EsResponseParser<>(new DataSearchResultConverter(), new DataFieldMapper()),
+            Data.class,
+            "data",
+            responseCache);
+  }
+
+  @Test
+  public void testCachedResponse() throws IOException {
+    when(esClient.search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenReturn(esResponse(false, null));
+
+    SearchRequest<DataSearchParameter> searchRequest = new SearchRequest<>();
+    searchRequest.setQ("birds");
+
+    org.gbif.api.model.common.search.SearchResponse<Data, DataSearchParameter> response =
+        executor.search(searchRequest);
+    assertSame(response, executor.search(searchRequest));
+    verify(esClient, times(1)).search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class));
+    assertEquals(1, responseCache.size());
+  }
+
+  @Test
+  public void testPartialResponsesNotCached() throws IOException {
+    when(esClient.search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenReturn(esResponse(true, null))
+        .thenReturn(esResponse(false, true))
+        .thenReturn(esResponse(false, null));
+
+    SearchRequest<DataSearchParameter> searchRequest = new SearchRequest<>();
+    searchRequest.setQ("birds");
+
+    // timed out and terminated early responses are executed again
+    executor.search(searchRequest);
+    assertEquals(0, responseCache.size());
+    executor.search(searchRequest);
+    assertEquals(0, responseCache.size());
+    executor.search(searchRequest);
+    executor.search(searchRequest);
+    verify(esClient, times(3)).search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class));
+    assertEquals(1, responseCache.size());
+  }
+
+  @Test
+  public void testResponsesByParser() throws IOException {
+    when(esClient.search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenReturn(esResponse(false, null));
+
+    // same index and request, but other result type
+    EsSearchExecutor<String, Data, DataSearchParameter> idsExecutor =
+        new EsSearchExecutor<>(
+            esClient,
+            new EsSearchRequestBuilder<>(new DataFieldMapper()),
+            new EsResponseParser<>(Hit::id, new DataFieldMapper()),
+            Data.class,
+            "data",
+            responseCache);
+
+    SearchRequest<DataSearchParameter> searchRequest = new SearchRequest<>();
+    searchRequest.setQ("birds");
+
+    assertEquals("Birds", executor.search(searchRequest).getResults().get(0).getTitle());
+    String id = idsExecutor.search(searchRequest).getResults().get(0);
+    assertEquals("1", id);
+    verify(esClient, times(2)).search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class));
+    assertEquals(2, responseCache.size());
+  }
+
+  @Test
+  public void testAliasSwapAndClose() throws IOException {
+    when(esClient.search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenReturn(esResponse(false, null));
+    verify(esClient).addAliasSwapListener(responseCache);
+
+    SearchRequest<DataSearchParameter> searchRequest = new SearchRequest<>();
+    searchRequest.setQ("birds");
+
+    // swaps of other aliases keep the responses
+    executor.search(searchRequest);
+    responseCache.onAliasSwapped("other", "other_2");
+    assertEquals(1, responseCache.size());
+    responseCache.onAliasSwapped("data", "data_2");
+    assertEquals(0, responseCache.size());
+
+    executor.search(searchRequest);
+    responseCache.close();
+    verify(esClient).removeAliasSwapListener(responseCache);
+    assertEquals(0, responseCache.size());
+  }
+
+  private static SearchResponse<Data> esResponse(boolean timedOut, Boolean terminatedEarly) {
+    return esResponseBuilder(hits("Birds")).timedOut(timedOut).terminatedEarly(terminatedEarly).build();
+  }
+}
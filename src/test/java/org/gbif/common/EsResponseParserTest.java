@@ -13,23 +13,49 @@
  */
 package org.gbif.common;
 
+import org.gbif.api.model.common.search.Facet;
 import org.gbif.api.model.common.search.FacetedSearchRequest;
+import org.gbif.api.model.common.search.SearchRequest;
 import org.gbif.api.vocabulary.Country;
 import org.gbif.common.search.EsResponseParser;
+import org.gbif.common.search.EsSearchRequestBuilder;
+import org.gbif.common.search.EsSearchResponse;
+import org.gbif.common.search.SearchCursor;
 import org.gbif.common.search.test.Data;
 import org.gbif.common.search.test.DataFieldMapper;
 import org.gbif.common.search.test.DataSearchParameter;
 import org.gbif.common.search.test.DataSearchResultConverter;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
+import co.elastic.clients.elasticsearch._types.aggregations.CompositeBucket;
+import co.elastic.clients.elasticsearch._types.aggregations.LongTermsBucket;
+import co.elastic.clients.elasticsearch._types.aggregations.StringTermsBucket;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
 import co.elastic.clients.elasticsearch.core.search.Hit;
 import co.elastic.clients.elasticsearch.core.search.TotalHitsRelation;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+
+import static org.gbif.common.search.test.EsResponses.esResponse;
+import static org.gbif.common.search.test.EsResponses.esResponseBuilder;
+import static org.gbif.common.search.test.EsResponses.hit;
+import static org.gbif.common.search.test.EsResponses.hits;
 
 public class EsResponseParserTest {
 
@@ -67,4 +93,252 @@ public class EsResponseParserTest {
     Assertions.assertNotNull(response);
     Assertions.assertEquals(hitSource, response.getResults().get(0));
   }
+
+  @Test
+  public void buildStreamedTest() throws IOException {
+    String body =
+      "{\"took\":1,\"timed_out\":true,"
+        + "\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0},"
+        + "\"hits\":{\"total\":{\"value\":2,\"relation\":\"eq\"},\"max_score\":1.0,\"hits\":["
+        + "{\"_index\":\"data\",\"_id\":\"1\",\"_score\":1.0,\"_source\":{\"title\":\"D1\"}},"
+        + "{\"_index\":\"data\",\"_id\":\"2\",\"_score\":1.0,\"_source\":{\"title\":\"D2\"}}]},"
+        + "\"aggregations\":{\"sterms#country\":{\"doc_count_error_upper_bound\":0,"
+        + "\"sum_other_doc_count\":0,\"buckets\":[{\"key\":\"DK\",\"doc_count\":2}]}}}";
+
+    // the hits are converted as they are read
+    EsResponseParser<String, Object, DataSearchParameter> streamingParser =
+      new EsResponseParser<>(Hit::id, new DataFieldMapper());
+
+    FacetedSearchRequest<DataSearchParameter> request = new FacetedSearchRequest<>();
+    request.setFacets(Collections.singleton(DataSearchParameter.COUNTRY));
+
+    org.gbif.api.model.common.search.SearchResponse<String, DataSearchParameter> response =
+      streamingParser.buildStreamedSearchResponse(
+        new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+        new JacksonJsonpMapper(),
+        Object.class,
+        request);
+
+    Assertions.assertEquals(Arrays.asList("1", "2"), response.getResults());
+    Assertions.assertEquals(2L, response.getCount());
+    Assertions.assertEquals(1, response.getFacets().size());
+    Assertions.assertEquals(2L, response.getFacets().get(0).getCounts().get(0).getCount());
+    Assertions.assertTrue(((EsSearchResponse<String, DataSearchParameter>) response).getTimedOut());
+  }
+
+  @Test
+  public void buildStreamedTypedKeysTest() throws IOException {
+    // aggregations before the hits, a hit with a "hits" field in its source
+    String body =
+      "{\"took\":1,\"timed_out\":false,"
+        + "\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0},"
+        + "\"aggregations\":{"
+        + "\"lterms#key\":{\"doc_count_error_upper_bound\":0,\"sum_other_doc_count\":0,"
+        + "\"buckets\":[{\"key\":1,\"doc_count\":1},{\"key\":2,\"doc_count\":1}]},"
+        + "\"sterms#country\":{\"doc_count_error_upper_bound\":0,\"sum_other_doc_count\":0,"
+        + "\"buckets\":[{\"key\":\"DK\",\"doc_count\":2}]}},"
+        + "\"hits\":{\"total\":{\"value\":2,\"relation\":\"eq\"},\"max_score\":1.0,\"hits\":["
+        + "{\"_index\":\"data\",\"_id\":\"1\",\"_score\":1.0,\"_source\":{\"title\":\"D1\",\"hits\":{\"hits\":[]}}},"
+        + "{\"_index\":\"data\",\"_id\":\"2\",\"_score\":1.0,\"_source\":{\"title\":\"D2\"}}]}}";
+
+    FacetedSearchRequest<DataSearchParameter> request = new FacetedSearchRequest<>();
+    request.setFacets(new HashSet<>(Arrays.asList(DataSearchParameter.KEY, DataSearchParameter.COUNTRY)));
+
+    org.gbif.api.model.common.search.SearchResponse<String, DataSearchParameter> response = buildStreamed(body, request);
+
+    Assertions.assertEquals(Arrays.asList("1", "2"), response.getResults());
+    Assertions.assertEquals(2, response.getFacets().size());
+    Map<DataSearchParameter, Facet<DataSearchParameter>> facets =
+      response.getFacets().stream().collect(Collectors.toMap(Facet::getField, f -> f));
+    Assertions.assertEquals(2, facets.get(DataSearchParameter.KEY).getCounts().size());
+    Assertions.assertEquals("1", facets.get(DataSearchParameter.KEY).getCounts().get(0).getName());
+    Assertions.assertEquals("DK", facets.get(DataSearchParameter.COUNTRY).getCounts().get(0).getName());
+    Assertions.assertFalse(Boolean.TRUE.equals(((EsSearchResponse<String, DataSearchParameter>) response).getTimedOut()));
+  }
+
+  @Test
+  public void buildStreamedEmptyTest() throws IOException {
+    String body =
+      "{\"took\":0,\"timed_out\":false,"
+        + "\"_shards\":{\"total\":1,\"successful\":1,\"failed\":0},"
+        + "\"hits\":{\"total\":{\"value\":0,\"relation\":\"eq\"},\"max_score\":null,\"hits\":[]}}";
+
+    org.gbif.api.model.common.search.SearchResponse<String, DataSearchParameter> response =
+      buildStreamed(body, new FacetedSearchRequest<>());
+
+    Assertions.assertTrue(response.getResults().isEmpty());
+    Assertions.assertEquals(0L, response.getCount());
+    Assertions.assertTrue(response.getFacets().isEmpty());
+  }
+
+  @Test
+  public void buildStreamedPartialTest() throws IOException {
+    // terminated early with a failed shard
+    String body =
+      "{\"took\":5,\"timed_out\":false,\"terminated_early\":true,"
+        + "\"_shards\":{\"total\":2,\"successful\":1,\"skipped\":0,\"failed\":1,\"failures\":["
+        + "{\"shard\":1,\"index\":\"data\",\"node\":\"n1\",\"reason\":{\"type\":\"node_not_connected_exception\",\"reason\":\"node down\"}}]},"
+        + "\"hits\":{\"total\":{\"value\":1,\"relation\":\"eq\"},\"max_score\":1.0,\"hits\":["
+        + "{\"_index\":\"data\",\"_id\":\"1\",\"_score\":1.0,\"_source\":{\"title\":\"D1\"}}]}}";
+
+    EsSearchResponse<String, DataSearchParameter> response =
+      (EsSearchResponse<String, DataSearchParameter>) buildStreamed(body, new FacetedSearchRequest<>());
+
+    Assertions.assertEquals(Collections.singletonList("1"), response.getResults());
+    Assertions.assertTrue(response.getTerminatedEarly());
+    Assertions.assertTrue(response.getCountLowerBound());
+  }
+
+  @Test
+  public void buildSearchAfterTest() {
+    SearchRequest<DataSearchParameter> request = new SearchRequest<>();
+    request.setLimit(2);
+    SearchCursor cursor = SearchCursor.start("pit1", "1m");
+
+    // a full page points to the next one, after the last hit and on the latest point-in-time
+    EsSearchResponse<Data, DataSearchParameter> response =
+      responseParser.buildSearchAfterResponse(
+        esResponseBuilder(Arrays.asList(hit(1, "D1"), hit(2, "D2"))).pitId("pit2").build(), request, cursor);
+    Assertions.assertEquals(2, response.getResults().size());
+    SearchCursor next = SearchCursor.decode(response.getNext());
+    Assertions.assertEquals("pit2", next.getPitId());
+    Assertions.assertEquals("1m", next.getKeepAlive());
+    Assertions.assertEquals(1, next.getSearchAfter().size());
+    Assertions.assertEquals(2L, next.getSearchAfter().get(0).longValue());
+
+    // responses without a point-in-time id keep the one of the cursor
+    next =
+      SearchCursor.decode(
+        responseParser.buildSearchAfterResponse(esResponse("D1", "D2"), request, cursor).getNext());
+    Assertions.assertEquals("pit1", next.getPitId());
+
+    // a short page is the last one
+    response =
+      responseParser.buildSearchAfterResponse(
+        esResponseBuilder(Collections.singletonList(hit(3, "D3"))).pitId("pit2").build(), request, cursor);
+    Assertions.assertEquals(1, response.getResults().size());
+    Assertions.assertNull(response.getNext());
+    Assertions.assertNull(responseParser.buildSearchAfterResponse(esResponse(), request, cursor).getNext());
+  }
+
+  @Test
+  public void buildMultiselectFacetsTest() {
+    // both facets are filtered by the same parameters and share a filter aggregation
+    Map<String, Aggregate> termsAggs = new HashMap<>();
+    termsAggs.put(
+      "filtered_country",
+      Aggregate.of(a -> a.sterms(t -> t.buckets(b -> b.array(Arrays.asList(
+        StringTermsBucket.of(sb -> sb.key("DK").docCount(5)),
+        StringTermsBucket.of(sb -> sb.key("SE").docCount(2))))))));
+    termsAggs.put(
+      "filtered_key",
+      Aggregate.of(a -> a.lterms(t -> t.buckets(b -> b.array(Collections.singletonList(
+        LongTermsBucket.of(lb -> lb.key(1L).docCount(7))))))));
+    SearchResponse<Data> searchResponse =
+      esResponseBuilder(hits("D1"))
+        .aggregations("country", Aggregate.of(a -> a.filter(f -> f.docCount(7).aggregations(termsAggs))))
+        .build();
+
+    FacetedSearchRequest<DataSearchParameter> request = new FacetedSearchRequest<>();
+    request.setFacetMultiSelect(true);
+    request.setFacets(new HashSet<>(Arrays.asList(DataSearchParameter.COUNTRY, DataSearchParameter.KEY)));
+    request.addParameter(DataSearchParameter.TITLE, "D1");
+
+    Map<DataSearchParameter, Map<String, Long>> facets =
+      responseParser.buildSearchResponse(searchResponse, request).getFacets().stream()
+        .collect(Collectors.toMap(Facet::getField, EsResponseParserTest::counts));
+    Assertions.assertEquals(2, facets.size());
+    Map<String, Long> countryCounts = new HashMap<>();
+    countryCounts.put("DK", 5L);
+    countryCounts.put("SE", 2L);
+    Assertions.assertEquals(countryCounts, facets.get(DataSearchParameter.COUNTRY));
+    Assertions.assertEquals(Collections.singletonMap("1", 7L), facets.get(DataSearchParameter.KEY));
+  }
+
+  @Test
+  public void buildCompositeFacetsTest() {
+    FacetedSearchRequest<DataSearchParameter> request = new FacetedSearchRequest<>();
+    request.setFacets(new HashSet<>(Arrays.asList(DataSearchParameter.KEY, DataSearchParameter.TITLE)));
+    request.setFacetLimit(2);
+
+    // a full page of keys and the last page of titles
+    SearchResponse<Data> searchResponse =
+      esResponseBuilder(hits("D1"))
+        .aggregations("key", compositeAggregate("key", FieldValue.of(1), 5, FieldValue.of(2), 3))
+        .aggregations("title", compositeAggregate("title", FieldValue.of("D1"), 4))
+        .build();
+
+    EsSearchResponse<Data, DataSearchParameter> response =
+      (EsSearchResponse<Data, DataSearchParameter>) responseParser.buildSearchResponse(searchResponse, request);
+    Map<DataSearchParameter, Map<String, Long>> facets =
+      response.getFacets().stream().collect(Collectors.toMap(Facet::getField, EsResponseParserTest::counts));
+    Map<String, Long> keyCounts = new HashMap<>();
+    keyCounts.put("1", 5L);
+    keyCounts.put("2", 3L);
+    Assertions.assertEquals(keyCounts, facets.get(DataSearchParameter.KEY));
+    Assertions.assertEquals(Collections.singletonMap("D1", 4L), facets.get(DataSearchParameter.TITLE));
+
+    // only the full page has a cursor, which continues after its last key
+    Assertions.assertEquals(Collections.singleton(DataSearchParameter.KEY), response.getFacetCursors().keySet());
+    co.elastic.clients.elasticsearch.core.SearchRequest nextRequest =
+      new EsSearchRequestBuilder<>(new DataFieldMapper())
+        .buildCompositeFacetedSearchRequest(request, response.getFacetCursors(), "data");
+    Assertions.assertEquals(2L, nextRequest.aggregations().get("key").composite().after().get("key").longValue());
+    Assertions.assertTrue(nextRequest.aggregations().get("title").composite().after().isEmpty());
+
+    // a short page is the last one
+    searchResponse =
+      esResponseBuilder(hits("D1"))
+        .aggregations("key", compositeAggregate("key", FieldValue.of(3), 1))
+        .build();
+    response = (EsSearchResponse<Data, DataSearchParameter>) responseParser.buildSearchResponse(searchResponse, request);
+    Assertions.assertEquals(1, response.getFacets().get(0).getCounts().size());
+    Assertions.assertNull(response.getFacetCursors());
+  }
+
+  @Test
+  public void buildCompositeFacetsMinCountTest() {
+    FacetedSearchRequest<DataSearchParameter> request = new FacetedSearchRequest<>();
+    request.setFacets(Collections.singleton(DataSearchParameter.KEY));
+    request.setFacetLimit(2);
+    request.setFacetMinCount(3);
+
+    SearchResponse<Data> searchResponse =
+      esResponseBuilder(hits("D1"))
+        .aggregations("key", compositeAggregate("key", FieldValue.of(1), 1, FieldValue.of(2), 3))
+        .build();
+
+    // the min count only filters the values of the page, the next page is still pointed to
+    EsSearchResponse<Data, DataSearchParameter> response =
+      (EsSearchResponse<Data, DataSearchParameter>) responseParser.buildSearchResponse(searchResponse, request);
+    Assertions.assertEquals(Collections.singletonMap("2", 3L), counts(response.getFacets().get(0)));
+    Assertions.assertNotNull(response.getFacetCursors().get(DataSearchParameter.KEY));
+  }
+
+  private static org.gbif.api.model.common.search.SearchResponse<String, DataSearchParameter> buildStreamed(
+    String body, FacetedSearchRequest<DataSearchParameter> request) throws IOException {
+    return new EsResponseParser<String, Object, DataSearchParameter>(Hit::id, new DataFieldMapper())
+      .buildStreamedSearchResponse(
+        new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+        new JacksonJsonpMapper(),
+        Object.class,
+        request);
+  }
+
+  private static Map<String, Long> counts(Facet<DataSearchParameter> facet) {
+    return facet.getCounts().stream().collect(Collectors.toMap(Facet.Count::getName, Facet.Count::getCount));
+  }
+
+  /** Composite aggregation of a single source, keys and doc counts alternate in the buckets. */
+  private static Aggregate compositeAggregate(String field, Object... bucketKeysAndCounts) {
+    List<CompositeBucket> buckets = new ArrayList<>();
+    for (int i = 0; i < bucketKeysAndCounts.length; i += 2) {
+      FieldValue key = (FieldValue) bucketKeysAndCounts[i];
+      long docCount = ((Number) bucketKeysAndCounts[i + 1]).longValue();
+      buckets.add(CompositeBucket.of(b -> b.key(Collections.singletonMap(field, key)).docCount(docCount)));
+    }
+    FieldValue afterKey = buckets.get(buckets.size() - 1).key().get(field);
+    return Aggregate.of(a -> a.composite(c -> c.afterKey(Collections.singletonMap(field, afterKey))
+      .buckets(b -> b.array(buckets))));
+  }
 }
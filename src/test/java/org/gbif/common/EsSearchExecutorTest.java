@@ -0,0 +1,303 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common;
+
+import org.gbif.api.model.common.search.Facet;
+import org.gbif.api.model.common.search.FacetedSearchRequest;
+import org.gbif.api.model.common.search.SearchRequest;
+import org.gbif.api.model.common.search.SearchResponse;
+import org.gbif.common.search.EsResponseParser;
+import org.gbif.common.search.EsSearchExecutor;
+import org.gbif.common.search.EsSearchRequestBuilder;
+import org.gbif.common.search.EsSearchResponse;
+import org.gbif.common.search.LargeTermsPolicy;
+import org.gbif.common.search.SearchException;
+import org.gbif.common.search.SingleFlight;
+import org.gbif.common.search.TermsLookupStore;
+import org.gbif.common.search.es.EsClient;
+import org.gbif.common.search.test.Data;
+import org.gbif.common.search.test.DataFieldMapper;
+import org.gbif.common.search.test.DataSearchParameter;
+import org.gbif.common.search.test.DataSearchResultConverter;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
+import co.elastic.clients.elasticsearch._types.aggregations.LongTermsBucket;
+import co.elastic.clients.elasticsearch._types.aggregations.StringTermsBucket;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+
+import static org.gbif.common.search.test.EsResponses.esResponse;
+import static org.gbif.common.search.test.EsResponses.esResponseBuilder;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EsSearchExecutorTest {
+
+  private static final String HITS = "hits";
+
+  private EsClient esClient;
+  private EsSearchExecutor<Data, Data, DataSearchParameter> executor;
+
+  @BeforeEach
+  public void setUp() {
+    esClient = mock(EsClient.class);
+    executor =
+        new EsSearchExecutor<>(
+            esClient,
+            new EsSearchRequestBuilder<>(new DataFieldMapper()),
+            new EsResponseParser<>(new DataSearchResultConverter(), new DataFieldMapper()),
+            Data.class,
+            "data");
+  }
+
+  @Test
+  public void testSearchAsync() throws Exception {
+    CompletableFuture<co.elastic.clients.elasticsearch.core.SearchResponse<Data>> esResponse =
+        new CompletableFuture<>();
+    when(esClient.searchAsync(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenReturn(esResponse);
+
+    CompletableFuture<SearchResponse<Data, DataSearchParameter>> response =
+        executor.searchAsync(searchRequest());
+
+    // the calling thread isn't blocked, the response is parsed when Elasticsearch answers
+    assertFalse(response.isDone());
+    esResponse.complete(esResponse("Birds"));
+    SearchResponse<Data, DataSearchParameter> parsed = response.get(1, TimeUnit.SECONDS);
+    assertEquals(1L, parsed.getCount());
+    assertEquals("Birds", parsed.getResults().get(0).getTitle());
+  }
+
+  @Test
+  public void testSearchAsyncError() {
+    CompletableFuture<co.elastic.clients.elasticsearch.core.SearchResponse<Data>> esResponse =
+        new CompletableFuture<>();
+    when(esClient.searchAsync(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenReturn(esResponse);
+
+    CompletableFuture<SearchResponse<Data, DataSearchParameter>> response =
+        executor.searchAsync(searchRequest());
+    SearchException error = new SearchException("node down");
+    esResponse.completeExceptionally(error);
+
+    assertSame(error, assertThrows(ExecutionException.class, () -> response.get(1, TimeUnit.SECONDS)).getCause());
+  }
+
+  @Test
+  public void testSearchAsyncCancel() {
+    CompletableFuture<co.elastic.clients.elasticsearch.core.SearchResponse<Data>> esResponse =
+        new CompletableFuture<>();
+    when(esClient.searchAsync(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenReturn(esResponse);
+
+    // cancelling the response aborts the request to Elasticsearch
+    executor.searchAsync(searchRequest()).cancel(true);
+    assertTrue(esResponse.isCancelled());
+  }
+
+  @Test
+  public void testSearchAsyncTermsLookup() throws Exception {
+    CompletableFuture<Void> stored = new CompletableFuture<>();
+    when(esClient.indexAsync(eq("lookups"), anyString(), any())).thenReturn(stored);
+    CompletableFuture<co.elastic.clients.elasticsearch.core.SearchResponse<Data>> esResponse =
+        new CompletableFuture<>();
+    when(esClient.searchAsync(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenReturn(esResponse);
+    TermsLookupStore store = new TermsLookupStore(esClient, "lookups", Duration.ofMinutes(5));
+    DataFieldMapper lookupFieldMapper =
+        new DataFieldMapper() {
+          @Override
+          public LargeTermsPolicy largeTermsPolicy() {
+            return LargeTermsPolicy.lookup(2, 10, store);
+          }
+        };
+    EsSearchExecutor<Data, Data, DataSearchParameter> lookupExecutor =
+        new EsSearchExecutor<>(
+            esClient,
+            new EsSearchRequestBuilder<>(lookupFieldMapper),
+            new EsResponseParser<>(new DataSearchResultConverter(), lookupFieldMapper),
+            Data.class,
+            "data");
+
+    SearchRequest<DataSearchParameter> searchRequest = searchRequest();
+    searchRequest.addParameter(DataSearchParameter.KEY, "1", "2");
+    CompletableFuture<SearchResponse<Data, DataSearchParameter>> response = lookupExecutor.searchAsync(searchRequest);
+
+    // the search is sent once the values are stored, without blocking the calling thread
+    verify(esClient, never()).searchAsync(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class));
+    stored.complete(null);
+    verify(esClient).searchAsync(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class));
+    esResponse.complete(esResponse("Birds"));
+    assertEquals(1L, response.get(1, TimeUnit.SECONDS).getCount());
+  }
+
+  @Test
+  public void testFacetedSearchSplitAsync() throws Exception {
+    Map<String, CompletableFuture<co.elastic.clients.elasticsearch.core.SearchResponse<Data>>> esResponses =
+        splitEsResponses();
+
+    CompletableFuture<SearchResponse<Data, DataSearchParameter>> response =
+        executor.facetedSearchSplitAsync(facetedSearchRequest(), true, 1);
+    assertEquals(new HashSet<>(Arrays.asList(HITS, "country", "key")), esResponses.keySet());
+
+    // the response is built once all the requests answered
+    esResponses.get(HITS).complete(esResponse("Birds"));
+    esResponses.get("country").complete(
+        esResponseBuilder(Collections.<Hit<Data>>emptyList())
+            .timedOut(true)
+            .aggregations("country", Aggregate.of(a -> a.sterms(t -> t.buckets(b -> b.array(
+                Collections.singletonList(StringTermsBucket.of(sb -> sb.key("DK").docCount(5))))))))
+            .build());
+    assertFalse(response.isDone());
+    esResponses.get("key").complete(
+        esResponseBuilder(Collections.<Hit<Data>>emptyList())
+            .aggregations("key", Aggregate.of(a -> a.lterms(t -> t.buckets(b -> b.array(
+                Collections.singletonList(LongTermsBucket.of(lb -> lb.key(1L).docCount(1))))))))
+            .build());
+
+    SearchResponse<Data, DataSearchParameter> parsed = response.get(1, TimeUnit.SECONDS);
+    assertEquals(1L, parsed.getCount());
+    assertEquals("Birds", parsed.getResults().get(0).getTitle());
+    Map<DataSearchParameter, Long> facetCounts =
+        parsed.getFacets().stream()
+            .collect(Collectors.toMap(Facet::getField, f -> f.getCounts().get(0).getCount()));
+    assertEquals(5L, facetCounts.get(DataSearchParameter.COUNTRY));
+    assertEquals(1L, facetCounts.get(DataSearchParameter.KEY));
+    // a partial facets response makes the whole response partial
+    assertTrue(((EsSearchResponse<Data, DataSearchParameter>) parsed).getTimedOut());
+  }
+
+  @Test
+  public void testFacetedSearchSplitAsyncError() {
+    Map<String, CompletableFuture<co.elastic.clients.elasticsearch.core.SearchResponse<Data>>> esResponses =
+        splitEsResponses();
+
+    CompletableFuture<SearchResponse<Data, DataSearchParameter>> response =
+        executor.facetedSearchSplitAsync(facetedSearchRequest(), true, 1);
+    SearchException error = new SearchException("node down");
+    esResponses.get("country").completeExceptionally(error);
+
+    // a failed request cancels the others
+    assertSame(error, assertThrows(ExecutionException.class, () -> response.get(1, TimeUnit.SECONDS)).getCause());
+    assertTrue(esResponses.get(HITS).isCancelled());
+    assertTrue(esResponses.get("key").isCancelled());
+  }
+
+  @Test
+  public void testSingleFlightByParser() throws Exception {
+    // the first search waits until the second one reaches Elasticsearch, unless it's coalesced
+    CountDownLatch secondSearch = new CountDownLatch(1);
+    AtomicInteger searches = new AtomicInteger();
+    when(esClient.search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenAnswer(
+            invocation -> {
+              if (searches.incrementAndGet() == 1) {
+                secondSearch.await(1, TimeUnit.SECONDS);
+              } else {
+                secondSearch.countDown();
+              }
+              return esResponse("Birds");
+            });
+
+    // same index and request, but other result type
+    SingleFlight<Object, SearchResponse<Object, DataSearchParameter>> singleFlight = new SingleFlight<>();
+    EsSearchExecutor<Object, Data, DataSearchParameter> dataExecutor =
+        new EsSearchExecutor<>(
+            esClient,
+            new EsSearchRequestBuilder<>(new DataFieldMapper()),
+            new EsResponseParser<>(Hit::source, new DataFieldMapper()),
+            Data.class,
+            "data",
+            null,
+            singleFlight);
+    EsSearchExecutor<Object, Data, DataSearchParameter> idsExecutor =
+        new EsSearchExecutor<>(
+            esClient,
+            new EsSearchRequestBuilder<>(new DataFieldMapper()),
+            new EsResponseParser<>(Hit::id, new DataFieldMapper()),
+            Data.class,
+            "data",
+            null,
+            singleFlight);
+
+    CompletableFuture<SearchResponse<Object, DataSearchParameter>> data =
+        CompletableFuture.supplyAsync(() -> dataExecutor.search(searchRequest()));
+    while (singleFlight.inFlight() == 0) {
+      Thread.sleep(1);
+    }
+    SearchResponse<Object, DataSearchParameter> ids = idsExecutor.search(searchRequest());
+
+    assertEquals("1", ids.getResults().get(0));
+    assertEquals("Birds", ((Data) data.get(1, TimeUnit.SECONDS).getResults().get(0)).getTitle());
+    assertEquals(2, searches.get());
+    assertEquals(0, singleFlight.getCoalescedCalls());
+  }
+
+  /**
+   * Stubs the asynchronous searches, their responses are completed by the tests.
+   *
+   * @return responses of the hits request and of the aggregation requests by aggregation name
+   */
+  private Map<String, CompletableFuture<co.elastic.clients.elasticsearch.core.SearchResponse<Data>>> splitEsResponses() {
+    Map<String, CompletableFuture<co.elastic.clients.elasticsearch.core.SearchResponse<Data>>> esResponses =
+        new ConcurrentHashMap<>();
+    when(esClient.searchAsync(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenAnswer(
+            invocation -> {
+              co.elastic.clients.elasticsearch.core.SearchRequest request = invocation.getArgument(0);
+              String name =
+                  request.aggregations().isEmpty() ? HITS : request.aggregations().keySet().iterator().next();
+              return esResponses.computeIfAbsent(name, k -> new CompletableFuture<>());
+            });
+    return esResponses;
+  }
+
+  private static FacetedSearchRequest<DataSearchParameter> facetedSearchRequest() {
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.setQ("birds");
+    searchRequest.setFacets(new HashSet<>(Arrays.asList(DataSearchParameter.COUNTRY, DataSearchParameter.KEY)));
+    return searchRequest;
+  }
+
+  private static SearchRequest<DataSearchParameter> searchRequest() {
+    SearchRequest<DataSearchParameter> searchRequest = new SearchRequest<>();
+    searchRequest.setQ("birds");
+    return searchRequest;
+  }
+}
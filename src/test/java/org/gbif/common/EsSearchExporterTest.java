@@ -0,0 +1,180 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common;
+
+import org.gbif.api.model.common.search.SearchRequest;
+import org.gbif.common.search.EsSearchExporter;
+import org.gbif.common.search.EsSearchRequestBuilder;
+import org.gbif.common.search.SearchException;
+import org.gbif.common.search.es.EsClient;
+import org.gbif.common.search.test.Data;
+import org.gbif.common.search.test.DataFieldMapper;
+import org.gbif.common.search.test.DataSearchParameter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+
+import static org.gbif.common.search.test.EsResponses.esResponse;
+import static org.gbif.common.search.test.EsResponses.esResponseBuilder;
+import static org.gbif.common.search.test.EsResponses.hit;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class EsSearchExporterTest {
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private EsClient esClient;
+  private EsSearchExporter<Data, Data, DataSearchParameter> exporter;
+
+  @BeforeEach
+  public void setUp() {
+    esClient = mock(EsClient.class);
+    when(esClient.openPointInTime("data", "1m")).thenReturn("pit1");
+    exporter =
+        new EsSearchExporter<>(
+            esClient,
+            new EsSearchRequestBuilder<>(new DataFieldMapper()),
+            Data.class,
+            Hit::source,
+            OBJECT_MAPPER,
+            2,
+            2,
+            "1m");
+  }
+
+  @Test
+  public void testExport() throws IOException {
+    when(esClient.search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenAnswer(EsSearchExporterTest::respond);
+
+    SearchRequest<DataSearchParameter> searchRequest = new SearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.TITLE, "birds");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    assertEquals(3, exporter.export(searchRequest, "data", out));
+
+    // one converted result per line
+    String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    Set<Integer> keys = new TreeSet<>();
+    for (String line : lines) {
+      keys.add(OBJECT_MAPPER.readTree(line).get("key").asInt());
+    }
+    assertEquals(new TreeSet<>(Arrays.asList(1, 2, 3)), keys);
+
+    ArgumentCaptor<co.elastic.clients.elasticsearch.core.SearchRequest> captor =
+        ArgumentCaptor.forClass(co.elastic.clients.elasticsearch.core.SearchRequest.class);
+    verify(esClient, times(3)).search(captor.capture(), eq(Data.class));
+    List<co.elastic.clients.elasticsearch.core.SearchRequest> firstSliceRequests = new ArrayList<>();
+    for (co.elastic.clients.elasticsearch.core.SearchRequest request : captor.getAllValues()) {
+      assertEquals(2, request.size());
+      assertEquals(2, request.slice().max());
+      assertEquals("1m", request.pit().keepAlive().time());
+      assertTrue(request.query().isBool());
+      if ("0".equals(request.slice().id())) {
+        firstSliceRequests.add(request);
+      }
+    }
+
+    // the next page of a slice starts after the last hit, on the latest point-in-time
+    assertEquals(2, firstSliceRequests.size());
+    assertEquals("pit1", firstSliceRequests.get(0).pit().id());
+    assertTrue(firstSliceRequests.get(0).searchAfter().isEmpty());
+    assertEquals("pit2", firstSliceRequests.get(1).pit().id());
+    assertEquals(2L, firstSliceRequests.get(1).searchAfter().get(0).longValue());
+
+    verify(esClient).closePointInTime("pit2");
+  }
+
+  @Test
+  public void testExportError() throws IOException {
+    when(esClient.search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenThrow(new IOException("node down"));
+
+    SearchRequest<DataSearchParameter> searchRequest = new SearchRequest<>();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    assertThrows(SearchException.class, () -> exporter.export(searchRequest, "data", out));
+    assertEquals(0, out.size());
+    verify(esClient).closePointInTime("pit1");
+  }
+
+  @Test
+  public void testExportConverterError() throws IOException {
+    when(esClient.search(any(co.elastic.clients.elasticsearch.core.SearchRequest.class), eq(Data.class)))
+        .thenAnswer(EsSearchExporterTest::respond);
+    EsSearchExporter<Data, Data, DataSearchParameter> failingExporter =
+        new EsSearchExporter<>(
+            esClient,
+            new EsSearchRequestBuilder<>(new DataFieldMapper()),
+            Data.class,
+            hit -> {
+              throw new StackOverflowError();
+            },
+            OBJECT_MAPPER,
+            2,
+            2,
+            "1m");
+
+    // errors of the slices end the export instead of leaving the writer waiting
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertTimeoutPreemptively(
+        Duration.ofSeconds(5),
+        () -> {
+          assertThrows(
+              StackOverflowError.class,
+              () -> failingExporter.export(new SearchRequest<>(), "data", out));
+        });
+    assertEquals(0, out.size());
+    verify(esClient).closePointInTime("pit1");
+  }
+
+  /** Slice 0 has a full page and a last page, slice 1 has no hits. */
+  private static SearchResponse<Data> respond(InvocationOnMock invocation) {
+    co.elastic.clients.elasticsearch.core.SearchRequest request = invocation.getArgument(0);
+    if (!"0".equals(request.slice().id())) {
+      return esResponse(Collections.emptyList());
+    }
+    if (request.searchAfter().isEmpty()) {
+      return esResponseBuilder(Arrays.asList(hit(1, "Title 1"), hit(2, "Title 2"))).pitId("pit2").build();
+    }
+    return esResponseBuilder(Collections.singletonList(hit(3, "Title 3"))).pitId("pit2").build();
+  }
+}
@@ -14,21 +14,77 @@
 package org.gbif.common;
 
 import org.gbif.api.model.common.search.FacetedSearchRequest;
+import org.gbif.common.search.CardinalityAwareFieldMapper;
+import org.gbif.common.search.EsQueryCache;
 import org.gbif.common.search.EsSearchRequestBuilder;
+import org.gbif.common.search.FieldCardinalityService;
+import org.gbif.common.search.FieldProjection;
+import org.gbif.common.search.GeometryCache;
+import org.gbif.common.search.GeometrySimplifier;
+import org.gbif.common.search.LargeTermsPolicy;
+import org.gbif.common.search.LocalHighlighter;
+import org.gbif.common.search.QueryBudget;
+import org.gbif.common.search.QueryBudgets;
+import org.gbif.common.search.SearchCursor;
+import org.gbif.common.search.TermsLookupStore;
+import org.gbif.common.search.TermsQueryStrategy;
+import org.gbif.common.search.TotalHitsPolicy;
+import org.gbif.common.search.es.EsClient;
 import org.gbif.common.search.test.DataFieldMapper;
 import org.gbif.common.search.test.DataSearchParameter;
 
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import org.junit.jupiter.api.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
 
+import co.elastic.clients.elasticsearch._types.CoordsGeoBounds;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.GeoShapeRelation;
+import co.elastic.clients.elasticsearch._types.SortOptions;
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregation;
 import co.elastic.clients.elasticsearch._types.query_dsl.BoolQuery;
+import co.elastic.clients.elasticsearch._types.query_dsl.GeoShapeQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch._types.query_dsl.TermsLookup;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class EsSearchRequestBuilderTest {
 
+  /** Mapper with the title parameter as a spatial parameter. */
+  private static final DataFieldMapper SPATIAL_FIELD_MAPPER =
+      new DataFieldMapper() {
+        @Override
+        public boolean isSpatialParameter(DataSearchParameter parameter) {
+          return parameter == DataSearchParameter.TITLE;
+        }
+      };
+
   private final DataFieldMapper fieldMapper = new DataFieldMapper();
   private final EsSearchRequestBuilder<DataSearchParameter> requestBuilder = new EsSearchRequestBuilder<>(fieldMapper);
 
@@ -49,4 +105,619 @@ public class EsSearchRequestBuilderTest {
     assertEquals("Animals", filter.term().value().stringValue());
   }
 
+  @Test
+  public void testQueryCache() {
+    EsQueryCache<DataSearchParameter> queryCache = new EsQueryCache<>(10);
+    EsSearchRequestBuilder<DataSearchParameter> cachedRequestBuilder = new EsSearchRequestBuilder<>(fieldMapper, queryCache);
+
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.TITLE, "Animals");
+    searchRequest.addParameter(DataSearchParameter.KEY, "1");
+
+    String expected = EsClient.prettyJsonRequest(requestBuilder.buildSearchRequest(searchRequest, "data"));
+    assertEquals(expected, EsClient.prettyJsonRequest(cachedRequestBuilder.buildSearchRequest(searchRequest, "data")));
+    assertEquals(expected, EsClient.prettyJsonRequest(cachedRequestBuilder.buildSearchRequest(searchRequest, "data")));
+
+    assertEquals(1, queryCache.stats().missCount());
+    assertEquals(1, queryCache.stats().hitCount());
+  }
+
+  @Test
+  public void testSearchAfter() {
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.TITLE, "Animals");
+    searchRequest.setLimit(10);
+
+    // the cursor is exchanged as an opaque token
+    String token = SearchCursor.start("pit1", "1m").next("pit2", Collections.singletonList(FieldValue.of(5))).encode();
+    SearchCursor cursor = SearchCursor.decode(token);
+
+    co.elastic.clients.elasticsearch.core.SearchRequest
+      esSearchRequest = requestBuilder.buildSearchAfterRequest(searchRequest, cursor);
+
+    assertTrue(esSearchRequest.index().isEmpty());
+    assertEquals("pit2", esSearchRequest.pit().id());
+    assertEquals(10, esSearchRequest.size());
+    assertEquals(5L, esSearchRequest.searchAfter().get(0).longValue());
+
+    SortOptions tiebreaker = esSearchRequest.sort().get(esSearchRequest.sort().size() - 1);
+    assertEquals("_shard_doc", tiebreaker.field().field());
+  }
+
+  @Test
+  public void testSearchCursorKeepAlive() {
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.setLimit(10);
+
+    String token = SearchCursor.start("pit1", "1m").encode();
+    assertEquals("1m", requestBuilder.buildSearchAfterRequest(searchRequest, SearchCursor.decode(token)).pit().keepAlive().time());
+
+    // keep alives of the tokens are clamped to the maximum
+    token = SearchCursor.start("pit1", "30d").encode();
+    assertEquals("300000ms", requestBuilder.buildSearchAfterRequest(searchRequest, SearchCursor.decode(token)).pit().keepAlive().time());
+    assertEquals("30000ms", SearchCursor.decode(SearchCursor.start("pit1", "2m").encode(), Duration.ofSeconds(30)).getKeepAlive());
+    assertEquals(
+        "300000ms", SearchCursor.decode(SearchCursor.start("pit1", "99999999999999999999d").encode()).getKeepAlive());
+
+    String invalid = SearchCursor.start("pit1", "1 year").encode();
+    assertThrows(IllegalArgumentException.class, () -> SearchCursor.decode(invalid));
+  }
+
+  @Test
+  public void testTotalHitsPolicy() {
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.TITLE, "Animals");
+
+    // exact counts by default
+    assertTrue(requestBuilder.buildSearchRequest(searchRequest, "data").trackTotalHits().enabled());
+
+    co.elastic.clients.elasticsearch.core.SearchRequest esSearchRequest =
+      requestBuilder.buildFacetedSearchRequest(searchRequest, true, "data", TotalHitsPolicy.threshold(10_000));
+    assertEquals(10_000, esSearchRequest.trackTotalHits().count());
+
+    esSearchRequest = requestBuilder.buildSearchRequest(searchRequest, "data", TotalHitsPolicy.DISABLED);
+    assertFalse(esSearchRequest.trackTotalHits().enabled());
+  }
+
+  @Test
+  public void testFacetsMultiselect() {
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.TITLE, "Animals");
+    searchRequest.addParameter(DataSearchParameter.COUNTRY, "DK");
+    searchRequest.setFacetMultiSelect(true);
+    searchRequest.setFacets(
+      new HashSet<>(Arrays.asList(DataSearchParameter.TITLE, DataSearchParameter.COUNTRY, DataSearchParameter.KEY)));
+
+    co.elastic.clients.elasticsearch.core.SearchRequest
+      esSearchRequest = requestBuilder.buildFacetedSearchRequest(searchRequest, true, "data");
+
+    assertEquals(2, esSearchRequest.postFilter().bool().filter().size());
+
+    // each facet used as a filter has its own filter aggregation
+    Aggregation titleAggs = esSearchRequest.aggregations().get("title");
+    assertEquals("country", titleAggs.filter().bool().filter().get(0).term().field());
+    assertEquals(Collections.singleton("filtered_title"), titleAggs.aggregations().keySet());
+
+    Aggregation countryAggs = esSearchRequest.aggregations().get("country");
+    assertEquals("title", countryAggs.filter().bool().filter().get(0).term().field());
+    assertEquals(Collections.singleton("filtered_country"), countryAggs.aggregations().keySet());
+
+    // facets not used as filters share the filter aggregation of all the filters
+    Aggregation keyAggs = esSearchRequest.aggregations().get("key");
+    assertEquals(2, keyAggs.filter().bool().filter().size());
+    assertEquals(3, esSearchRequest.aggregations().size());
+
+    searchRequest.setFacets(
+      new HashSet<>(Arrays.asList(DataSearchParameter.TITLE, DataSearchParameter.KEY, DataSearchParameter.CREATED)));
+    esSearchRequest = requestBuilder.buildFacetedSearchRequest(searchRequest, true, "data");
+    assertEquals(2, esSearchRequest.aggregations().size());
+    Aggregation sharedAggs =
+      esSearchRequest.aggregations().containsKey("key")
+        ? esSearchRequest.aggregations().get("key")
+        : esSearchRequest.aggregations().get("created");
+    assertEquals(new HashSet<>(Arrays.asList("filtered_key", "filtered_created")), sharedAggs.aggregations().keySet());
+  }
+
+  @Test
+  public void testCompositeFacets() {
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.TITLE, "Animals");
+    searchRequest.setFacets(Collections.singleton(DataSearchParameter.KEY));
+    searchRequest.addFacetPage(DataSearchParameter.KEY, 5000, 100);
+
+    co.elastic.clients.elasticsearch.core.SearchRequest
+      esSearchRequest = requestBuilder.buildCompositeFacetedSearchRequest(searchRequest, null, "data");
+
+    // the facet offset doesn't change the size of the aggregation
+    Aggregation keyAggs = esSearchRequest.aggregations().get("key");
+    assertEquals(100, keyAggs.composite().size());
+    assertEquals("key", keyAggs.composite().sources().get(0).get("key").terms().field());
+    assertTrue(keyAggs.composite().after().isEmpty());
+
+    assertThrows(
+      IllegalArgumentException.class,
+      () -> requestBuilder.buildCompositeFacetedSearchRequest(
+        searchRequest, Collections.singletonMap(DataSearchParameter.KEY, "not a cursor"), "data"));
+  }
+
+  @Test
+  public void testSplitFacetsRequests() {
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.TITLE, "Animals");
+    searchRequest.setFacets(
+      new HashSet<>(Arrays.asList(DataSearchParameter.TITLE, DataSearchParameter.COUNTRY, DataSearchParameter.KEY)));
+
+    co.elastic.clients.elasticsearch.core.SearchRequest hitsRequest =
+      requestBuilder.buildFacetedHitsRequest(searchRequest, "data");
+    assertTrue(hitsRequest.aggregations().isEmpty());
+
+    List<co.elastic.clients.elasticsearch.core.SearchRequest> facetsRequests =
+      requestBuilder.buildFacetsRequests(searchRequest, "data", 2);
+    assertEquals(2, facetsRequests.size());
+    assertEquals(3, facetsRequests.stream().mapToInt(r -> r.aggregations().size()).sum());
+    facetsRequests.forEach(r -> {
+      assertEquals(0, r.size());
+      assertTrue(r.requestCache());
+      assertEquals("title", r.query().bool().filter().get(0).term().field());
+    });
+  }
+
+  @Test
+  public void testFacetsOnlyRequest() {
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.setQ("birds");
+    searchRequest.setHighlight(true);
+    searchRequest.setLimit(0);
+    searchRequest.setFacets(Collections.singleton(DataSearchParameter.COUNTRY));
+
+    co.elastic.clients.elasticsearch.core.SearchRequest
+      esSearchRequest = requestBuilder.buildFacetsOnlyRequest(searchRequest, true, "data");
+
+    assertEquals(0, esSearchRequest.size());
+    assertFalse(esSearchRequest.source().fetch());
+    assertTrue(esSearchRequest.requestCache());
+    assertTrue(esSearchRequest.sort().isEmpty());
+    assertNull(esSearchRequest.highlight());
+    assertTrue(esSearchRequest.aggregations().containsKey("country"));
+  }
+
+  @Test
+  public void testParamValueCodecs() {
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.COUNTRY, "denmark");
+
+    Query filter = requestBuilder.buildSearchRequest(searchRequest, "data").query().bool().filter().get(0);
+    assertEquals("DENMARK", filter.term().value().stringValue());
+
+    searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.KEY, "1");
+    filter = requestBuilder.buildSearchRequest(searchRequest, "data").query().bool().filter().get(0);
+    assertEquals(1L, filter.term().value().longValue());
+
+    searchRequest.addParameter(DataSearchParameter.KEY, "1,5");
+    List<Query> filters = requestBuilder.buildSearchRequest(searchRequest, "data").query().bool().filter();
+    assertEquals(2, filters.size());
+    assertTrue(filters.stream().anyMatch(Query::isRange));
+
+    // parsers of the mappers are still used
+    EsSearchRequestBuilder<DataSearchParameter> customRequestBuilder =
+        new EsSearchRequestBuilder<>(
+            new DataFieldMapper() {
+              @Override
+              public FieldValue parseParamValue(String value, DataSearchParameter parameter) {
+                return FieldValue.of(value + "_custom");
+              }
+            });
+    searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.COUNTRY, "denmark");
+    filter = customRequestBuilder.buildSearchRequest(searchRequest, "data").query().bool().filter().get(0);
+    assertEquals("denmark_custom", filter.term().value().stringValue());
+  }
+
+  @Test
+  public void testParamValueCodecsDecoratedMapper() {
+    // decorators are looked through, the codecs replace the default parser of the decorated mapper
+    @SuppressWarnings("unchecked")
+    FieldCardinalityService<DataSearchParameter> cardinalityService = mock(FieldCardinalityService.class);
+    DataFieldMapper decorated = spy(new DataFieldMapper());
+    EsSearchRequestBuilder<DataSearchParameter> decoratedRequestBuilder =
+        new EsSearchRequestBuilder<>(
+            new CardinalityAwareFieldMapper<>(decorated, cardinalityService, 0.1));
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.COUNTRY, "denmark");
+    Query filter = decoratedRequestBuilder.buildSearchRequest(searchRequest, "data").query().bool().filter().get(0);
+    assertEquals("DENMARK", filter.term().value().stringValue());
+    verify(decorated, never()).parseParamValue(any(), any());
+
+    // custom parsers of the decorated mappers are still used
+    EsSearchRequestBuilder<DataSearchParameter> customRequestBuilder =
+        new EsSearchRequestBuilder<>(
+            new CardinalityAwareFieldMapper<>(
+                new DataFieldMapper() {
+                  @Override
+                  public FieldValue parseParamValue(String value, DataSearchParameter parameter) {
+                    return FieldValue.of(value + "_custom");
+                  }
+                },
+                cardinalityService,
+                0.1));
+    filter = customRequestBuilder.buildSearchRequest(searchRequest, "data").query().bool().filter().get(0);
+    assertEquals("denmark_custom", filter.term().value().stringValue());
+  }
+
+  @Test
+  public void testLargeTermsPolicy() {
+    EsSearchRequestBuilder<DataSearchParameter> chunkedRequestBuilder =
+        new EsSearchRequestBuilder<>(
+            new DataFieldMapper() {
+              @Override
+              public LargeTermsPolicy largeTermsPolicy() {
+                return LargeTermsPolicy.chunked(2);
+              }
+            });
+
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.KEY, "1", "2");
+    Query filter = chunkedRequestBuilder.buildSearchRequest(searchRequest, "data").query().bool().filter().get(0);
+    assertEquals(2, filter.terms().terms().value().size());
+    assertEquals(1, chunkedRequestBuilder.getTermsQueryCount(TermsQueryStrategy.TERMS));
+
+    searchRequest.addParameter(DataSearchParameter.KEY, "3", "4", "5");
+    filter = chunkedRequestBuilder.buildSearchRequest(searchRequest, "data").query().bool().filter().get(0);
+    assertEquals(3, filter.bool().should().size());
+    assertEquals(1, filter.bool().should().get(2).terms().terms().value().size());
+    assertEquals(1, chunkedRequestBuilder.getTermsQueryCount(TermsQueryStrategy.CHUNKED));
+  }
+
+  @Test
+  public void testTermsLookupPolicy() {
+    EsClient esClient = mock(EsClient.class);
+    when(esClient.indexAsync(eq("lookups"), anyString(), any())).thenReturn(CompletableFuture.completedFuture(null));
+    TermsLookupStore store = new TermsLookupStore(esClient, "lookups", Duration.ofMinutes(5));
+    EsQueryCache<DataSearchParameter> queryCache = new EsQueryCache<>(10);
+    EsSearchRequestBuilder<DataSearchParameter> lookupRequestBuilder =
+        new EsSearchRequestBuilder<>(
+            new DataFieldMapper() {
+              @Override
+              public LargeTermsPolicy largeTermsPolicy() {
+                return LargeTermsPolicy.lookup(3, 2, store);
+              }
+            },
+            queryCache);
+
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.KEY, "1", "2", "3");
+
+    // the values are stored before building the request
+    assertThrows(IllegalStateException.class, () -> lookupRequestBuilder.buildSearchRequest(searchRequest, "data"));
+    assertTrue(lookupRequestBuilder.prepareTermsLookups(searchRequest).isDone());
+    verify(esClient, times(2)).indexAsync(eq("lookups"), anyString(), any());
+
+    // one lookup per chunk, any of them matches
+    Query filter = lookupRequestBuilder.buildSearchRequest(searchRequest, "data").query().bool().filter().get(0);
+    assertEquals("1", filter.bool().minimumShouldMatch());
+    assertEquals(2, filter.bool().should().size());
+    Set<String> ids = new HashSet<>();
+    for (Query chunk : filter.bool().should()) {
+      TermsLookup lookup = chunk.terms().terms().lookup();
+      assertEquals("lookups", lookup.index());
+      assertEquals(TermsLookupStore.TERMS_FIELD, lookup.path());
+      ids.add(lookup.id());
+    }
+    assertEquals(2, ids.size());
+
+    // stored values aren't stored again, and queries reading a lookup aren't cached
+    assertTrue(lookupRequestBuilder.prepareTermsLookups(searchRequest).isDone());
+    lookupRequestBuilder.buildSearchRequest(searchRequest, "data");
+    verify(esClient, times(2)).indexAsync(eq("lookups"), anyString(), any());
+    assertEquals(0, queryCache.stats().requestCount());
+    assertEquals(2, lookupRequestBuilder.getTermsQueryCount(TermsQueryStrategy.LOOKUP));
+
+    // filters below the lookup threshold aren't stored
+    FacetedSearchRequest<DataSearchParameter> smallSearchRequest = new FacetedSearchRequest<>();
+    smallSearchRequest.addParameter(DataSearchParameter.KEY, "1", "2");
+    assertTrue(lookupRequestBuilder.prepareTermsLookups(smallSearchRequest).isDone());
+    assertTrue(lookupRequestBuilder.buildSearchRequest(smallSearchRequest, "data").query().bool().filter().get(0).isTerms());
+    verify(esClient, times(2)).indexAsync(eq("lookups"), anyString(), any());
+  }
+
+  @Test
+  public void testQueryBudgets() {
+    EsSearchRequestBuilder<DataSearchParameter> budgetRequestBuilder =
+        new EsSearchRequestBuilder<>(
+            new DataFieldMapper(),
+            null,
+            null,
+            QueryBudgets.of(QueryBudget.timeout(Duration.ofSeconds(2)))
+                .with(QueryBudgets.RequestType.FACETED_SEARCH, QueryBudget.of(Duration.ofMillis(500), 10_000L))
+                .with(QueryBudgets.RequestType.AUTOCOMPLETE, QueryBudget.UNLIMITED));
+
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.TITLE, "Animals");
+    searchRequest.setFacets(Collections.singleton(DataSearchParameter.COUNTRY));
+
+    co.elastic.clients.elasticsearch.core.SearchRequest esSearchRequest =
+        budgetRequestBuilder.buildSearchRequest(searchRequest, "data");
+    assertEquals("2000ms", esSearchRequest.timeout());
+    assertNull(esSearchRequest.terminateAfter());
+
+    esSearchRequest = budgetRequestBuilder.buildFacetsOnlyRequest(searchRequest, true, "data");
+    assertEquals("500ms", esSearchRequest.timeout());
+    assertEquals(10_000L, esSearchRequest.terminateAfter());
+    budgetRequestBuilder
+        .buildFacetsRequests(searchRequest, "data", 1)
+        .forEach(r -> assertEquals(10_000L, r.terminateAfter()));
+
+    esSearchRequest = budgetRequestBuilder.buildAutocompleteQuery(searchRequest, DataSearchParameter.TITLE, "data");
+    assertNull(esSearchRequest.timeout());
+
+    // partial pages would skip hits
+    esSearchRequest = budgetRequestBuilder.buildSearchAfterRequest(searchRequest, SearchCursor.start("pit1", "1m"));
+    assertNull(esSearchRequest.timeout());
+
+    assertThrows(IllegalArgumentException.class, () -> QueryBudget.of(Duration.ZERO, null));
+  }
+
+  @Test
+  public void testFieldProjection() {
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.TITLE, "Animals");
+
+    co.elastic.clients.elasticsearch.core.SearchRequest esSearchRequest =
+        requestBuilder.buildSearchRequest(searchRequest, "data", FieldProjection.source("key", "title"));
+    assertEquals(Arrays.asList("key", "title"), esSearchRequest.source().filter().includes());
+
+    esSearchRequest =
+        requestBuilder.buildFacetedSearchRequest(searchRequest, true, "data", FieldProjection.docValues("key"));
+    assertFalse(esSearchRequest.source().fetch());
+    assertEquals("key", esSearchRequest.docvalueFields().get(0).field());
+    assertTrue(esSearchRequest.fields().isEmpty());
+
+    esSearchRequest = requestBuilder.buildSearchRequest(searchRequest, "data", FieldProjection.fields("title"));
+    assertFalse(esSearchRequest.source().fetch());
+    assertEquals("title", esSearchRequest.fields().get(0).field());
+
+    assertThrows(IllegalArgumentException.class, FieldProjection::source);
+  }
+
+  @Test
+  public void testLocalHighlighting() {
+    DataFieldMapper localHighlightingMapper =
+        new DataFieldMapper() {
+          @Override
+          public List<String> highlightingFields() {
+            return Arrays.asList("title", "description");
+          }
+
+          @Override
+          public Set<String> localHighlightingFields() {
+            return Collections.singleton("title");
+          }
+        };
+    EsSearchRequestBuilder<DataSearchParameter> localRequestBuilder =
+        new EsSearchRequestBuilder<>(localHighlightingMapper);
+
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.setQ("birds");
+    searchRequest.setHighlight(true);
+
+    co.elastic.clients.elasticsearch.core.SearchRequest esSearchRequest =
+        localRequestBuilder.buildSearchRequest(searchRequest, "data");
+    assertEquals(1, esSearchRequest.highlight().fields().size());
+    assertEquals("description", esSearchRequest.highlight().fields().get(0).name());
+
+    LocalHighlighter highlighter = new LocalHighlighter(localHighlightingMapper);
+    assertEquals(
+        EsSearchRequestBuilder.PRE_HL_TAG + "Birds" + EsSearchRequestBuilder.POST_HL_TAG + " &amp; bees",
+        highlighter.highlight("birds", "Birds & bees").get());
+    assertFalse(highlighter.highlight("birds", "Bees").isPresent());
+  }
+
+  @Test
+  public void testLocalHighlightingTerms() {
+    LocalHighlighter highlighter = new LocalHighlighter(new DataFieldMapper());
+    String pre = EsSearchRequestBuilder.PRE_HL_TAG;
+    String post = EsSearchRequestBuilder.POST_HL_TAG;
+
+    // apostrophes, underscores and periods inside words and numbers don't split them
+    assertEquals(pre + "O&#x27;Brien" + post + " &amp; sons", highlighter.highlight("o'brien", "O'Brien & sons").get());
+    assertFalse(highlighter.highlight("brien", "O'Brien & sons").isPresent());
+    assertEquals(pre + "snake_case" + post + " names", highlighter.highlight("snake_case", "snake_case names").get());
+    assertFalse(highlighter.highlight("snake", "snake_case names").isPresent());
+    assertEquals(pre + "3.5" + post + " kg", highlighter.highlight("3.5", "3.5 kg").get());
+    assertEquals("3.5 kg, " + pre + "3" + post + " g", highlighter.highlight("3", "3.5 kg, 3 g").get());
+    assertEquals(pre + "2,000" + post + " birds", highlighter.highlight("2,000", "2,000 birds").get());
+
+    // hyphens and trailing punctuation split them
+    assertEquals("e-" + pre + "mail" + post, highlighter.highlight("mail", "e-mail").get());
+    assertEquals(pre + "U.S.A" + post + ".", highlighter.highlight("u.s.a", "U.S.A.").get());
+
+    // ideographs are terms of one character
+    assertEquals(pre + "\u65e5" + post + "\u672c", highlighter.highlight("\u65e5", "\u65e5\u672c").get());
+  }
+
+  @Test
+  public void testGeometryCache() {
+    GeometryCache geometryCache = new GeometryCache(1000);
+    EsSearchRequestBuilder<DataSearchParameter> cachedRequestBuilder =
+        new EsSearchRequestBuilder<>(SPATIAL_FIELD_MAPPER, null, geometryCache);
+
+    // consecutive duplicated vertices are removed by the normalization
+    String wkt = "POLYGON((10 20, 30 20, 30 20, 30 40, 10 40, 10 20))";
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.TITLE, wkt);
+
+    String expected = EsClient.prettyJsonRequest(new EsSearchRequestBuilder<>(SPATIAL_FIELD_MAPPER).buildSearchRequest(searchRequest, "data"));
+    co.elastic.clients.elasticsearch.core.SearchRequest esSearchRequest = cachedRequestBuilder.buildSearchRequest(searchRequest, "data");
+    assertEquals(expected, EsClient.prettyJsonRequest(esSearchRequest));
+    assertEquals(expected, EsClient.prettyJsonRequest(cachedRequestBuilder.buildSearchRequest(searchRequest, "data")));
+
+    GeoShapeQuery geoShape = esSearchRequest.query().bool().filter().get(1).geoShape();
+    assertEquals("title", geoShape.field());
+    assertEquals("POLYGON ((10 20, 30 20, 30 40, 10 40, 10 20))", geoShape.shape().shape().to(String.class));
+
+    // the second request reuses the parsed shape
+    assertEquals(1, geometryCache.size());
+    assertEquals(1, geometryCache.stats().missCount());
+    assertEquals(1, geometryCache.stats().hitCount());
+
+    // the public builder of geo_shape queries uses the same cache
+    assertEquals(
+        "POLYGON ((10 20, 30 20, 30 40, 10 40, 10 20))",
+        EsSearchRequestBuilder.buildGeoShapeQuery(wkt, "title", null, geometryCache).build().shape().shape().to(String.class));
+    assertEquals(2, geometryCache.stats().hitCount());
+
+    // invalid geometries aren't cached
+    FacetedSearchRequest<DataSearchParameter> invalidRequest = new FacetedSearchRequest<>();
+    invalidRequest.addParameter(DataSearchParameter.TITLE, "LINESTRING(0 0, 1 1)");
+    assertThrows(IllegalArgumentException.class, () -> cachedRequestBuilder.buildSearchRequest(invalidRequest, "data"));
+    assertEquals(1, geometryCache.size());
+  }
+
+  @Test
+  public void testGeometrySimplification() throws ParseException {
+    // a vertex closer than the tolerance to the edge is removed
+    GeometrySimplifier toleranceSimplifier = new GeometrySimplifier(0.01, 0);
+    Geometry simplified =
+        geoShape(spatialFieldMapper(toleranceSimplifier), "POLYGON((0 0, 5 0.0001, 10 0, 10 10, 0 10, 0 0))");
+    assertEquals(5, simplified.getNumPoints());
+    assertEquals(new Envelope(0, 10, 0, 10), simplified.getEnvelopeInternal());
+    assertEquals(1, toleranceSimplifier.getSimplifiedGeometries());
+    assertEquals(1, toleranceSimplifier.getRemovedVertices());
+
+    // the tolerance grows until the vertex budget is met
+    String circle = circle(200);
+    GeometrySimplifier budgetSimplifier = new GeometrySimplifier(0, 20);
+    simplified = geoShape(spatialFieldMapper(budgetSimplifier), circle);
+    assertTrue(simplified.getNumPoints() <= 20);
+    assertTrue(simplified.isValid());
+    assertEquals(201 - simplified.getNumPoints(), budgetSimplifier.getRemovedVertices());
+
+    // points aren't simplified and the default mappers keep all the vertices
+    assertEquals(
+        "POINT (1 2)",
+        spatialFilters(spatialFieldMapper(budgetSimplifier), "POINT(1 2)").get(0).geoShape().shape().shape().to(String.class));
+    assertEquals(201, geoShape(SPATIAL_FIELD_MAPPER, circle).getNumPoints());
+    assertEquals(1, budgetSimplifier.getSimplifiedGeometries());
+  }
+
+  @Test
+  public void testBoundingBoxPrefilter() throws ParseException {
+    // rectangles, non-rectangles and polygons crossing the dateline
+    assertBoundingBoxCoversShape("POLYGON((10 20, 30 20, 30 40, 10 40, 10 20))", 10, 30);
+    assertBoundingBoxCoversShape("POLYGON((-20 -10, 40 -5, 5 35, -20 -10))", -20, 40);
+    assertBoundingBoxCoversShape(
+        "POLYGON((10 10, 50 10, 50 20, 20 20, 20 40, 50 40, 50 50, 10 50, 10 10), (12 12, 15 12, 15 15, 12 15, 12 12))",
+        10,
+        50);
+    assertBoundingBoxCoversShape("POLYGON((170 -10, 190 -10, 190 10, 170 10, 170 -10))", 170, -170);
+    assertBoundingBoxCoversShape("POLYGON((-190 -10, -170 -10, -175 10, -190 -10))", 170, -170);
+    assertBoundingBoxCoversShape("POLYGON((530 0, 550 0, 550 10, 530 10, 530 0))", 170, -170);
+    assertBoundingBoxCoversShape("POLYGON((-550 0, -530 0, -530 10, -550 10, -550 0))", 170, -170);
+    assertBoundingBoxCoversShape("POLYGON((530 0, 540 0, 540 10, 530 10, 530 0))", 170, 180);
+    assertBoundingBoxCoversShape(
+        "MULTIPOLYGON(((0 0, 10 0, 10 10, 0 10, 0 0)), ((100 0, 110 0, 110 10, 100 10, 100 0)))", 0, 110);
+
+    // envelopes of 180 degrees or wider are ambiguous, only the geo_shape query is sent
+    assertEquals(1, spatialFilters("POLYGON((-90 0, 90 0, 90 10, -90 10, -90 0))").size());
+    assertEquals(1, spatialFilters("POLYGON((-100 0, 100 0, 100 10, -100 10, -100 0))").size());
+    assertEquals(1, spatialFilters("POLYGON((170 0, 400 0, 400 10, 170 10, 170 0))").size());
+  }
+
+  /**
+   * Checks the bounding box prefilter against the shape of the geo_shape WITHIN query: every point
+   * of a grid inside the shape must be inside the bounding box.
+   */
+  private void assertBoundingBoxCoversShape(String wkt, double left, double right)
+      throws ParseException {
+    List<Query> filters = spatialFilters(wkt);
+    assertEquals(2, filters.size());
+
+    CoordsGeoBounds boundingBox = filters.get(0).geoBoundingBox().boundingBox().coords();
+    assertEquals("title", filters.get(0).geoBoundingBox().field());
+    assertEquals(left, boundingBox.left());
+    assertEquals(right, boundingBox.right());
+
+    GeoShapeQuery geoShape = filters.get(1).geoShape();
+    assertEquals(GeoShapeRelation.Within, geoShape.shape().relation());
+    Geometry shape = new WKTReader().read(geoShape.shape().shape().to(String.class));
+    Envelope envelope = shape.getEnvelopeInternal();
+    assertEquals(envelope.getMaxY(), boundingBox.top());
+    assertEquals(envelope.getMinY(), boundingBox.bottom());
+
+    GeometryFactory geometryFactory = new GeometryFactory();
+    int inside = 0;
+    for (int i = 0; i <= 20; i++) {
+      for (int j = 0; j <= 20; j++) {
+        double x = envelope.getMinX() + envelope.getWidth() * i / 20;
+        double y = envelope.getMinY() + envelope.getHeight() * j / 20;
+        if (shape.covers(geometryFactory.createPoint(new Coordinate(x, y)))) {
+          inside++;
+          assertTrue(inBoundingBox(boundingBox, x, y), "Point " + x + " " + y + " outside of the box");
+        }
+      }
+    }
+    assertTrue(inside > 0);
+  }
+
+  private static List<Query> spatialFilters(String wkt) {
+    return spatialFilters(SPATIAL_FIELD_MAPPER, wkt);
+  }
+
+  private static List<Query> spatialFilters(DataFieldMapper spatialFieldMapper, String wkt) {
+    FacetedSearchRequest<DataSearchParameter> searchRequest = new FacetedSearchRequest<>();
+    searchRequest.addParameter(DataSearchParameter.TITLE, wkt);
+    return new EsSearchRequestBuilder<>(spatialFieldMapper)
+        .buildSearchRequest(searchRequest, "data")
+        .query()
+        .bool()
+        .filter();
+  }
+
+  /** Shape of the geo_shape query of a polygon, the query after the bounding box prefilter. */
+  private static Geometry geoShape(DataFieldMapper spatialFieldMapper, String wkt) throws ParseException {
+    List<Query> filters = spatialFilters(spatialFieldMapper, wkt);
+    return new WKTReader().read(filters.get(filters.size() - 1).geoShape().shape().shape().to(String.class));
+  }
+
+  private static DataFieldMapper spatialFieldMapper(GeometrySimplifier simplifier) {
+    return new DataFieldMapper() {
+      @Override
+      public boolean isSpatialParameter(DataSearchParameter parameter) {
+        return parameter == DataSearchParameter.TITLE;
+      }
+
+      @Override
+      public GeometrySimplifier getGeometrySimplifier(DataSearchParameter parameter) {
+        return simplifier;
+      }
+    };
+  }
+
+  /** WKT of a circle polygon with a number of vertices, plus the closing one. */
+  private static String circle(int vertices) {
+    StringBuilder wkt = new StringBuilder("POLYGON((");
+    for (int i = 0; i <= vertices; i++) {
+      double angle = 2 * Math.PI * (i % vertices) / vertices;
+      wkt.append(i > 0 ? ", " : "").append(10 * Math.cos(angle)).append(' ').append(10 * Math.sin(angle));
+    }
+    return wkt.append("))").toString();
+  }
+
+  /** Same semantics as geo_bounding_box, boxes with left > right cross the dateline. */
+  private static boolean inBoundingBox(CoordsGeoBounds boundingBox, double x, double y) {
+    if (y < boundingBox.bottom() || y > boundingBox.top()) {
+      return false;
+    }
+    double lon = ((x + 180) % 360 + 360) % 360 - 180;
+    // -180 and 180 are the same meridian
+    return inLongitudes(boundingBox, lon) || lon == -180 && inLongitudes(boundingBox, 180);
+  }
+
+  private static boolean inLongitudes(CoordsGeoBounds boundingBox, double lon) {
+    if (boundingBox.left() <= boundingBox.right()) {
+      return lon >= boundingBox.left() && lon <= boundingBox.right();
+    }
+    return lon >= boundingBox.left() || lon <= boundingBox.right();
+  }
 }
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common;
+
+import org.gbif.common.search.CardinalityAwareFieldMapper;
+import org.gbif.common.search.FieldCardinalityService;
+import org.gbif.common.search.es.EsClient;
+import org.gbif.common.search.test.DataFieldMapper;
+import org.gbif.common.search.test.DataSearchParameter;
+import org.gbif.common.search.test.EsResponses;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import co.elastic.clients.elasticsearch._types.aggregations.Aggregate;
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FieldCardinalityServiceTest {
+
+  private EsClient esClient;
+  private FieldCardinalityService<DataSearchParameter> cardinalityService;
+
+  @BeforeEach
+  public void setUp() {
+    esClient = mock(EsClient.class);
+    cardinalityService =
+        new FieldCardinalityService<>(
+            esClient,
+            "data",
+            new DataFieldMapper(),
+            Arrays.asList(DataSearchParameter.COUNTRY, DataSearchParameter.TITLE),
+            Duration.ofHours(1));
+  }
+
+  @Test
+  public void testRefresh() throws IOException {
+    when(esClient.search(any(SearchRequest.class), eq(Void.class)))
+        .thenReturn(response(120, 5000))
+        .thenThrow(new IOException("node down"))
+        .thenReturn(response(130, 6000));
+
+    assertNull(cardinalityService.getCardinality("country"));
+
+    cardinalityService.refresh();
+    assertEquals(120L, cardinalityService.getCardinality("country"));
+    assertEquals(5000L, cardinalityService.getCardinality("title"));
+
+    // a failed refresh keeps the previous estimates
+    cardinalityService.refresh();
+    assertEquals(120L, cardinalityService.getCardinality("country"));
+
+    // a swap of the alias refreshes the estimates, other aliases are ignored
+    cardinalityService.onAliasSwapped("other", "other_2");
+    assertEquals(120L, cardinalityService.getCardinality("country"));
+    cardinalityService.onAliasSwapped("data", "data_2");
+    assertEquals(130L, cardinalityService.getCardinality("country"));
+    assertEquals(6000L, cardinalityService.getCardinality("title"));
+  }
+
+  @Test
+  public void testCardinalityCap() throws IOException {
+    when(esClient.search(any(SearchRequest.class), eq(Void.class)))
+        .thenReturn(response(100, 50000))
+        .thenReturn(response(1000, 0));
+    cardinalityService.refresh();
+
+    DataFieldMapper configured =
+        new DataFieldMapper() {
+          @Override
+          public Integer getCardinality(String esFieldName) {
+            return 500;
+          }
+        };
+    CardinalityAwareFieldMapper<DataSearchParameter> fieldMapper =
+        new CardinalityAwareFieldMapper<>(configured, cardinalityService, 0.1);
+
+    // estimate plus the safety margin
+    assertEquals(111, fieldMapper.getCardinality("country"));
+    // estimates above the precision threshold use the configured cardinality
+    assertEquals(500, fieldMapper.getCardinality("title"));
+    // fields not estimated use the configured cardinality
+    assertEquals(500, fieldMapper.getCardinality("key"));
+
+    // estimates above the max cardinality and empty fields use the configured cardinality
+    cardinalityService.refresh();
+    CardinalityAwareFieldMapper<DataSearchParameter> cappedFieldMapper =
+        new CardinalityAwareFieldMapper<>(configured, cardinalityService, 0.1, 1000);
+    assertEquals(500, cappedFieldMapper.getCardinality("country"));
+    assertEquals(500, cappedFieldMapper.getCardinality("title"));
+    assertEquals(1101, fieldMapper.getCardinality("country"));
+  }
+
+  private static SearchResponse<Void> response(long countries, long titles) {
+    return EsResponses.<Void>esResponseBuilder(Collections.emptyList())
+        .aggregations("country", Aggregate.of(a -> a.cardinality(c -> c.value(countries))))
+        .aggregations("title", Aggregate.of(a -> a.cardinality(c -> c.value(titles))))
+        .build();
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common;
+
+import org.gbif.common.search.es.indexing.IsoDateParser;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.Month;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** Compares {@link IsoDateParser} with the {@link DateTimeFormatter} it replaces. */
+public class IsoDateParserTest {
+
+  private static final DateTimeFormatter FORMATTER =
+      DateTimeFormatter.ofPattern(
+          "[yyyy-MM-dd'T'HH:mm:ssXXX][yyyy-MM-dd'T'HH:mmXXX][yyyy-MM-dd'T'HH:mm:ss.SSS XXX][yyyy-MM-dd'T'HH:mm:ss.SSSXXX]"
+              + "[yyyy-MM-dd'T'HH:mm:ss.SSSSSS][yyyy-MM-dd'T'HH:mm:ss.SSSSS][yyyy-MM-dd'T'HH:mm:ss.SSSS][yyyy-MM-dd'T'HH:mm:ss.SSS]"
+              + "[yyyy-MM-dd'T'HH:mm:ss][yyyy-MM-dd'T'HH:mm:ss XXX][yyyy-MM-dd'T'HH:mm:ssXXX][yyyy-MM-dd'T'HH:mm:ss]"
+              + "[yyyy-MM-dd'T'HH:mm][yyyy-MM-dd][yyyy-MM][yyyy]");
+
+  private static final String[] YEARS = {
+    "2020", "2021", "1900", "2000", "0001", "9999", "+20201", "+2020", "20201", "-2020", "-0000",
+    "+0000000000002020", "+999999999", "+1000000000", "+92233720368547758079"
+  };
+  private static final String[] TWO_DIGITS = {
+    "00", "01", "02", "04", "12", "13", "23", "24", "28", "29", "30", "31", "32", "59", "60", "1", "+1"
+  };
+  private static final String[] OFFSETS = {
+    "Z", "z", "+00:00", "-05:30", "+18:00", "-18:00", "+18:01", "+23:00", "+24:00", "+01:60", "+0100",
+    "+01:00:30"
+  };
+  private static final String[] FRACTIONS = {"1", "12", "123", "1234", "12345", "123456", "1234567", "12a"};
+  private static final String[] SEPARATORS = {"-", "T", ":", ".", " ", "x"};
+
+  @Test
+  public void testKnownDates() {
+    Arrays.asList(
+            "2020",
+            "2020-06",
+            "2020-13",
+            "2020-00",
+            "2020-02-29",
+            "2020-02-30",
+            "2021-02-29",
+            "2020-01-32",
+            "2020-01-012020",
+            "2020-01-012021",
+            "2020-01-01T10:15",
+            "2020-01-01T24:00",
+            "2020-01-01T24:00:01",
+            "2020-01-01T10:15:30",
+            "2020-01-01T10:15:30Z",
+            "2020-01-01T10:15+02:00",
+            "2020-01-01T10:15:30.123Z",
+            "2020-01-01T10:15:30.123 +01:00",
+            "2020-01-01T10:15:30.1234",
+            "2020-01-01T10:15:30.12Z",
+            "2020-01-01T10:15:30 -03:00",
+            "2020-01-01T10:15:30+23:00",
+            "2020-01-01T10:15:30+24:00",
+            "2020-01-01T10:002020-01-01",
+            "+20201",
+            "+999999999-12-31T24:00",
+            "+999999999-12-31T23:00-18:00",
+            "-2020",
+            "0001",
+            "",
+            "x")
+        .forEach(IsoDateParserTest::assertSameAsFormatter);
+  }
+
+  @Test
+  public void testRandomDates() {
+    Random random = new Random(17);
+    for (int i = 0; i < 20_000; i++) {
+      assertSameAsFormatter(i % 2 == 0 ? randomDate(random) : randomText(random));
+    }
+  }
+
+  private static void assertSameAsFormatter(String text) {
+    assertEquals(outcome(FORMATTER_DATE, text), outcome(IsoDateParser::parseDate, text), text);
+    assertEquals(
+        outcome(t -> formatterBound(t, true), text), outcome(IsoDateParser::parseLowerBound, text), text);
+    assertEquals(
+        outcome(t -> formatterBound(t, false), text), outcome(IsoDateParser::parseUpperBound, text), text);
+  }
+
+  /** The result or the class of the exception. */
+  private static Object outcome(Function<String, ?> parser, String text) {
+    try {
+      return parser.apply(text);
+    } catch (RuntimeException ex) {
+      return ex.getClass();
+    }
+  }
+
+  private static final Function<String, Date> FORMATTER_DATE =
+      text -> {
+        TemporalAccessor temporalAccessor =
+            FORMATTER.parseBest(
+                text, ZonedDateTime::from, LocalDateTime::from, LocalDate::from, YearMonth::from, Year::from);
+        if (temporalAccessor instanceof ZonedDateTime) {
+          return Date.from(((ZonedDateTime) temporalAccessor).toInstant());
+        } else if (temporalAccessor instanceof LocalDateTime) {
+          return Date.from(((LocalDateTime) temporalAccessor).toInstant(ZoneOffset.UTC));
+        } else if (temporalAccessor instanceof LocalDate) {
+          return Date.from(((LocalDate) temporalAccessor).atStartOfDay().toInstant(ZoneOffset.UTC));
+        } else if (temporalAccessor instanceof YearMonth) {
+          return Date.from(
+              ((YearMonth) temporalAccessor).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC));
+        }
+        return Date.from(((Year) temporalAccessor).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC));
+      };
+
+  private static LocalDateTime formatterBound(String text, boolean lower) {
+    TemporalAccessor temporalAccessor =
+        FORMATTER.parseBest(text, LocalDate::from, YearMonth::from, Year::from);
+    if (temporalAccessor instanceof LocalDate) {
+      return ((LocalDate) temporalAccessor).atTime(lower ? LocalTime.MIN : LocalTime.MAX);
+    }
+    if (temporalAccessor instanceof Year) {
+      Year year = (Year) temporalAccessor;
+      return lower
+          ? year.atMonth(Month.JANUARY).atDay(1).atTime(LocalTime.MIN)
+          : year.atMonth(Month.DECEMBER).atEndOfMonth().atTime(LocalTime.MAX);
+    }
+    YearMonth yearMonth = (YearMonth) temporalAccessor;
+    return lower
+        ? yearMonth.atDay(1).atTime(LocalTime.MIN)
+        : yearMonth.atEndOfMonth().atTime(LocalTime.MAX);
+  }
+
+  /** Mostly well-formed dates, with some invalid values and repeated sections. */
+  private static String randomDate(Random random) {
+    StringBuilder date = new StringBuilder();
+    int sections = 1 + random.nextInt(2);
+    for (int i = 0; i < sections; i++) {
+      date.append(random.nextInt(5) == 0 ? pick(random, YEARS) : 2020 + random.nextInt(2));
+      int depth = random.nextInt(8);
+      if (depth > 0) {
+        date.append('-').append(twoDigits(random, 1 + random.nextInt(12)));
+      }
+      if (depth > 1) {
+        date.append('-').append(twoDigits(random, 1 + random.nextInt(31)));
+      }
+      if (depth > 2) {
+        date.append('T').append(twoDigits(random, random.nextInt(25)));
+        date.append(':').append(twoDigits(random, random.nextInt(60)));
+      }
+      if (depth > 3 && random.nextBoolean()) {
+        date.append(':').append(twoDigits(random, random.nextInt(60)));
+      }
+      if (depth > 4 && random.nextBoolean()) {
+        date.append('.').append(pick(random, FRACTIONS));
+      }
+      if (depth > 5 && random.nextBoolean()) {
+        date.append(random.nextBoolean() ? " " : "").append(pick(random, OFFSETS));
+      }
+    }
+    return date.toString();
+  }
+
+  /** Random sequences of date fragments. */
+  private static String randomText(Random random) {
+    StringBuilder text = new StringBuilder();
+    int fragments = random.nextInt(10);
+    for (int i = 0; i < fragments; i++) {
+      int type = random.nextInt(6);
+      text.append(
+          type == 0
+              ? pick(random, YEARS)
+              : type == 1 ? pick(random, TWO_DIGITS) : type == 2 ? pick(random, OFFSETS) : pick(random, SEPARATORS));
+    }
+    return text.toString();
+  }
+
+  private static String twoDigits(Random random, int value) {
+    return random.nextInt(4) == 0 ? pick(random, TWO_DIGITS) : String.format("%02d", value);
+  }
+
+  private static String pick(Random random, String[] values) {
+    return values[random.nextInt(values.length)];
+  }
+}
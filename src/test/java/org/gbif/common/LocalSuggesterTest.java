@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common;
+
+import org.gbif.common.search.LocalSuggester;
+import org.gbif.common.search.es.EsClient;
+import org.gbif.common.search.test.Data;
+import org.gbif.common.search.test.DataFieldMapper;
+import org.gbif.common.search.test.DataSearchParameter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import co.elastic.clients.elasticsearch.core.SearchRequest;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+
+import static org.gbif.common.search.test.EsResponses.esResponseBuilder;
+import static org.gbif.common.search.test.EsResponses.hits;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LocalSuggesterTest {
+
+  private static final Supplier<List<Data>> NO_FALLBACK =
+      () -> {
+        throw new AssertionError("Suggestions sent to Elasticsearch");
+      };
+
+  private EsClient esClient;
+  private LocalSuggester<Data, Data, DataSearchParameter> suggester;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    esClient = mock(EsClient.class);
+    when(esClient.openPointInTime("data", "1m")).thenReturn("pit1");
+
+    // more than two blocks of keys: "bird 00" to "bird 39" between "ant" and "birds"
+    List<String> titles = new ArrayList<>();
+    titles.add("Zebra");
+    titles.add("Birds");
+    for (int i = 39; i >= 0; i--) {
+      titles.add(String.format("Bird %02d", i));
+    }
+    titles.add("ant");
+    titles.add("Birds");
+    titles.add("birds");
+    titles.add("Birch");
+    when(esClient.search(any(SearchRequest.class), eq(Data.class))).thenReturn(response(titles));
+
+    suggester =
+        new LocalSuggester<>(
+            esClient,
+            "data",
+            new DataFieldMapper(),
+            Data.class,
+            Hit::source,
+            Collections.singletonMap(
+                DataSearchParameter.TITLE, d -> Collections.singletonList(d.getTitle())),
+            Duration.ofHours(1));
+  }
+
+  @Test
+  public void testFallbackBeforeScan() {
+    assertTrue(suggester.isStale());
+    List<Data> fallback = Collections.singletonList(Data.builder().title("Birds").build());
+    assertEquals(fallback, suggester.suggest("bir", DataSearchParameter.TITLE, 10, () -> fallback));
+    assertEquals(1, suggester.getFallbackSuggestions());
+  }
+
+  @Test
+  public void testPrefixAcrossBlocks() {
+    suggester.refresh();
+    assertFalse(suggester.isStale());
+    verify(esClient).closePointInTime("pit1");
+
+    // matches are in key order, crossing the blocks of 16 keys
+    List<String> expected = new ArrayList<>();
+    for (int i = 10; i < 20; i++) {
+      expected.add(String.format("Bird %02d", i));
+    }
+    assertEquals(expected, titles(suggester.suggest("bird 1", DataSearchParameter.TITLE, 20, NO_FALLBACK)));
+    assertEquals(
+        Collections.singletonList("Bird 30"),
+        titles(suggester.suggest("bird 30", DataSearchParameter.TITLE, 20, NO_FALLBACK)));
+    assertEquals(
+        Collections.singletonList("Bird 39"),
+        titles(suggester.suggest("Bird 39", DataSearchParameter.TITLE, 20, NO_FALLBACK)));
+    assertEquals(
+        Collections.singletonList("ant"),
+        titles(suggester.suggest("a", DataSearchParameter.TITLE, 20, NO_FALLBACK)));
+    assertEquals(
+        Collections.singletonList("Zebra"),
+        titles(suggester.suggest("zeb", DataSearchParameter.TITLE, 20, NO_FALLBACK)));
+
+    // prefixes between keys, before the first key and after the last one
+    assertTrue(suggester.suggest("bird 4", DataSearchParameter.TITLE, 20, NO_FALLBACK).isEmpty());
+    assertTrue(suggester.suggest("aa", DataSearchParameter.TITLE, 20, NO_FALLBACK).isEmpty());
+    assertTrue(suggester.suggest("zz", DataSearchParameter.TITLE, 20, NO_FALLBACK).isEmpty());
+    assertEquals(45, suggester.suggest("", DataSearchParameter.TITLE, 100, NO_FALLBACK).size());
+  }
+
+  @Test
+  public void testDuplicatedTexts() {
+    suggester.refresh();
+
+    // equal texts are suggested once, texts with other cases are kept
+    assertEquals(
+        Arrays.asList("Birds", "birds"),
+        titles(suggester.suggest("birds", DataSearchParameter.TITLE, 20, NO_FALLBACK)));
+  }
+
+  @Test
+  public void testLimit() {
+    suggester.refresh();
+
+    assertEquals(
+        Arrays.asList("Birch", "Bird 00", "Bird 01"),
+        titles(suggester.suggest("bir", DataSearchParameter.TITLE, 3, NO_FALLBACK)));
+    assertEquals(
+        Collections.singletonList("Birch"),
+        titles(suggester.suggest("bir", DataSearchParameter.TITLE, 1, NO_FALLBACK)));
+    assertEquals(2, suggester.getLocalSuggestions());
+  }
+
+  private static List<String> titles(List<Data> results) {
+    return results.stream().map(Data::getTitle).collect(Collectors.toList());
+  }
+
+  private static SearchResponse<Data> response(List<String> titles) {
+    return esResponseBuilder(hits(titles.toArray(new String[0]))).pitId("pit1").build();
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common;
+
+import org.gbif.common.search.SearchException;
+import org.gbif.common.search.SingleFlight;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SingleFlightTest {
+
+  private final SingleFlight<String, Object> singleFlight = new SingleFlight<>();
+  private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+  @AfterEach
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testCoalescedCalls() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    Future<Object> first =
+        executor.submit(
+            () ->
+                singleFlight.execute(
+                    "q1",
+                    () -> {
+                      calls.incrementAndGet();
+                      await(release);
+                      return new Object();
+                    }));
+    awaitInFlight("q1", 0);
+
+    // the second caller waits for the call in flight
+    Future<Object> second =
+        executor.submit(
+            () ->
+                singleFlight.execute(
+                    "q1",
+                    () -> {
+                      calls.incrementAndGet();
+                      return new Object();
+                    }));
+    awaitInFlight("q1", 1);
+    release.countDown();
+
+    assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+    assertEquals(1, calls.get());
+    assertEquals(1, singleFlight.getCoalescedCalls());
+    assertEquals(0, singleFlight.inFlight());
+
+    // completed calls aren't kept
+    singleFlight.execute("q1", calls::incrementAndGet);
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void testSharedException() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    SearchException error = new SearchException("node down");
+    Future<Object> first =
+        executor.submit(
+            () ->
+                singleFlight.execute(
+                    "q1",
+                    () -> {
+                      await(release);
+                      throw error;
+                    }));
+    awaitInFlight("q1", 0);
+    Future<Object> second = executor.submit(() -> singleFlight.execute("q1", Object::new));
+    awaitInFlight("q1", 1);
+    release.countDown();
+
+    // the waiters get the exception of the call
+    assertSame(error, assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS)).getCause());
+    assertSame(error, assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS)).getCause());
+    assertEquals(0, singleFlight.inFlight());
+  }
+
+  @Test
+  public void testOtherKeys() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Future<Object> first =
+        executor.submit(
+            () ->
+                singleFlight.execute(
+                    "q1",
+                    () -> {
+                      await(release);
+                      return "r1";
+                    }));
+    awaitInFlight("q1", 0);
+
+    // calls with other keys are executed while q1 is in flight
+    assertEquals("r2", singleFlight.execute("q2", () -> "r2"));
+    release.countDown();
+    assertEquals("r1", first.get(5, TimeUnit.SECONDS));
+    assertEquals(0, singleFlight.getCoalescedCalls());
+  }
+
+  /** Waits until a call is in flight with a number of waiters. */
+  private void awaitInFlight(String key, int waiters) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!Integer.valueOf(waiters).equals(singleFlight.waiters().get(key))) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("No call in flight for " + key + " with " + waiters + " waiters");
+      }
+      Thread.sleep(5);
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(5, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
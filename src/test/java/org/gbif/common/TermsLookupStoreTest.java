@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common;
+
+import org.gbif.common.search.TermsLookupStore;
+import org.gbif.common.search.es.EsClient;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TermsLookupStoreTest {
+
+  private static final List<FieldValue> VALUES = Arrays.asList(FieldValue.of("a"), FieldValue.of(1L));
+
+  @Test
+  public void testStoreAsync() throws Exception {
+    EsClient esClient = mock(EsClient.class);
+    CompletableFuture<Void> indexed = new CompletableFuture<>();
+    when(esClient.indexAsync(eq("lookups"), anyString(), any())).thenReturn(indexed);
+    TermsLookupStore store = new TermsLookupStore(esClient, "lookups", Duration.ofMinutes(5));
+
+    // the calling thread isn't blocked while the values are stored
+    CompletableFuture<String> id = store.storeAsync(VALUES);
+    assertFalse(id.isDone());
+    indexed.complete(null);
+
+    ArgumentCaptor<Object> document = ArgumentCaptor.forClass(Object.class);
+    verify(esClient).indexAsync(eq("lookups"), eq(id.get()), document.capture());
+    assertEquals(Arrays.asList("a", 1L), ((Map<?, ?>) document.getValue()).get(TermsLookupStore.TERMS_FIELD));
+
+    // stored values aren't stored again during the time to live
+    assertTrue(store.storeAsync(VALUES).isDone());
+    assertEquals(id.get(), store.storeAsync(VALUES).get());
+    verify(esClient, times(1)).indexAsync(eq("lookups"), anyString(), any());
+  }
+
+  @Test
+  public void testPurge() {
+    EsClient esClient = mock(EsClient.class);
+    try (TermsLookupStore store = new TermsLookupStore(esClient, "lookups", Duration.ofMillis(50))) {
+      store.start();
+
+      // unused documents are deleted every time to live
+      verify(esClient, timeout(1000).atLeastOnce()).deleteByQuery(eq("lookups"), any(Query.class));
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.gbif.common.search.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.search.TotalHitsRelation;
+
+/** Elasticsearch responses used as test fixtures. */
+public class EsResponses {
+
+  private EsResponses() {
+    // factory methods only
+  }
+
+  /** Hit of the {@link Data} with the key and title, sorted by its key. */
+  public static Hit<Data> hit(int key, String title) {
+    return new Hit.Builder<Data>()
+        .id(String.valueOf(key))
+        .index("data_1")
+        .source(Data.builder().key(key).title(title).build())
+        .sort(FieldValue.of(key))
+        .build();
+  }
+
+  /** Hits of the titles, keyed by their position starting at 1. */
+  public static List<Hit<Data>> hits(String... titles) {
+    List<Hit<Data>> hits = new ArrayList<>();
+    for (int i = 0; i < titles.length; i++) {
+      hits.add(hit(i + 1, titles[i]));
+    }
+    return hits;
+  }
+
+  /**
+   * Builder of a successful response holding the hits and their exact total, other properties such
+   * as the pitId, the partial flags or the aggregations can be set on it.
+   */
+  public static <T> SearchResponse.Builder<T> esResponseBuilder(List<Hit<T>> hits) {
+    return new SearchResponse.Builder<T>()
+        .took(1)
+        .timedOut(false)
+        .shards(s -> s.successful(1).failed(0).total(1))
+        .hits(hs -> hs.total(t -> t.value(hits.size()).relation(TotalHitsRelation.Eq)).hits(hits));
+  }
+
+  /** Successful response with the hits of the titles. */
+  public static SearchResponse<Data> esResponse(String... titles) {
+    return esResponseBuilder(hits(titles)).build();
+  }
+
+  /** Successful response with the hits. */
+  public static SearchResponse<Data> esResponse(List<Hit<Data>> hits) {
+    return esResponseBuilder(hits).build();
+  }
+}